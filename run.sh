@@ -1,7 +1,12 @@
 #!/bin/bash
 
+# Runs the cctext command line; try ./run.sh --help.
 
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
 export LD_LIBRARY_PATH="$DIR/build/binaries/cLD2wrapSharedLibrary:$DIR/cld2/internal:$LD_LIBRARY_PATH"
-exec rlwrap -a build/install/cctext/bin/cctext "$@"
+# The class-data sharing archive from "gradle appCds", if there is one
+if [ -e "$DIR/build/cds/cctext.jsa" ]; then
+    export JAVA_OPTS="-XX:SharedArchiveFile=$DIR/build/cds/cctext.jsa $JAVA_OPTS"
+fi
+exec "$DIR/build/install/cctext/bin/cctext" "$@"
@@ -87,3 +87,82 @@ CLD2Wrap_get_result_chunk(const CLD2Wrap *this_,
   result_chunk->language_code = CLD2::LanguageCode(
       static_cast<CLD2::Language>(real_chunk.lang1));
 }
+
+static inline const char *
+hint_at(const char *hint_bytes, const int *offsets, int i)
+{
+  return offsets[i] < 0 ? NULL : hint_bytes + offsets[i];
+}
+
+int
+CLD2Wrap_detect_batch(const char *bytes,
+                      const int *doc_offsets,
+                      int num_docs,
+                      bool is_plain_text,
+                      const char *hint_bytes,
+                      const int *content_language_hint_offsets,
+                      const int *tld_hint_offsets,
+                      int *languages,
+                      int *percents,
+                      double *normalized_scores,
+                      int *is_reliable,
+                      int *text_bytes,
+                      int *chunk_starts,
+                      int *chunk_offsets,
+                      int *chunk_lengths,
+                      int *chunk_languages,
+                      int max_chunks)
+{
+  // Reused for every document in the batch
+  CLD2::ResultChunkVector chunks;
+  int num_chunks = 0;
+  chunk_starts[0] = 0;
+
+  for (int i = 0; i < num_docs; i++) {
+    CLD2::CLDHints cldHints;
+    cldHints.content_language_hint =
+      hint_at(hint_bytes, content_language_hint_offsets, i);
+    cldHints.tld_hint = hint_at(hint_bytes, tld_hint_offsets, i);
+    cldHints.encoding_hint = CLD2::UNKNOWN_ENCODING;
+    cldHints.language_hint = CLD2::UNKNOWN_LANGUAGE;
+
+    CLD2::Language doc_languages[3];
+    bool doc_is_reliable;
+
+    CLD2::ExtDetectLanguageSummary(bytes + doc_offsets[i],
+                                   doc_offsets[i + 1] - doc_offsets[i],
+                                   is_plain_text,
+                                   &cldHints,
+                                   0, // flags
+                                   doc_languages,
+                                   percents + 3 * i,
+                                   normalized_scores + 3 * i,
+                                   &chunks,
+                                   text_bytes + i,
+                                   &doc_is_reliable);
+
+    if (num_chunks + (int) chunks.size() > max_chunks) {
+      // The caller will have to call again for the rest, with more room.
+      return i;
+    }
+
+    for (int j = 0; j < 3; j++) {
+      languages[3 * i + j] = doc_languages[j];
+    }
+    is_reliable[i] = doc_is_reliable;
+    for (size_t j = 0; j < chunks.size(); j++) {
+      chunk_offsets[num_chunks] = chunks[j].offset;
+      chunk_lengths[num_chunks] = chunks[j].bytes;
+      chunk_languages[num_chunks] = chunks[j].lang1;
+      num_chunks++;
+    }
+    chunk_starts[i + 1] = num_chunks;
+  }
+  return num_docs;
+}
+
+const char *
+CLD2Wrap_language_code(int language)
+{
+  return CLD2::LanguageCode(static_cast<CLD2::Language>(language));
+}
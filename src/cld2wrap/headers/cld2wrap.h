@@ -1,6 +1,9 @@
 // NOTE NOTE NOTE:
 // Any time you modify this header file, you need to regenerate
 //   lib/CLD2wrap.jar
+// (except for the batch functions at the end, which are bound by hand in
+// src/main/java/org/vorpus/cld2wrap/CLD2wrapBatchLibrary.java, and need
+// that updating instead)
 // To do this, go to the project root and run:
 //   java -jar jnaerator-0.11-shaded.jar -library CLD2wrap -mode Jar -o lib -package org.vorpus.cld2wrap -f src/CLD2wrap/headers/cld2wrap.h
 // (Or replace with your favoriate jnaerator version.)
@@ -49,6 +52,46 @@ extern "C"
   void CLD2Wrap_get_result_chunk(const CLD2Wrap *this_,
                                  int i,
                                  CLD2WrapResultChunk *result_chunk);
+
+  // Batch interface: runs detection on num_docs documents in one call, so
+  // we only cross the FFI boundary once per batch rather than once per
+  // document and again per chunk. Everything goes in and out through flat
+  // arrays, so there are no structs to wrap.
+  //
+  // Inputs:
+  //   document i is bytes[doc_offsets[i] .. doc_offsets[i + 1])
+  //   its hints are the NUL-terminated strings starting at
+  //     hint_bytes + content_language_hint_offsets[i] and
+  //     hint_bytes + tld_hint_offsets[i], or NULL if the offset is -1
+  // Outputs, for document i:
+  //   languages, percents, normalized_scores: [3 * i .. 3 * i + 3)
+  //     (languages are CLD2 Language values; see CLD2Wrap_language_code)
+  //   is_reliable[i], text_bytes[i]
+  //   its result chunks are [chunk_starts[i] .. chunk_starts[i + 1]) in
+  //     chunk_offsets (relative to the start of the document),
+  //     chunk_lengths and chunk_languages
+  //
+  // If the chunks would overflow max_chunks, stops early. Returns the
+  // number of documents actually processed.
+  int CLD2Wrap_detect_batch(const char *bytes,
+                            const int *doc_offsets,
+                            int num_docs,
+                            bool is_plain_text,
+                            const char *hint_bytes,
+                            const int *content_language_hint_offsets,
+                            const int *tld_hint_offsets,
+                            int *languages,
+                            int *percents,
+                            double *normalized_scores,
+                            int *is_reliable,
+                            int *text_bytes,
+                            int *chunk_starts,
+                            int *chunk_offsets,
+                            int *chunk_lengths,
+                            int *chunk_languages,
+                            int max_chunks);
+
+  const char *CLD2Wrap_language_code(int language);
 };
 
 #endif
@@ -0,0 +1,101 @@
+package org.vorpus.cctext;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+// Compares the per-call cost of the two CLD2 bindings (see CLD2Backend).
+// The documents are deliberately tiny, so that what we're measuring is
+// mostly the trip across the JNI/FFM boundary and the marshalling on
+// either side of it, not CLD2 itself.
+//
+// Usage: gradle cld2Benchmark [-Pargs="iterations [text]"]
+public class CLD2CallBenchmark
+{
+    static final String DEFAULT_TEXT =
+        "The quick brown fox jumps over the lazy dog.";
+
+    public static void main(String[] args)
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        String text = args.length > 1 ? args[1] : DEFAULT_TEXT;
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer direct = ByteBuffer.allocateDirect(utf8.length);
+        direct.put(utf8);
+        direct.flip();
+
+        for (String which : new String[] { "bridj", "ffm" }) {
+            CLD2Backend backend = LanguageDetection.newBackend(which);
+            try {
+                // The first round is warm-up, and is thrown away.
+                for (int round = 0; round < 2; round++) {
+                    report(round, backend, "detect(byte[])",
+                           time(backend, utf8, null, iterations), iterations);
+                    report(round, backend, "detect(direct)",
+                           time(backend, null, direct, iterations), iterations);
+                    report(round, backend, "languageCode",
+                           timeLanguageCode(backend, iterations), iterations);
+                }
+            } finally {
+                backend.close();
+            }
+        }
+    }
+
+    static void report(int round, CLD2Backend backend, String what,
+                       long nanos, int iterations)
+    {
+        if (round > 0) {
+            System.out.printf("%-6s %-16s %8.0f ns/call%n",
+                              backend.name(), what,
+                              (double) nanos / iterations);
+        }
+    }
+
+    // One document per call, the same way LanguageDetection.detect does it.
+    static long time(CLD2Backend backend, byte[] utf8, ByteBuffer direct,
+                     int iterations)
+    {
+        LanguageDetection.HintPacker hints =
+            new LanguageDetection.HintPacker();
+        int[] noHint = new int[] { -1 };
+        int[] tldHint = new int[] { hints.add("com") };
+        byte[][] docs = new byte[][] { utf8 };
+        int length = utf8 != null ? utf8.length : direct.remaining();
+        int[] offsets = new int[] { 0, length };
+        CLD2Backend.Output out = new CLD2Backend.Output();
+        int check = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (utf8 != null) {
+                backend.setDocuments(docs, offsets);
+            } else {
+                backend.setDocuments(direct, offsets);
+            }
+            backend.setHints(hints.bytes, hints.length, noHint, tldHint);
+            check += backend.detect(0, 1, 64, out);
+            check += out.languages[0];
+        }
+        long elapsed = System.nanoTime() - start;
+        if (check == 0) {
+            // keeps the loop from being optimized away
+            System.out.println("(nothing detected)");
+        }
+        return elapsed;
+    }
+
+    static long timeLanguageCode(CLD2Backend backend, int iterations)
+    {
+        int check = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            check += backend.languageCode(i & 127).length();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (check == 0) {
+            System.out.println("(no language codes)");
+        }
+        return elapsed;
+    }
+}
@@ -0,0 +1,274 @@
+package org.vorpus.cctext;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static java.lang.foreign.ValueLayout.*;
+
+// CLD2Backend via java.lang.foreign (Java 22+), instead of BridJ. The
+// downcalls go straight through a MethodHandle, with none of BridJ's
+// per-call Pointer bookkeeping.
+//
+// Every buffer lives in its own confined arena, so it can only be touched
+// by the thread that made it (which is fine -- LanguageDetection gives each
+// thread its own backend) and is freed the moment we close it: when it
+// needs to grow, or in close(). Nothing is left for the GC. The flip side
+// is that a thread that goes away without calling close() leaks its
+// buffers, hence LanguageDetection.releaseThreadResources.
+//
+// Lives in src/ffm, which is only built when gradle is given a JDK 22 to
+// build it with (see build.gradle). LanguageDetection loads it by name and
+// falls back to CLD2BridJ if that fails.
+//
+// On 22+ the JVM warns about native access unless started with
+// --enable-native-access=ALL-UNNAMED.
+class CLD2Foreign implements CLD2Backend
+{
+    static final Linker LINKER = Linker.nativeLinker();
+    // dlopen, so the library is found the same way BridJ finds it (i.e.,
+    // via LD_LIBRARY_PATH; see run.sh).
+    static final SymbolLookup LIBRARY = SymbolLookup.libraryLookup(
+        System.mapLibraryName("CLD2wrap"), Arena.global());
+
+    static final MethodHandle DETECT_BATCH = LINKER.downcallHandle(
+        LIBRARY.find("CLD2Wrap_detect_batch").get(),
+        FunctionDescriptor.of(JAVA_INT,
+                              ADDRESS,       // bytes
+                              ADDRESS,       // doc_offsets
+                              JAVA_INT,      // num_docs
+                              JAVA_BOOLEAN,  // is_plain_text
+                              ADDRESS,       // hint_bytes
+                              ADDRESS,       // content_language_hint_offsets
+                              ADDRESS,       // tld_hint_offsets
+                              ADDRESS,       // languages
+                              ADDRESS,       // percents
+                              ADDRESS,       // normalized_scores
+                              ADDRESS,       // is_reliable
+                              ADDRESS,       // text_bytes
+                              ADDRESS,       // chunk_starts
+                              ADDRESS,       // chunk_offsets
+                              ADDRESS,       // chunk_lengths
+                              ADDRESS,       // chunk_languages
+                              JAVA_INT));    // max_chunks
+
+    static final MethodHandle LANGUAGE_CODE = LINKER.downcallHandle(
+        LIBRARY.find("CLD2Wrap_language_code").get(),
+        FunctionDescriptor.of(ADDRESS, JAVA_INT));
+
+    // The language codes are short; this is just a bound on how far we
+    // look for the NUL.
+    static final long MAX_CODE_LENGTH = 64;
+
+    // A growable native buffer. Like CLD2BridJ, we only ever grow, and
+    // free the old memory immediately when we do.
+    static class Buffer
+    {
+        Arena arena;
+        MemorySegment segment = MemorySegment.NULL;
+
+        MemorySegment ensure(long size)
+        {
+            // zero-sized allocations are legal here, but keep a real
+            // address around anyway, for the C side's sake
+            size = Math.max(size, 8);
+            if (segment.byteSize() >= size) {
+                return segment;
+            }
+            size = Math.max(size, 2 * segment.byteSize());
+            close();
+            arena = Arena.ofConfined();
+            // 8-aligned, which is enough for the doubles
+            segment = arena.allocate(size, 8);
+            return segment;
+        }
+
+        void close()
+        {
+            if (arena != null) {
+                arena.close();
+                arena = null;
+            }
+            segment = MemorySegment.NULL;
+        }
+    }
+
+    final Buffer ownBytes = new Buffer();
+    final Buffer docOffsets = new Buffer();
+    final Buffer hintBytes = new Buffer();
+    final Buffer contentLanguageHintOffsets = new Buffer();
+    final Buffer tldHintOffsets = new Buffer();
+
+    final Buffer languages = new Buffer();
+    final Buffer percents = new Buffer();
+    final Buffer normalizedScores = new Buffer();
+    final Buffer isReliable = new Buffer();
+    final Buffer textBytes = new Buffer();
+    final Buffer chunkStarts = new Buffer();
+    final Buffer chunkOffsets = new Buffer();
+    final Buffer chunkLengths = new Buffer();
+    final Buffer chunkLanguages = new Buffer();
+
+    final Buffer[] all = {
+        ownBytes, docOffsets, hintBytes,
+        contentLanguageHintOffsets, tldHintOffsets,
+        languages, percents, normalizedScores, isReliable, textBytes,
+        chunkStarts, chunkOffsets, chunkLengths, chunkLanguages,
+    };
+
+    // Either ownBytes.segment, or a view of a caller's direct buffer.
+    MemorySegment bytes = MemorySegment.NULL;
+
+    public void setDocuments(byte[][] utf8, int[] offsets)
+    {
+        int numDocs = utf8.length;
+        bytes = ownBytes.ensure(offsets[numDocs]);
+        for (int i = 0; i < numDocs; i++) {
+            MemorySegment.copy(utf8[i], 0, bytes, JAVA_BYTE, offsets[i],
+                               utf8[i].length);
+        }
+        setOffsets(offsets);
+    }
+
+    public void setDocuments(ByteBuffer direct, int[] offsets)
+    {
+        // ofBuffer covers position..limit; we want absolute offsets.
+        ByteBuffer whole = direct.duplicate();
+        whole.clear();
+        bytes = MemorySegment.ofBuffer(whole);
+        setOffsets(offsets);
+    }
+
+    void setOffsets(int[] offsets)
+    {
+        copyInts(offsets, offsets.length, docOffsets);
+    }
+
+    static void copyInts(int[] src, int count, Buffer dst)
+    {
+        MemorySegment segment = dst.ensure(4L * count);
+        MemorySegment.copy(src, 0, segment, JAVA_INT, 0, count);
+    }
+
+    public void setHints(byte[] hints, int hintLength,
+                         int[] contentLanguageOffsets, int[] tldOffsets)
+    {
+        MemorySegment segment = hintBytes.ensure(hintLength);
+        MemorySegment.copy(hints, 0, segment, JAVA_BYTE, 0, hintLength);
+        copyInts(contentLanguageOffsets, contentLanguageOffsets.length,
+                 contentLanguageHintOffsets);
+        copyInts(tldOffsets, tldOffsets.length, tldHintOffsets);
+    }
+
+    public int detect(int start, int count, int maxChunks, Output out)
+    {
+        languages.ensure(4L * 3 * count);
+        percents.ensure(4L * 3 * count);
+        normalizedScores.ensure(8L * 3 * count);
+        isReliable.ensure(4L * count);
+        textBytes.ensure(4L * count);
+        chunkStarts.ensure(4L * (count + 1));
+        chunkOffsets.ensure(4L * maxChunks);
+        chunkLengths.ensure(4L * maxChunks);
+        chunkLanguages.ensure(4L * maxChunks);
+
+        int done;
+        try {
+            done = (int) DETECT_BATCH.invokeExact(
+                bytes,
+                docOffsets.segment.asSlice(4L * start),
+                count,
+                true,
+                hintBytes.segment,
+                contentLanguageHintOffsets.segment.asSlice(4L * start),
+                tldHintOffsets.segment.asSlice(4L * start),
+                languages.segment,
+                percents.segment,
+                normalizedScores.segment,
+                isReliable.segment,
+                textBytes.segment,
+                chunkStarts.segment,
+                chunkOffsets.segment,
+                chunkLengths.segment,
+                chunkLanguages.segment,
+                maxChunks);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+        if (done == 0) {
+            return 0;
+        }
+
+        out.languages = getInts(languages, 3 * done);
+        out.percents = getInts(percents, 3 * done);
+        out.normalizedScores = new double[3 * done];
+        MemorySegment.copy(normalizedScores.segment, JAVA_DOUBLE, 0,
+                           out.normalizedScores, 0, 3 * done);
+        out.isReliable = getInts(isReliable, done);
+        out.chunkStarts = getInts(chunkStarts, done + 1);
+        int numChunks = out.chunkStarts[done];
+        out.chunkOffsets = getInts(chunkOffsets, numChunks);
+        out.chunkLengths = getInts(chunkLengths, numChunks);
+        out.chunkLanguages = getInts(chunkLanguages, numChunks);
+        return done;
+    }
+
+    static int[] getInts(Buffer src, int count)
+    {
+        int[] result = new int[count];
+        MemorySegment.copy(src.segment, JAVA_INT, 0, result, 0, count);
+        return result;
+    }
+
+    public String languageCode(int language)
+    {
+        MemorySegment code;
+        try {
+            code = (MemorySegment) LANGUAGE_CODE.invokeExact(language);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+        // Comes back zero-length, since the linker can't know how big it
+        // is. (Not getString/getUtf8String, which got renamed between 21
+        // and 22.)
+        code = code.reinterpret(MAX_CODE_LENGTH);
+        int length = 0;
+        while (length < MAX_CODE_LENGTH
+               && code.get(JAVA_BYTE, length) != 0) {
+            length++;
+        }
+        byte[] ascii = new byte[length];
+        MemorySegment.copy(code, JAVA_BYTE, 0, ascii, 0, length);
+        return new String(ascii, StandardCharsets.UTF_8);
+    }
+
+    static RuntimeException rethrow(Throwable e)
+    {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new RuntimeException(e);
+    }
+
+    public String name()
+    {
+        return "ffm";
+    }
+
+    public void close()
+    {
+        for (Buffer buffer : all) {
+            buffer.close();
+        }
+        bytes = MemorySegment.NULL;
+    }
+}
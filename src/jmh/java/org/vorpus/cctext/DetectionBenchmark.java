@@ -0,0 +1,62 @@
+package org.vorpus.cctext;
+
+import java.nio.ByteBuffer;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// LanguageDetection.detect on the extracted text of each fixture page (see
+// Fixtures), with the same hints Driver.analyze would give it. The text is
+// in a direct buffer, as it is coming out of HTMLToText, so CLD2 reads it
+// in place. Needs the CLD2 library on the library path (gradle jmh sees to
+// that).
+@BenchmarkMode(org.openjdk.jmh.annotations.Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DetectionBenchmark
+{
+    // xhtml and tiny have too little text to say much here
+    @Param({ "boilerplate", "huge", "cjk", "rtl" })
+    public String shape;
+
+    ByteBuffer text;
+    Set<String> hints;
+    String tld;
+
+    @Setup
+    public void setup()
+        throws Throwable
+    {
+        Fixtures.Page page = Fixtures.page(shape);
+        text = page.extractedText();
+        hints = page.languageHints();
+        tld = page.tld();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        LanguageDetection.releaseThreadResources();
+    }
+
+    @Benchmark
+    public LanguageDetection.Result detect()
+    {
+        return LanguageDetection.detect(text, hints, tld);
+    }
+}
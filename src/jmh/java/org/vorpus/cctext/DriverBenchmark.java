@@ -0,0 +1,97 @@
+package org.vorpus.cctext;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullWriter;
+
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One whole record through Driver.processOne, for each fixture page (see
+// Fixtures): starting from the gzipped record as it sits in the archive,
+// through jwat, charset detection, extraction, language detection and the
+// stats, to the url-info and extracted text output (which goes nowhere).
+// Stats are flushed in the background, as in a real run. Needs CLD2, like
+// DetectionBenchmark.
+@BenchmarkMode(org.openjdk.jmh.annotations.Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DriverBenchmark
+{
+    static final String ARCHIVE = "pages.warc.gz";
+
+    @Param({ "tiny", "boilerplate", "huge", "cjk", "rtl", "xhtml" })
+    public String shape;
+
+    @Param({ "FULL", "FAST" })
+    public HTMLToText.Mode mode;
+
+    // The block language cache (Driver.setBlockCacheBytes). Since we feed
+    // the same page over and over, with it on every block is a hit after
+    // the first call and CLD2 never runs, so it's off unless asked for
+    // (e.g. -p blockCacheBytes=67108864 measures the all-cached path).
+    @Param({ "0" })
+    public long blockCacheBytes;
+
+    Fixtures.Page page;
+    File statsFile;
+    Driver driver;
+
+    @Setup
+    public void setup()
+        throws IOException
+    {
+        page = Fixtures.page(shape);
+        statsFile = File.createTempFile("cctext-bench-stats", ".json");
+        driver = new Driver(statsFile.getPath(), new NullWriter(),
+                            new NullWriter(), new NullWriter());
+        // no fast-path double checking; that's its own cost
+        driver.setExtractionMode(mode, 0);
+        driver.setBlockCacheBytes(blockCacheBytes);
+        driver.startBackgroundFlush();
+    }
+
+    @TearDown
+    public void tearDown()
+        throws IOException
+    {
+        driver.stopBackgroundFlush();
+        LanguageDetection.releaseThreadResources();
+        statsFile.delete();
+    }
+
+    @Benchmark
+    public void processOne()
+        throws IOException
+    {
+        WarcReader reader = WarcReaderFactory.getReader(
+            new ByteArrayInputStream(page.record));
+        try {
+            WarcRecord record = reader.getNextRecord();
+            driver.processOne(ARCHIVE, 0, record.header.warcTargetUriUri,
+                              record.getHttpHeader(), record.getPayload());
+        } finally {
+            reader.close();
+        }
+    }
+}
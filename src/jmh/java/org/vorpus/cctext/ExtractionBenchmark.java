@@ -0,0 +1,53 @@
+package org.vorpus.cctext;
+
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// HTMLToText.parse on each fixture page (see Fixtures), in both extraction
+// modes, the way Driver.analyze calls it: UTF-8 output, no limits, and the
+// encoding already worked out (Page.charset, so that isn't part of what's
+// measured). xhtml always goes through the XML parser, so its FULL and FAST
+// numbers should match.
+@BenchmarkMode(org.openjdk.jmh.annotations.Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExtractionBenchmark
+{
+    @Param({ "tiny", "boilerplate", "huge", "cjk", "rtl", "xhtml" })
+    public String shape;
+
+    @Param({ "FULL", "FAST" })
+    public HTMLToText.Mode mode;
+
+    Fixtures.Page page;
+
+    @Setup
+    public void setup()
+        throws IOException
+    {
+        page = Fixtures.page(shape);
+    }
+
+    @Benchmark
+    public HTMLToText.Result parse()
+        throws Throwable
+    {
+        return HTMLToText.parse(page.contentStream(), page.xhtml,
+                                page.charset, mode, 0, true);
+    }
+}
@@ -0,0 +1,148 @@
+package org.vorpus.cctext;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+// Differential check of the FAST extraction mode (StreamingExtractor)
+// against FULL (the HTML5 tree builder): every page of the fixtures, plus
+// any WARC files named on the command line, plus random tag soup made out
+// of the constructs the streaming extractor has to get right or give up
+// on (implied end tags, tables, formatting elements, raw text elements,
+// stray end tags...). Whenever the fast path doesn't fall back, its text
+// and language hints must be exactly what the full parser gives. Prints
+// the first few disagreements and how often each fallback reason came
+// up, and exits non-zero on any disagreement.
+//
+// Usage: gradle checkFastPath [-Pargs="more.warc.gz ..."]
+public class FastPathCheck
+{
+    static final int RANDOM_PAGES = 50000;
+    static final int MAX_REPORTED = 10;
+
+    static final String[] PIECES = {
+        "text ", "more words ", "\n", "  ", "&amp;", "&nbsp;", "&#233;",
+        "<p>", "</p>", "<div>", "</div>", "<span>", "</span>", "<br>",
+        "</br>", "<b>", "</b>", "<i>", "</i>", "<a href=x>", "</a>",
+        "<h1>", "</h1>", "<h2>", "</h2>", "<ul>", "</ul>", "<ol>", "</ol>",
+        "<li>", "</li>", "<dl>", "<dt>", "<dd>", "</dl>", "<table>",
+        "</table>", "<tr>", "</tr>", "<td>", "</td>", "<th>", "<tbody>",
+        "</tbody>", "<caption>", "<script>var x = '</p>';</script>",
+        "<style>p { color: red }</style>", "<!-- comment -->", "<!---->",
+        "<title>A title</title>", "<noscript>no script</noscript>",
+        "<img src=x>", "<hr/>", "<input type=text>", "<select>",
+        "<option>", "</select>", "<textarea>some <b>text</textarea>",
+        "<pre>\npre</pre>", "<em>", "</em>", "<body>", "</body>",
+        "<head>", "</head>", "<html lang=de>", "</html>",
+        "<meta http-equiv=content-language content=fr>", "<svg>",
+        "</svg>", "<form>", "</form>", "<button>", "</button>",
+    };
+
+    int checked = 0;
+    int fast = 0;
+    int failures = 0;
+    Map<String, Integer> fallbackReasons = new TreeMap<String, Integer>();
+
+    void check(byte[] content, boolean xhtml, String charset, String where)
+    {
+        HTMLToText.Result full;
+        HTMLToText.Result result;
+        try {
+            full = HTMLToText.parse(new ByteArrayInputStream(content), xhtml,
+                                    charset, HTMLToText.Mode.FULL, 0, false);
+        } catch (Throwable e) {
+            // nothing to compare against
+            return;
+        }
+        checked++;
+        try {
+            result = HTMLToText.parse(new ByteArrayInputStream(content),
+                                      xhtml, charset, HTMLToText.Mode.FAST,
+                                      0, false);
+        } catch (Throwable e) {
+            fail(where, content, "FAST threw " + e, full.getContent());
+            return;
+        }
+        if (result.fallbackReason != null) {
+            Integer count = fallbackReasons.get(result.fallbackReason);
+            fallbackReasons.put(result.fallbackReason,
+                                count == null ? 1 : count + 1);
+        }
+        if (!"fast".equals(result.extractionMode)) {
+            return;
+        }
+        fast++;
+        if (!result.getContent().equals(full.getContent())) {
+            fail(where, content, result.getContent(), full.getContent());
+        } else if (!result.languageHints.equals(full.languageHints)) {
+            fail(where, content, "hints " + result.languageHints,
+                 "hints " + full.languageHints);
+        }
+    }
+
+    void fail(String where, byte[] content, String fast, String full)
+    {
+        failures++;
+        if (failures <= MAX_REPORTED) {
+            String page = new String(content, StandardCharsets.UTF_8);
+            System.out.println("MISMATCH in " + where
+                               + (page.length() < 2000
+                                  ? "\n  page: " + page : "")
+                               + "\n  full: " + full
+                               + "\n  fast: " + fast);
+        }
+    }
+
+    void checkPages(List<Fixtures.Page> pages, String source)
+    {
+        for (Fixtures.Page page : pages) {
+            check(page.content, page.xhtml, page.charset,
+                  source + " " + page.uri);
+        }
+    }
+
+    void checkRandom(long seed)
+    {
+        Random random = new Random(seed);
+        StringBuilder page = new StringBuilder();
+        for (int i = 0; i < RANDOM_PAGES; i++) {
+            page.setLength(0);
+            int pieces = 1 + random.nextInt(30);
+            for (int j = 0; j < pieces; j++) {
+                page.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+            check(page.toString().getBytes(StandardCharsets.UTF_8), false,
+                  "UTF-8", "random page " + i);
+        }
+    }
+
+    public static void main(String[] args)
+        throws Throwable
+    {
+        FastPathCheck check = new FastPathCheck();
+        check.checkPages(new ArrayList<Fixtures.Page>(
+                             Fixtures.load().values()),
+                         Fixtures.RESOURCE);
+        for (String path : args) {
+            check.checkPages(Fixtures.readArchive(
+                                 Files.readAllBytes(new File(path).toPath())),
+                             path);
+        }
+        check.checkRandom(1);
+        System.out.println("checked " + check.checked + " pages, "
+                           + check.fast + " took the fast path, "
+                           + check.failures + " mismatches");
+        System.out.println("fallback reasons: " + check.fallbackReasons);
+        if (check.failures > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.vorpus.cctext;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+
+import org.jwat.common.ContentType;
+import org.jwat.common.HeaderLine;
+import org.jwat.common.HttpHeader;
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
+
+// The pages the benchmarks run on: pages.warc.gz (next to this class; made
+// by src/jmh/make_fixtures.py), which has one response record per page
+// shape, named by its Fixture-Shape field:
+//
+// - tiny: a soft 404, next to no text
+// - boilerplate: a news article buried in navigation, scripts, styles and
+//   comment threads
+// - huge: a 1 MB mailing list archive page
+// - cjk: Japanese, in Shift_JIS
+// - rtl: Arabic, with the charset only in a <meta>
+// - xhtml: served as application/xhtml+xml, so it takes the XML parser
+//
+// Each record is its own gzip member, as in a real crawl archive, so
+// Page.record can be fed to a WarcReader by itself.
+class Fixtures
+{
+    static final String RESOURCE = "pages.warc.gz";
+    static final String SHAPE_FIELD = "Fixture-Shape";
+
+    static class Page
+    {
+        String shape;
+        String uri;
+        String host;
+        // parsed out of the HTTP Content-Type
+        String mimeType;
+        String headerCharset;
+        String contentLanguage;
+        boolean xhtml;
+        // what Driver.analyze would hand the parser (see CharsetResolver)
+        String charset;
+        // the whole record, still gzipped, as it sits in the archive
+        byte[] record;
+        // just the HTTP payload
+        byte[] content;
+
+        InputStream contentStream()
+        {
+            return new ByteArrayInputStream(content);
+        }
+
+        // The page's text as Driver.analyze would get it, in FULL mode, in
+        // a direct buffer of its own.
+        ByteBuffer extractedText()
+            throws Throwable
+        {
+            HTMLToText.Result result = HTMLToText.parse(
+                contentStream(), xhtml, charset, HTMLToText.Mode.FULL, 0,
+                true);
+            ByteBuffer text = ByteBuffer.allocateDirect(
+                result.utf8.remaining());
+            text.put(result.utf8.duplicate());
+            text.flip();
+            return text;
+        }
+
+        // The language hints analyze() would pass to LanguageDetection.
+        Set<String> languageHints()
+            throws Throwable
+        {
+            HTMLToText.Result result = HTMLToText.parse(
+                contentStream(), xhtml, charset, HTMLToText.Mode.FULL, 0,
+                true);
+            Set<String> hints = result.languageHints;
+            if (contentLanguage != null) {
+                hints.add(contentLanguage);
+            }
+            return hints;
+        }
+
+        // What analyze() uses as the TLD hint.
+        String tld()
+        {
+            return host.substring(host.lastIndexOf('.') + 1);
+        }
+    }
+
+    static Map<String, Page> pages = null;
+
+    static synchronized Page page(String shape)
+        throws IOException
+    {
+        if (pages == null) {
+            pages = load();
+        }
+        Page page = pages.get(shape);
+        if (page == null) {
+            throw new IllegalArgumentException(
+                "no fixture page with shape " + shape + "; have "
+                + pages.keySet());
+        }
+        return page;
+    }
+
+    static Map<String, Page> load()
+        throws IOException
+    {
+        InputStream in = Fixtures.class.getResourceAsStream(RESOURCE);
+        if (in == null) {
+            throw new IOException("can't find benchmark fixture " + RESOURCE);
+        }
+        byte[] archive;
+        try {
+            archive = IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+        Map<String, Page> pages = new LinkedHashMap<String, Page>();
+        for (Page page : readArchive(archive)) {
+            if (page.shape != null) {
+                pages.put(page.shape, page);
+            }
+        }
+        return pages;
+    }
+
+    // Every HTML response in archive (a whole WARC file, gzipped or not),
+    // as a Page. Records without a Fixture-Shape field get a null shape, so
+    // this works on any WARC; the differential checks use it to take their
+    // corpus from real crawl data as well as the fixtures.
+    static List<Page> readArchive(byte[] archive)
+        throws IOException
+    {
+        List<Page> result = new ArrayList<Page>();
+        // every record's start, so we can cut out each one's gzip member
+        List<Long> starts = new ArrayList<Long>();
+        List<Page> inOrder = new ArrayList<Page>();
+        WarcReader reader = WarcReaderFactory.getReader(
+            new ByteArrayInputStream(archive));
+        try {
+            while (true) {
+                WarcRecord record = reader.getNextRecord();
+                if (record == null) {
+                    break;
+                }
+                starts.add(record.getStartOffset());
+                inOrder.add(null);
+                if (record.header.warcTypeStr == null
+                    || !record.header.warcTypeStr.equals("response")
+                    || record.header.warcTargetUriUri == null) {
+                    continue;
+                }
+                HttpHeader header = record.getHttpHeader();
+                String mimeType = Driver.htmlMimeType(header);
+                if (mimeType == null || record.getPayload() == null) {
+                    continue;
+                }
+                Page page = new Page();
+                HeaderLine shape = record.getHeader(SHAPE_FIELD);
+                page.shape = shape == null ? null : shape.value;
+                page.uri = record.header.warcTargetUriStr;
+                page.host = record.header.warcTargetUriUri.getHost();
+                ContentType ct = ContentType.parseContentType(
+                    header.contentType);
+                page.mimeType = mimeType;
+                if (ct.parameters != null) {
+                    page.headerCharset = ct.parameters.get("charset");
+                }
+                HeaderLine language = header.getHeader("Content-Language");
+                if (language != null) {
+                    page.contentLanguage = language.value;
+                }
+                page.xhtml = page.mimeType.equals("application/xhtml+xml");
+                page.content = IOUtils.toByteArray(
+                    record.getPayload().getInputStream());
+                if (page.xhtml) {
+                    page.charset = page.headerCharset;
+                } else {
+                    page.charset = new CharsetResolver().resolve(
+                        page.content, 0, page.content.length,
+                        page.headerCharset, page.host).charset;
+                }
+                inOrder.set(inOrder.size() - 1, page);
+                result.add(page);
+            }
+        } finally {
+            reader.close();
+        }
+        starts.add((long) archive.length);
+
+        for (int i = 0; i < inOrder.size(); i++) {
+            Page page = inOrder.get(i);
+            if (page != null) {
+                int from = (int) (long) starts.get(i);
+                int to = (int) (long) starts.get(i + 1);
+                page.record = new byte[to - from];
+                System.arraycopy(archive, from, page.record, 0, to - from);
+            }
+        }
+        return result;
+    }
+}
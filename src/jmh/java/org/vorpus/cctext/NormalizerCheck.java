@@ -0,0 +1,137 @@
+package org.vorpus.cctext;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.Files;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Differential check of TextNormalizer against the regex definition it
+// replaced (TextExtractor.normalizeTextReference): every block of raw
+// text from every page of the fixtures, plus any WARC files named on the
+// command line, plus a pile of random strings made out of the characters
+// that are easy to get wrong (whitespace of every kind, non-characters,
+// combining marks, surrogates). Prints the first few disagreements and
+// exits non-zero if there are any.
+//
+// Usage: gradle checkNormalizer [-Pargs="more.warc.gz ..."]
+public class NormalizerCheck
+{
+    static final int RANDOM_STRINGS = 200000;
+    static final int MAX_REPORTED = 10;
+
+    // Whitespace of every kind Java or ICU might disagree about, NFC
+    // traps (decomposed letters, lone combining marks, singletons like
+    // the angstrom sign, Hangul jamo), non-characters in and out of the
+    // BMP, and lone surrogates.
+    static final String[] PIECES = {
+        "a", "Z", "1", ".", " ", "  ", "\t", "\n", "\r\n", "\u000b", "\u000c",
+        "\u001c", "\u0085", "\u00a0", "\u1680", "\u2007", "\u2028", "\u2029",
+        "\u202f", "\u3000", "\u200b", "\ufeff", "\u00ad", "\u0065\u0301",
+        "\u0301", "\u0327\u0301", "\u212b", "\u1100\u1161\u11a8",
+        "\u0915\u093c", "\u00e9", "\ufdd0", "\ufdef", "\ufffe", "\uffff",
+        "\ud83f\udffe", "\udbff\udfff", "\ud800", "\udc00", "\ud83d\ude00",
+        "\u65e5\u672c", "\u0627\u0644",
+    };
+
+    int checked = 0;
+    int failures = 0;
+    TextNormalizer normalizer = new TextNormalizer();
+    StringBuilder out = new StringBuilder();
+
+    void check(String block, String where)
+    {
+        String expected =
+            HTMLToText.TextExtractor.normalizeTextReference(block);
+        // normalizeInto appends, so make sure it leaves what's already
+        // there alone
+        out.setLength(0);
+        out.append("prefix");
+        int appended = normalizer.normalizeInto(block, out);
+        String actual = out.substring("prefix".length());
+        checked++;
+        if (!out.toString().startsWith("prefix")
+            || !actual.equals(expected) || appended != actual.length()) {
+            failures++;
+            if (failures <= MAX_REPORTED) {
+                System.out.println("MISMATCH in " + where + "\n  input:    "
+                                   + escape(block) + "\n  expected: "
+                                   + escape(expected) + "\n  got:      "
+                                   + escape(actual) + " (" + appended
+                                   + " chars)");
+            }
+        }
+    }
+
+    void checkPages(List<Fixtures.Page> pages, String source)
+        throws Throwable
+    {
+        for (Fixtures.Page page : pages) {
+            TextBenchmark.BlockRecorder recorder =
+                new TextBenchmark.BlockRecorder();
+            HTMLToText.Context context = new HTMLToText.Context();
+            context.extractor = recorder;
+            try {
+                context.parse(page.contentStream(), page.xhtml,
+                              page.charset);
+            } catch (Exception e) {
+                // a page the parser chokes on still gives us the blocks
+                // it got through
+            }
+            for (String block : recorder.blocks) {
+                check(block, source + " " + page.uri);
+            }
+        }
+    }
+
+    void checkRandom(long seed)
+    {
+        Random random = new Random(seed);
+        StringBuilder block = new StringBuilder();
+        for (int i = 0; i < RANDOM_STRINGS; i++) {
+            block.setLength(0);
+            int pieces = random.nextInt(12);
+            for (int j = 0; j < pieces; j++) {
+                block.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+            check(block.toString(), "random string " + i);
+        }
+    }
+
+    static String escape(String s)
+    {
+        StringBuilder result = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c < 0x7f && c != '\\' && c != '"') {
+                result.append(c);
+            } else {
+                result.append(String.format("\\u%04x", (int) c));
+            }
+        }
+        return result.append('"').toString();
+    }
+
+    public static void main(String[] args)
+        throws Throwable
+    {
+        NormalizerCheck check = new NormalizerCheck();
+        check.checkPages(new ArrayList<Fixtures.Page>(
+                             Fixtures.load().values()),
+                         Fixtures.RESOURCE);
+        for (String path : args) {
+            check.checkPages(Fixtures.readArchive(
+                                 Files.readAllBytes(new File(path).toPath())),
+                             path);
+        }
+        check.checkRandom(1);
+        System.out.println("checked " + check.checked + " blocks, "
+                           + check.failures + " mismatches");
+        if (check.failures > 0) {
+            System.exit(1);
+        }
+    }
+}
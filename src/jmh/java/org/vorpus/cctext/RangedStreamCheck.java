@@ -0,0 +1,260 @@
+package org.vorpus.cctext;
+
+import java.io.IOException;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Checks RangedObjectInputStream against an in-memory object whose
+// fetches fail when we say so, so none of it needs S3 or a network:
+//
+// - with fetches that fail now and then but work when retried, a random
+//   mix of reads and skips has to see exactly the object's bytes;
+// - once a range has failed for good, every later read has to throw an
+//   IOException (and not, say, hand out another range's bytes);
+// - and throughout, no two fetches may ever be writing into the same
+//   buffer at once.
+//
+// Prints what went wrong and exits non-zero if anything did.
+//
+// Usage: gradle checkRangedStream
+public class RangedStreamCheck
+{
+    static final int OBJECT_BYTES = 300 * 1000 + 17;
+    static final int RANGE_BYTES = 16 * 1024;
+    static final int RANGES_AHEAD = 4;
+    static final int ROUNDS = 20;
+
+    // An object held in memory, whose fetches fail as often as we like,
+    // and which notices buffers being fetched into twice at once.
+    static class FlakyFetcher implements RangeFetcher
+    {
+        final byte[] data;
+        final Random random;
+        // the chance that the first fetch of a range fails (the retry
+        // always works)
+        final double failureRate;
+        // fetches of the range starting here always fail; -1 for none
+        final long brokenRange;
+        final Set<Long> failedOnce = new HashSet<Long>();
+        final Set<byte[]> inUse =
+            Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+        volatile String problem = null;
+
+        FlakyFetcher(byte[] data, long seed, double failureRate,
+                     long brokenRange)
+        {
+            this.data = data;
+            this.random = new Random(seed);
+            this.failureRate = failureRate;
+            this.brokenRange = brokenRange;
+        }
+
+        public long length()
+        {
+            return data.length;
+        }
+
+        public void fetch(long offset, byte[] buf, int count)
+            throws IOException
+        {
+            synchronized (inUse) {
+                if (!inUse.add(buf)) {
+                    problem = "two fetches into the same buffer";
+                }
+            }
+            try {
+                boolean fail;
+                synchronized (random) {
+                    fail = !failedOnce.contains(offset)
+                        && random.nextDouble() < failureRate;
+                    if (fail) {
+                        failedOnce.add(offset);
+                    }
+                }
+                if (fail || offset == brokenRange) {
+                    // scribble on it, like a fetch that died part-way
+                    buf[0] ^= 1;
+                    throw new IOException("injected failure at " + offset);
+                }
+                System.arraycopy(data, (int) offset, buf, 0, count);
+            } finally {
+                synchronized (inUse) {
+                    inUse.remove(buf);
+                }
+            }
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    ExecutorService fetchers = Executors.newFixedThreadPool(
+        RANGES_AHEAD, Util.daemonThreadFactory("cctext-check-fetcher"));
+    int checks = 0;
+    int failures = 0;
+
+    void fail(String what)
+    {
+        failures++;
+        System.out.println("FAILED: " + what);
+    }
+
+    static byte[] randomObject(long seed)
+    {
+        byte[] data = new byte[OBJECT_BYTES];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    // About a third of the ranges fail the first time round.
+    void checkRetries(long seed)
+        throws IOException
+    {
+        checks++;
+        byte[] data = randomObject(seed);
+        FlakyFetcher fetcher = new FlakyFetcher(data, seed, 0.3, -1);
+        RangedObjectInputStream in = new RangedObjectInputStream(
+            fetcher, fetchers, RANGE_BYTES, RANGES_AHEAD, 2);
+        Random random = new Random(seed);
+        byte[] buf = new byte[3 * RANGE_BYTES];
+        long position = 0;
+        try {
+            while (true) {
+                int op = random.nextInt(10);
+                if (op == 0) {
+                    long n = random.nextInt(2 * RANGE_BYTES);
+                    long skipped = in.skip(n);
+                    if (skipped != Math.min(n, data.length - position)) {
+                        fail("seed " + seed + ": skip(" + n + ") at "
+                             + position + " skipped " + skipped);
+                        return;
+                    }
+                    position += skipped;
+                    continue;
+                }
+                if (op == 1) {
+                    int b = in.read();
+                    if (b < 0) {
+                        break;
+                    }
+                    if (b != (data[(int) position] & 0xff)) {
+                        fail("seed " + seed + ": wrong byte at " + position);
+                        return;
+                    }
+                    position++;
+                    continue;
+                }
+                int off = random.nextInt(16);
+                int n = in.read(buf, off, 1 + random.nextInt(
+                                    buf.length - off - 1));
+                if (n < 0) {
+                    break;
+                }
+                for (int i = 0; i < n; i++) {
+                    if (buf[off + i] != data[(int) position + i]) {
+                        fail("seed " + seed + ": wrong byte at "
+                             + (position + i));
+                        return;
+                    }
+                }
+                position += n;
+            }
+        } finally {
+            in.close();
+        }
+        if (position != data.length) {
+            fail("seed " + seed + ": EOF at " + position + " of "
+                 + data.length);
+        }
+        if (in.retries() == 0) {
+            fail("seed " + seed + ": nothing was retried");
+        }
+        if (fetcher.problem != null) {
+            fail("seed " + seed + ": " + fetcher.problem);
+        }
+    }
+
+    // One range never comes back: everything before it has to read fine,
+    // and everything after has to throw.
+    void checkPermanentFailure(long seed)
+        throws IOException
+    {
+        checks++;
+        byte[] data = randomObject(seed);
+        long broken = (long) RANGE_BYTES * (1 + new Random(seed).nextInt(
+                                                data.length / RANGE_BYTES));
+        FlakyFetcher fetcher = new FlakyFetcher(data, seed, 0, broken);
+        RangedObjectInputStream in = new RangedObjectInputStream(
+            fetcher, fetchers, RANGE_BYTES, RANGES_AHEAD, 2);
+        byte[] buf = new byte[1000];
+        long position = 0;
+        try {
+            try {
+                while (true) {
+                    int n = in.read(buf, 0, buf.length);
+                    if (n < 0) {
+                        fail("seed " + seed + ": read past the range at "
+                             + broken + " that always fails");
+                        return;
+                    }
+                    for (int i = 0; i < n; i++) {
+                        if (buf[i] != data[(int) position + i]) {
+                            fail("seed " + seed + ": wrong byte at "
+                                 + (position + i));
+                            return;
+                        }
+                    }
+                    position += n;
+                }
+            } catch (IOException e) {
+                if (position != broken) {
+                    fail("seed " + seed + ": failed at " + position
+                         + ", not at " + broken);
+                    return;
+                }
+            }
+            for (int i = 0; i < 3; i++) {
+                try {
+                    int n = in.read(buf, 0, buf.length);
+                    fail("seed " + seed + ": read " + n + " after a failure");
+                    return;
+                } catch (IOException e) {
+                    // right
+                } catch (RuntimeException e) {
+                    fail("seed " + seed + ": read after a failure threw "
+                         + e);
+                    return;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if (fetcher.problem != null) {
+            fail("seed " + seed + ": " + fetcher.problem);
+        }
+    }
+
+    public static void main(String[] args)
+        throws Throwable
+    {
+        RangedStreamCheck check = new RangedStreamCheck();
+        for (long seed = 1; seed <= ROUNDS; seed++) {
+            check.checkRetries(seed);
+            check.checkPermanentFailure(seed);
+        }
+        check.fetchers.shutdown();
+        System.out.println("ran " + check.checks + " checks, "
+                           + check.failures + " failed");
+        if (check.failures > 0) {
+            System.exit(1);
+        }
+    }
+}
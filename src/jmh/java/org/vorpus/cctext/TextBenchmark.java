@@ -0,0 +1,94 @@
+package org.vorpus.cctext;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// The per-block text handling that the extractor and Driver do on each
+// fixture page (see Fixtures): normalizing the raw text of each block,
+// exactly as the parser handed it over, and counting the words in the
+// extracted text.
+@BenchmarkMode(org.openjdk.jmh.annotations.Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TextBenchmark
+{
+    @Param({ "tiny", "boilerplate", "huge", "cjk", "rtl", "xhtml" })
+    public String shape;
+
+    // every block of the page, before normalization
+    List<String> blocks;
+    ByteBuffer text;
+    TextNormalizer normalizer = new TextNormalizer();
+    StringBuilder normalized = new StringBuilder();
+
+    // Keeps a copy of each block on its way to the normalizer.
+    static class BlockRecorder extends HTMLToText.TextExtractor
+    {
+        final List<String> blocks = new ArrayList<String>();
+
+        void flushBlock()
+        {
+            blocks.add(blockInProgress.toString());
+            super.flushBlock();
+        }
+    }
+
+    @Setup
+    public void setup()
+        throws Throwable
+    {
+        Fixtures.Page page = Fixtures.page(shape);
+        BlockRecorder recorder = new BlockRecorder();
+        HTMLToText.Context context = new HTMLToText.Context();
+        context.extractor = recorder;
+        context.parse(page.contentStream(), page.xhtml, page.charset);
+        blocks = recorder.blocks;
+        text = page.extractedText();
+    }
+
+    // What the request-per-call API costs, new TextNormalizer and all.
+    @Benchmark
+    public void normalizeText(Blackhole blackhole)
+    {
+        for (String block : blocks) {
+            blackhole.consume(
+                HTMLToText.TextExtractor.normalizeText(block));
+        }
+    }
+
+    // What TextExtractor actually does: one normalizer, reused.
+    @Benchmark
+    public int normalizeInto()
+    {
+        int total = 0;
+        for (String block : blocks) {
+            normalized.setLength(0);
+            total += normalizer.normalizeInto(block, normalized);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int wordCount()
+    {
+        return Util.wordCount(text, text.position(), text.limit());
+    }
+}
@@ -0,0 +1,262 @@
+#!/usr/bin/env python3
+# Regenerates the benchmark fixture archive,
+# src/jmh/resources/org/vorpus/cctext/pages.warc.gz (see Fixtures.java):
+#
+#     python3 src/jmh/make_fixtures.py
+#
+# The pages are made up, but each one has the shape of something that
+# turns up all the time in a crawl. Everything is seeded, so running this
+# again gives the same archive. If you change it, benchmark numbers from
+# before and after aren't comparable.
+
+import gzip, io, os, random, uuid
+
+random.seed(21)
+
+def record(shape, uri, date, content_type, body, extra_headers=()):
+    http = ["HTTP/1.1 200 OK",
+            "Date: " + date,
+            "Server: Apache",
+            "Content-Type: " + content_type]
+    http += list(extra_headers)
+    http += ["Content-Length: %d" % len(body), "Connection: close", "", ""]
+    block = "\r\n".join(http).encode("ascii") + body
+    rid = uuid.UUID(int=random.getrandbits(128))
+    head = ("WARC/1.0\r\n"
+            "WARC-Type: response\r\n"
+            "Fixture-Shape: %s\r\n"
+            "WARC-Target-URI: %s\r\n"
+            "WARC-Date: 2014-07-23T04:12:%02dZ\r\n"
+            "WARC-Record-ID: <urn:uuid:%s>\r\n"
+            "Content-Type: application/http; msgtype=response\r\n"
+            "Content-Length: %d\r\n\r\n") % (shape, uri, random.randrange(60), rid,
+                                            len(block))
+    return head.encode("ascii") + block + b"\r\n\r\n"
+
+def warcinfo():
+    body = (b"software: cctext benchmark fixtures\r\n"
+            b"format: WARC File Format 1.0\r\n"
+            b"description: one response record per page shape, named by its Fixture-Shape field\r\n")
+    head = ("WARC/1.0\r\n"
+            "WARC-Type: warcinfo\r\n"
+            "WARC-Date: 2014-07-23T04:12:00Z\r\n"
+            "WARC-Filename: pages.warc.gz\r\n"
+            "WARC-Record-ID: <urn:uuid:%s>\r\n"
+            "Content-Type: application/warc-fields\r\n"
+            "Content-Length: %d\r\n\r\n") % (
+                uuid.UUID(int=random.getrandbits(128)), len(body))
+    return head.encode("ascii") + body + b"\r\n\r\n"
+
+DATE = "Wed, 23 Jul 2014 04:12:07 GMT"
+
+# --- tiny: a soft-404 with next to no text
+tiny = b"""<!DOCTYPE html>
+<html><head><title>Page not found</title></head>
+<body><h1>Not Found</h1>
+<p>The requested URL /archives/2009/06/old-post.html was not found on this server.</p>
+<hr><address>Apache Server at blog.example.net Port 80</address>
+</body></html>
+"""
+
+# --- boilerplate: a news article buried in navigation, scripts and ads
+words = ("city council budget vote residents meeting plan housing "
+         "transport school funding report week year local officials "
+         "proposal members public comment district project costs "
+         "street park library service community").split()
+
+def sentence(n):
+    s = " ".join(random.choice(words) for _ in range(n))
+    return s[0].upper() + s[1:] + "."
+
+def para(sentences):
+    return " ".join(sentence(random.randint(8, 20)) for _ in range(sentences))
+
+sections = ["News", "Local", "Politics", "Business", "Sports", "Weather",
+            "Opinion", "Arts", "Food", "Obituaries", "Classifieds", "Jobs"]
+bp = ['<!DOCTYPE html>\n<html lang="en">\n<head>\n'
+      '<meta charset="utf-8">\n'
+      '<title>Council delays vote on transit budget | The Valley Courier</title>\n']
+for i in range(25):
+    bp.append('<meta property="og:tag%d" content="%s">\n' % (i, sentence(6)))
+for i in range(8):
+    bp.append('<link rel="stylesheet" href="/static/css/bundle-%d.css?v=%08x">\n'
+              % (i, random.getrandbits(32)))
+bp.append("<style>\n")
+for i in range(150):
+    bp.append(".c%d{margin:%dpx;padding:%dpx;color:#%06x}\n"
+              % (i, random.randrange(20), random.randrange(20),
+                 random.getrandbits(24)))
+bp.append("</style>\n")
+for i in range(6):
+    bp.append("<script>\n")
+    for j in range(40):
+        bp.append("  window.__cfg%d_%d = {id: %d, slot: 'ad-%d', sizes: [[300,250],[728,90]]};\n"
+                  % (i, j, random.getrandbits(20), j))
+    bp.append("</script>\n")
+bp.append("</head>\n<body>\n")
+bp.append('<div id="cookie-banner">We use cookies to improve your experience. '
+          '<a href="/privacy">Learn more</a> <button>Accept</button></div>\n')
+bp.append('<header><nav><ul>\n')
+for s in sections:
+    bp.append('<li class="menu"><a href="/%s/">%s</a><ul class="sub">\n'
+              % (s.lower(), s))
+    for k in range(12):
+        bp.append('<li><a href="/%s/%d/">%s %d</a></li>\n' % (s.lower(), k, s, k))
+    bp.append("</ul></li>\n")
+bp.append("</ul></nav></header>\n")
+bp.append('<div class="ad ad-leaderboard"><iframe src="/ads/slot1"></iframe></div>\n')
+bp.append('<main><article>\n<h1>Council delays vote on transit budget</h1>\n'
+          '<p class="byline">By Staff Reporter &middot; July 22, 2014</p>\n')
+for i in range(6):
+    bp.append("<p>%s</p>\n" % para(4))
+bp.append("</article>\n")
+bp.append('<aside class="related"><h3>Related stories</h3><ul>\n')
+for i in range(30):
+    bp.append('<li><a href="/news/%d">%s</a></li>\n' % (random.getrandbits(24), sentence(7)))
+bp.append("</ul></aside>\n")
+bp.append('<section class="comments"><h3>Comments</h3>\n')
+for i in range(10):
+    bp.append('<div class="comment"><span class="user">reader%d</span> '
+              '<p>%s</p><a href="#">Reply</a> <a href="#">Report</a></div>\n'
+              % (i, para(1)))
+bp.append("</section></main>\n<footer>\n")
+for s in sections:
+    bp.append('<div class="col"><h4>%s</h4>' % s)
+    for k in range(8):
+        bp.append('<a href="/%s/more/%d">%s</a> ' % (s.lower(), k, sentence(2)))
+    bp.append("</div>\n")
+bp.append("<p>&copy; 2014 The Valley Courier. All rights reserved.</p>\n</footer>\n")
+for i in range(4):
+    bp.append('<script src="/static/js/vendor-%d.js"></script>\n' % i)
+bp.append("</body>\n</html>\n")
+boilerplate = "".join(bp).encode("utf-8")
+
+# --- huge: a very long single page (a mailing list archive)
+hw = ("the a of to and in is that for it with as was on be by this are "
+      "patch kernel driver memory bug fix build release test commit "
+      "review thread lock queue buffer device error return value "
+      "function call path case code change version support").split()
+def hsentence():
+    s = " ".join(random.choice(hw) for _ in range(random.randint(6, 24)))
+    return s[0].upper() + s[1:] + random.choice(".?!")
+hp = ['<!DOCTYPE HTML PUBLIC "-//W3C//DTD HTML 4.01 Transitional//EN">\n'
+      '<html><head><title>linux-devel archive: July 2014 (by thread)</title>\n'
+      '<meta http-equiv="Content-Type" content="text/html; charset=iso-8859-1">\n'
+      '</head><body bgcolor="#ffffff">\n<h1>July 2014 archives by thread</h1>\n']
+size = 0
+n = 0
+while size < 1000000:
+    n += 1
+    chunk = ['<hr><h2><a name="m%d">[PATCH %d/%d] %s</a></h2>\n'
+             % (n, random.randint(1, 9), 9, hsentence()),
+             '<b>From:</b> dev%d at example.org<br>\n<b>Date:</b> %s<br>\n'
+             % (random.randrange(500), DATE),
+             "<pre>\n"]
+    for i in range(random.randint(5, 30)):
+        line = hsentence()
+        if random.random() < 0.2:
+            line = "&gt; " + line
+        chunk.append(line + "\n")
+    chunk.append("</pre>\n<ul>\n")
+    for i in range(random.randint(0, 4)):
+        chunk.append('<li><a href="#m%d">Re: %s</a>\n' % (random.randrange(1, n + 1), hsentence()))
+    chunk.append("</ul>\n")
+    s = "".join(chunk)
+    hp.append(s)
+    size += len(s)
+hp.append("<hr><address>Generated by mhonarc</address></body></html>\n")
+huge = "".join(hp).encode("iso-8859-1")
+
+# --- cjk: a Japanese page, Shift_JIS, declared in the HTTP header
+ja_paras = [
+    "市立図書館は、来月から開館時間を午後九時まで延長すると発表しました。仕事帰りの利用者が増えていることを受けた措置で、平日のみが対象となります。",
+    "館内では、地域の歴史に関する資料を集めた特別展示も始まります。明治時代の古地図や写真、当時の新聞記事など、およそ二百点が公開される予定です。",
+    "担当者によると、昨年度の貸出冊数は過去最高を記録しました。特に児童書の利用が多く、週末には親子連れでにぎわっています。",
+    "また、電子書籍の貸出サービスも試験的に導入されます。利用者カードを持っていれば、自宅のパソコンやスマートフォンから本を借りることができます。",
+    "図書館の前の公園では、毎年夏に読書会が開かれています。今年は地元の作家を招き、子どもたちに物語の書き方を教える教室も予定されています。",
+]
+jp = ['<!DOCTYPE html>\n<html lang="ja">\n<head>\n<title>市立図書館、開館時間を延長へ｜まちのニュース</title>\n'
+      '</head>\n<body>\n<div id="header"><a href="/">まちのニュース</a> | '
+      '<a href="/local/">地域</a> | <a href="/culture/">文化</a> | <a href="/sports/">スポーツ</a></div>\n'
+      '<h1>市立図書館、開館時間を延長へ</h1>\n<p class="date">2014年7月22日</p>\n']
+for i in range(40):
+    jp.append("<p>%s</p>\n" % ja_paras[i % len(ja_paras)])
+    if i % 8 == 7:
+        jp.append("<h2>関連記事</h2>\n<ul><li><a href=\"/a/%d\">駅前の再開発計画、説明会を開催</a></li>"
+                  "<li><a href=\"/a/%d\">夏祭りの日程が決まる</a></li></ul>\n" % (i, i + 1))
+jp.append('<div id="footer">Copyright &copy; まちのニュース 2014</div>\n</body>\n</html>\n')
+cjk = "".join(jp).encode("shift_jis")
+
+# --- rtl: an Arabic page, UTF-8 but only declared in a <meta>
+ar_paras = [
+    "افتتح مهرجان المدينة الثقافي دورته العاشرة مساء أمس بحضور عدد كبير من الزوار والفنانين من مختلف البلدان العربية.",
+    "ويتضمن برنامج المهرجان هذا العام عروضا مسرحية وأمسيات شعرية ومعارض للفنون التشكيلية، إضافة إلى ورش عمل للأطفال والشباب.",
+    "وقال مدير المهرجان إن عدد المشاركين تضاعف مقارنة بالعام الماضي، وإن اللجنة المنظمة تسعى إلى جعل المهرجان حدثا سنويا دائما.",
+    "وتستمر فعاليات المهرجان أسبوعا كاملا في الساحة الرئيسية والمسرح البلدي، والدخول مجاني لجميع الزوار.",
+    "وأشار عدد من الزوار إلى أهمية مثل هذه الفعاليات في دعم الحركة الثقافية وتشجيع المواهب المحلية.",
+]
+rp = ['<!DOCTYPE html>\n<html dir="rtl" lang="ar">\n<head>\n'
+      '<meta http-equiv="Content-Type" content="text/html; charset=utf-8">\n'
+      '<title>انطلاق مهرجان المدينة الثقافي - أخبار اليوم</title>\n</head>\n<body>\n'
+      '<ul class="nav"><li><a href="/">الرئيسية</a></li><li><a href="/news">أخبار</a></li>'
+      '<li><a href="/culture">ثقافة</a></li><li><a href="/sport">رياضة</a></li></ul>\n'
+      '<h1>انطلاق مهرجان المدينة الثقافي</h1>\n']
+for i in range(30):
+    rp.append("<p>%s</p>\n" % ar_paras[i % len(ar_paras)])
+    if i % 10 == 4:
+        # a bit of embedded left-to-right text, as real pages have
+        rp.append("<p>للمزيد من المعلومات: <span dir=\"ltr\">www.festival.example</span> "
+                  "أو عبر تويتر <span dir=\"ltr\">@CityFestival</span></p>\n")
+rp.append('<div class="footer">جميع الحقوق محفوظة &copy; 2014</div>\n</body>\n</html>\n')
+rtl = "".join(rp).encode("utf-8")
+
+# --- xhtml: served as application/xhtml+xml, so it takes the XML parser
+xp = ['<?xml version="1.0" encoding="UTF-8"?>\n'
+      '<!DOCTYPE html PUBLIC "-//W3C//DTD XHTML 1.1//EN" '
+      '"http://www.w3.org/TR/xhtml11/DTD/xhtml11.dtd">\n'
+      '<html xmlns="http://www.w3.org/1999/xhtml" xml:lang="de">\n<head>\n'
+      '<title>Vereinsnachrichten &#8211; Sommerfest 2014</title>\n'
+      '<script type="text/javascript">//<![CDATA[\nvar x = 1 < 2;\n//]]></script>\n'
+      '</head>\n<body>\n<div id="menu"><a href="/">Start</a> <a href="/verein/">Verein</a> '
+      '<a href="/termine/">Termine</a></div>\n<h1>Sommerfest 2014</h1>\n']
+de = [
+    "Am kommenden Samstag findet auf dem Vereinsgelände unser traditionelles Sommerfest statt.",
+    "Für Speisen und Getränke ist gesorgt, und für die Kinder gibt es eine Hüpfburg sowie ein Kinderschminken.",
+    "Wir freuen uns über jede helfende Hand beim Aufbau am Freitagnachmittag ab 16 Uhr.",
+    "Bitte tragt euch in die Liste im Vereinsheim ein, damit wir besser planen können.",
+]
+for i in range(24):
+    xp.append("<p>%s <em>%s</em></p>\n" % (de[i % len(de)], de[(i + 1) % len(de)]))
+xp.append('<table><tr><th>Uhrzeit</th><th>Programm</th></tr>\n')
+for h in range(12, 23):
+    xp.append("<tr><td>%d:00</td><td>Programmpunkt %d</td></tr>\n" % (h, h))
+xp.append("</table>\n<p>Euer Vorstand</p>\n</body>\n</html>\n")
+xhtml = "".join(xp).encode("utf-8")
+
+pages = [
+    ("tiny", "http://blog.example.net/archives/2009/06/old-post.html",
+     "text/html; charset=iso-8859-1", tiny, ()),
+    ("boilerplate", "http://www.valleycourier.example.com/news/2014/07/22/council-transit-budget",
+     "text/html; charset=UTF-8", boilerplate, ()),
+    ("huge", "http://lists.example.org/pipermail/linux-devel/2014-July/thread.html",
+     "text/html", huge, ()),
+    ("cjk", "http://news.example.jp/local/20140722/library.html",
+     "text/html; charset=Shift_JIS", cjk, ("Content-Language: ja",)),
+    ("rtl", "http://www.example.com.eg/culture/festival-opening",
+     "text/html", rtl, ()),
+    ("xhtml", "http://www.sv-example.de/aktuelles/sommerfest-2014.xhtml",
+     "application/xhtml+xml; charset=utf-8", xhtml, ()),
+]
+
+out = io.BytesIO()
+def member(data):
+    out.write(gzip.compress(data, 9, mtime=0))
+member(warcinfo())
+for name, uri, ct, body, extra in pages:
+    print(name, len(body))
+    member(record(name, uri, DATE, ct, body, extra))
+path = os.path.join(os.path.dirname(os.path.abspath(__file__)),
+                    "resources", "org", "vorpus", "cctext", "pages.warc.gz")
+with open(path, "wb") as f:
+    f.write(out.getvalue())
+print("total", len(out.getvalue()))
@@ -0,0 +1,227 @@
+package org.vorpus.cctext;
+
+import java.util.List;
+import java.util.ArrayList;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+
+import java.net.URL;
+
+// Runs many archives through a single Driver at once, so that one JVM can
+// keep a whole machine busy instead of us having to start one JVM per core.
+//
+// Each archive is one task in a work-stealing ForkJoinPool. Archives vary
+// wildly in how much HTML they contain, so rather than carving up the list
+// ahead of time we just let idle workers steal whatever is left. All the
+// output goes through the one Driver, which takes care of merging stats and
+// serializing log writes, so the stats file ends up the same as if we had
+// processed the archives one after another. (The url-info lines from
+// different archives will be interleaved, though.)
+public class ArchiveEngine
+{
+    Driver driver;
+    ForkJoinPool pool;
+    // archives whose processing threw (see ArchiveTask)
+    final AtomicInteger failed = new AtomicInteger();
+
+    static final int DEFAULT_FETCH_THREADS = 8;
+
+    // If set, remote archives are read with RangedObjectInputStream; see
+    // setRangedFetch.
+    ExecutorService fetchers = null;
+    int rangeBytes = RangedObjectInputStream.DEFAULT_RANGE_BYTES;
+    int rangesAhead = RangedObjectInputStream.DEFAULT_RANGES_AHEAD;
+
+    public ArchiveEngine(Driver driver, int parallelism)
+    {
+        this.driver = driver;
+        this.pool = new ForkJoinPool(parallelism, workerThreads, null, false);
+    }
+
+    public ArchiveEngine(Driver driver)
+    {
+        this(driver, Runtime.getRuntime().availableProcessors());
+    }
+
+    public int getParallelism()
+    {
+        return pool.getParallelism();
+    }
+
+    // How many archives have failed so far, over every processAll().
+    public int failedArchives()
+    {
+        return failed.get();
+    }
+
+    // Reads remote archives (http(s):// and s3:// URLs) with threads
+    // concurrent ranged GETs, shared between all the archives, and each
+    // archive prefetching up to rangesAhead ranges of rangeBytes. s3://
+    // URLs always go this way; if this was never called, they get the
+    // defaults.
+    public synchronized void setRangedFetch(int threads, int rangeBytes,
+                                            int rangesAhead)
+    {
+        if (fetchers != null) {
+            fetchers.shutdown();
+            fetchers = null;
+        }
+        this.rangeBytes = rangeBytes;
+        this.rangesAhead = rangesAhead;
+        if (threads > 0) {
+            fetchers = Executors.newFixedThreadPool(
+                threads, Util.daemonThreadFactory("cctext-fetcher"));
+        }
+    }
+
+    synchronized ExecutorService fetchers(boolean required)
+    {
+        if (fetchers == null && required) {
+            setRangedFetch(DEFAULT_FETCH_THREADS, rangeBytes, rangesAhead);
+        }
+        return fetchers;
+    }
+
+    public InputStream openInput(String urlOrPath)
+        throws IOException
+    {
+        boolean s3 = urlOrPath.startsWith("s3://");
+        boolean remote = s3 || urlOrPath.startsWith("http://")
+            || urlOrPath.startsWith("https://");
+        ExecutorService rangeFetchers = remote ? fetchers(s3) : null;
+        if (rangeFetchers == null) {
+            return open(urlOrPath);
+        }
+        // already buffered, in big chunks
+        return new RangedObjectInputStream(
+            RangedObjectInputStream.fetcherFor(urlOrPath), rangeFetchers,
+            rangeBytes, rangesAhead,
+            RangedObjectInputStream.DEFAULT_MAX_ATTEMPTS);
+    }
+
+    public static InputStream open(String urlOrPath)
+        throws IOException
+    {
+        InputStream input;
+        if (urlOrPath.contains("://")) {
+            input = new URL(urlOrPath).openStream();
+        } else {
+            input = new FileInputStream(new File(urlOrPath));
+        }
+        return new BufferedInputStream(input, Driver.BUFFER_SIZE);
+    }
+
+    // Blocks until every archive has been processed. A failure in one
+    // archive (e.g. a truncated download) gets logged to the exception log
+    // and doesn't stop the others.
+    public void processAll(List<String> urlsOrPaths)
+        throws IOException
+    {
+        List<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>();
+        for (String urlOrPath : urlsOrPaths) {
+            tasks.add(pool.submit(new ArchiveTask(urlOrPath)));
+        }
+        try {
+            for (ForkJoinTask<Void> task : tasks) {
+                task.join();
+            }
+        } finally {
+            // join() can run a task right here if no worker has taken it
+            // yet, and then this thread has CLD2 buffers too
+            LanguageDetection.releaseThreadResources();
+        }
+        driver.flush();
+    }
+
+    // The pool's threads do language detection (unless the Driver has
+    // pipeline workers for that), so they have to free their CLD2 buffers
+    // when they go away -- see LanguageDetection.releaseThreadResources.
+    // That happens when the pool shuts down, or when a thread has been
+    // idle long enough for the pool to retire it.
+    static final ForkJoinPool.ForkJoinWorkerThreadFactory workerThreads =
+        new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                return new ArchiveWorker(pool);
+            }
+        };
+
+    static class ArchiveWorker extends ForkJoinWorkerThread
+    {
+        ArchiveWorker(ForkJoinPool pool)
+        {
+            super(pool);
+        }
+
+        protected void onTermination(Throwable exception)
+        {
+            try {
+                LanguageDetection.releaseThreadResources();
+            } finally {
+                super.onTermination(exception);
+            }
+        }
+    }
+
+    public synchronized void shutdown()
+    {
+        pool.shutdown();
+        if (fetchers != null) {
+            fetchers.shutdown();
+        }
+    }
+
+    class ArchiveTask extends RecursiveAction
+    {
+        String urlOrPath;
+
+        ArchiveTask(String urlOrPath)
+        {
+            this.urlOrPath = urlOrPath;
+        }
+
+        protected void compute()
+        {
+            try {
+                if (!urlOrPath.contains("://")) {
+                    driver.processLocalFile(urlOrPath);
+                    return;
+                }
+                InputStream input = openInput(urlOrPath);
+                try {
+                    driver.processAll(urlOrPath, input);
+                } finally {
+                    input.close();
+                    if (input instanceof RangedObjectInputStream) {
+                        RangedObjectInputStream ranged =
+                            (RangedObjectInputStream) input;
+                        driver.bumpStat("ranged-fetch-retries",
+                                        ranged.retries());
+                        driver.bumpStat("ranged-fetch-bytes",
+                                        ranged.bytesFetched());
+                    }
+                }
+            } catch (Throwable e) {
+                failed.incrementAndGet();
+                try {
+                    driver.logException(urlOrPath, -1, null, e);
+                } catch (Throwable e2) {
+                    System.err.println("Failed to log failure of "
+                                       + urlOrPath);
+                    e2.printStackTrace(System.err);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package org.vorpus.cctext;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import java.nio.ByteBuffer;
+
+// Remembers what CLD2 said about text blocks we've seen before.
+//
+// A lot of what TextExtractor emits is boilerplate that repeats on every
+// page of a site -- navigation, cookie banners, footers -- and there's no
+// point running CLD2 over it again and again. So we split each document into
+// its blocks (the lines of the extractor's output), look each one up by a
+// 64-bit hash of its UTF-8 (see Util.hash64), and only send the ones we
+// don't know to LanguageDetection. Afterwards, any new block that CLD2 put
+// entirely inside a single chunk gets remembered, along with its language
+// and its code point and word counts (so SpanStats doesn't have to count
+// them again either). Blocks that straddle chunks are never cached, since we
+// couldn't say what their one language is.
+//
+// The Result we hand back looks like one LanguageDetection would have
+// produced for the whole document: each cached block becomes a chunk of its
+// own, and the chunks CLD2 found in the new text are mapped back to where
+// that text really is. The document-level summary has to be rebuilt from
+// the chunks, though, so it's not exactly what CLD2 would have said:
+// - percents are by chunk bytes, and the top three languages are the three
+//   with the most bytes (padded with "un", like CLD2 does)
+// - normalized scores only exist for languages CLD2 saw in the new text
+//   (0 otherwise)
+// - isReliable is CLD2's verdict on the new text, or true if there wasn't
+//   any, since we only learn blocks from reliable documents.
+//
+// Short blocks ("Home", "Next >") aren't cached: CLD2 can't tell their
+// language by themselves, so whatever it said about them came from the
+// surrounding text, which is different on every page.
+//
+// The entries live in STRIPES independently locked LRU maps, picked by hash,
+// so threads mostly don't contend. The memory budget is approximate; see
+// ENTRY_BYTES.
+public class BlockLanguageCache
+{
+    static final int STRIPES = 16;
+    static final int MIN_BLOCK_BYTES = 32;
+    // What an entry costs on the heap, roughly: the LinkedHashMap entry
+    // (with its before/after links), the boxed Long key, the Entry, and a
+    // share of the table.
+    static final int ENTRY_BYTES = 120;
+    // CLD2's UNKNOWN_LANGUAGE ("un")
+    static final int UNKNOWN_LANGUAGE = 26;
+
+    public static class Entry
+    {
+        final int language;
+        final int codepoints;
+        final int words;
+
+        Entry(int language, int codepoints, int words)
+        {
+            this.language = language;
+            this.codepoints = codepoints;
+            this.words = words;
+        }
+    }
+
+    final List<LinkedHashMap<Long, Entry>> stripes =
+        new ArrayList<LinkedHashMap<Long, Entry>>(STRIPES);
+
+    final Stats.Counter hits;
+    final Stats.Counter misses;
+    final Stats.Counter hitBytes;
+    final Stats.Counter missBytes;
+    final Stats.Family outcomes;
+
+    public BlockLanguageCache(long maxBytes, Stats stats)
+    {
+        hits = stats.counter("block-cache-hits");
+        misses = stats.counter("block-cache-misses");
+        hitBytes = stats.counter("block-cache-hit-bytes");
+        missBytes = stats.counter("block-cache-miss-bytes");
+        // per document: "all-cached", "some-cached", or "none-cached"
+        outcomes = stats.family("block-cache-outcome");
+
+        final long maxEntries = Math.max(1, maxBytes / ENTRY_BYTES / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            // true -> iterate in access order, so the eldest entry is the
+            // least recently used one
+            stripes.add(new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+                    protected boolean removeEldestEntry(
+                        Map.Entry<Long, Entry> e) {
+                        return size() > maxEntries;
+                    }
+                });
+        }
+    }
+
+    LinkedHashMap<Long, Entry> stripe(long hash)
+    {
+        // the low bits go to the HashMap, so use the high ones here
+        return stripes.get((int) (hash >>> 60) & (STRIPES - 1));
+    }
+
+    public Entry get(long hash)
+    {
+        LinkedHashMap<Long, Entry> stripe = stripe(hash);
+        synchronized (stripe) {
+            return stripe.get(hash);
+        }
+    }
+
+    public void put(long hash, Entry entry)
+    {
+        LinkedHashMap<Long, Entry> stripe = stripe(hash);
+        synchronized (stripe) {
+            stripe.put(hash, entry);
+        }
+    }
+
+    public void clear()
+    {
+        for (LinkedHashMap<Long, Entry> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    // These two go down as well as up, so they're gauges (see Driver), not
+    // Stats counters, which would be added to the last run's on --resume.
+    public long size()
+    {
+        long size = 0;
+        for (LinkedHashMap<Long, Entry> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public long memoryBytes()
+    {
+        return size() * ENTRY_BYTES;
+    }
+
+    // Per-thread scratch space for detect().
+    static class Scratch
+    {
+        // block i is [starts[i], ends[i]) in the document, including its
+        // trailing newline; hashes[i] is of the text without the newline,
+        // and cached[i] is what we know about it (or null)
+        int[] starts = new int[256];
+        int[] ends = new int[256];
+        long[] hashes = new long[256];
+        Entry[] cached = new Entry[256];
+        // where each uncached block went in the residual document
+        int[] residualStarts = new int[256];
+        ByteBuffer residual = ByteBuffer.allocateDirect(64 * 1024);
+
+        void ensureBlocks(int n)
+        {
+            if (n > starts.length) {
+                int size = Math.max(n, 2 * starts.length);
+                starts = Arrays.copyOf(starts, size);
+                ends = Arrays.copyOf(ends, size);
+                hashes = Arrays.copyOf(hashes, size);
+                cached = Arrays.copyOf(cached, size);
+                residualStarts = Arrays.copyOf(residualStarts, size);
+            }
+        }
+
+        ByteBuffer residual(int size)
+        {
+            if (residual.capacity() < size) {
+                residual = ByteBuffer.allocateDirect(
+                    Math.max(size, 2 * residual.capacity()));
+            }
+            residual.clear();
+            return residual;
+        }
+    }
+
+    static final ThreadLocal<Scratch> scratches = new ThreadLocal<Scratch>() {
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    // Drop-in replacement for LanguageDetection.detect(ByteBuffer, ...); see
+    // above for how the result differs. As with that, the chunks are views
+    // on utf8, and only good for as long as its contents are.
+    public LanguageDetection.Result detect(ByteBuffer utf8,
+                                           Set<String> contentLanguageHints,
+                                           String tldHint)
+    {
+        Scratch scratch = scratches.get();
+        int base = utf8.position();
+        int limit = utf8.limit();
+
+        int numBlocks = 0;
+        int numCached = 0;
+        int residualSize = 0;
+        int start = base;
+        while (start < limit) {
+            int end = start;
+            while (end < limit && utf8.get(end) != '\n') {
+                end++;
+            }
+            int textEnd = end;
+            if (end < limit) {
+                end++;
+            }
+            scratch.ensureBlocks(numBlocks + 1);
+            scratch.starts[numBlocks] = start;
+            scratch.ends[numBlocks] = end;
+            scratch.cached[numBlocks] = null;
+            if (textEnd - start >= MIN_BLOCK_BYTES) {
+                long hash = Util.hash64(utf8, start, textEnd);
+                scratch.hashes[numBlocks] = hash;
+                scratch.cached[numBlocks] = get(hash);
+            }
+            if (scratch.cached[numBlocks] != null) {
+                numCached++;
+                hits.increment();
+                hitBytes.add(end - start);
+            } else {
+                if (textEnd - start >= MIN_BLOCK_BYTES) {
+                    misses.increment();
+                    missBytes.add(end - start);
+                }
+                residualSize += end - start;
+            }
+            numBlocks++;
+            start = end;
+        }
+
+        if (numCached == 0) {
+            outcomes.increment("none-cached");
+            LanguageDetection.Result result =
+                LanguageDetection.detect(utf8, contentLanguageHints, tldHint);
+            // the "residual" is the whole document, in place
+            for (int i = 0; i < numBlocks; i++) {
+                scratch.residualStarts[i] = scratch.starts[i];
+            }
+            learn(scratch, numBlocks, utf8, result);
+            return result;
+        }
+
+        LanguageDetection.Result detected = null;
+        if (numCached < numBlocks) {
+            outcomes.increment("some-cached");
+            // The new blocks, back to back. Since they each keep their
+            // newline, CLD2 sees the same text it would have, minus the
+            // blocks we already know.
+            ByteBuffer residual = scratch.residual(residualSize);
+            for (int i = 0; i < numBlocks; i++) {
+                if (scratch.cached[i] == null) {
+                    scratch.residualStarts[i] = residual.position();
+                    ByteBuffer block = utf8.duplicate();
+                    block.limit(scratch.ends[i]);
+                    block.position(scratch.starts[i]);
+                    residual.put(block);
+                }
+            }
+            residual.flip();
+            detected = LanguageDetection.detect(residual,
+                                                contentLanguageHints,
+                                                tldHint);
+            learn(scratch, numBlocks, residual, detected);
+        } else {
+            outcomes.increment("all-cached");
+        }
+        return merge(scratch, numBlocks, utf8, detected);
+    }
+
+    // Caches each uncached block that lies inside a single chunk of
+    // detected, which was run over doc, where block i starts at
+    // residualStarts[i].
+    void learn(Scratch scratch, int numBlocks, ByteBuffer doc,
+               LanguageDetection.Result detected)
+    {
+        if (!detected.isReliable) {
+            return;
+        }
+        int docBase = doc.position();
+        int chunk = detected._chunkStart;
+        for (int i = 0; i < numBlocks; i++) {
+            if (scratch.cached[i] != null) {
+                continue;
+            }
+            int length = scratch.ends[i] - scratch.starts[i];
+            int start = scratch.residualStarts[i] - docBase;
+            int end = start + length;
+            // the newline doesn't have to be in the chunk
+            int blockTextLength = length;
+            if (doc.get(docBase + end - 1) == '\n') {
+                blockTextLength--;
+            }
+            if (blockTextLength < MIN_BLOCK_BYTES) {
+                continue;
+            }
+            // chunks are in order, and so are the blocks
+            while (chunk < detected._chunkEnd
+                   && detected._chunkOffsets[chunk]
+                      + detected._chunkLengths[chunk] <= start) {
+                chunk++;
+            }
+            if (chunk == detected._chunkEnd) {
+                break;
+            }
+            int chunkStart = detected._chunkOffsets[chunk];
+            int chunkEnd = chunkStart + detected._chunkLengths[chunk];
+            if (chunkStart <= start && start + blockTextLength <= chunkEnd) {
+                int from = docBase + start;
+                int to = from + blockTextLength;
+                put(scratch.hashes[i],
+                    new Entry(detected._chunkLanguages[chunk],
+                              Util.codePointCount(doc, from, to),
+                              Util.wordCount(doc, from, to)));
+            }
+        }
+    }
+
+    LanguageDetection.Result merge(Scratch scratch, int numBlocks,
+                                   ByteBuffer utf8,
+                                   LanguageDetection.Result detected)
+    {
+        int base = utf8.position();
+        int maxChunks = numBlocks;
+        if (detected != null) {
+            maxChunks += detected.numChunks() + numBlocks;
+        }
+        int[] offsets = new int[maxChunks];
+        int[] lengths = new int[maxChunks];
+        int[] languages = new int[maxChunks];
+        int[] codepoints = new int[maxChunks];
+        int[] words = new int[maxChunks];
+        int n = 0;
+
+        int chunk = detected == null ? 0 : detected._chunkStart;
+        for (int i = 0; i < numBlocks; i++) {
+            Entry entry = scratch.cached[i];
+            if (entry != null) {
+                offsets[n] = scratch.starts[i] - base;
+                lengths[n] = scratch.ends[i] - scratch.starts[i];
+                languages[n] = entry.language;
+                codepoints[n] = entry.codepoints;
+                words[n] = entry.words;
+                if (utf8.get(scratch.ends[i] - 1) == '\n') {
+                    // the entry's counts are without the newline
+                    codepoints[n]++;
+                }
+                n++;
+                continue;
+            }
+            // Cut CLD2's chunks at the edges of this block, and move the
+            // pieces back to where the block is in utf8.
+            int start = scratch.residualStarts[i];
+            int end = start + scratch.ends[i] - scratch.starts[i];
+            while (chunk < detected._chunkEnd) {
+                int chunkStart = detected._chunkOffsets[chunk];
+                int chunkEnd = chunkStart + detected._chunkLengths[chunk];
+                if (chunkStart >= end) {
+                    break;
+                }
+                int from = Math.max(chunkStart, start);
+                int to = Math.min(chunkEnd, end);
+                if (from < to) {
+                    offsets[n] = scratch.starts[i] - base + (from - start);
+                    lengths[n] = to - from;
+                    languages[n] = detected._chunkLanguages[chunk];
+                    // not counted yet
+                    codepoints[n] = -1;
+                    words[n] = -1;
+                    n++;
+                }
+                if (chunkEnd > end) {
+                    // carries on into the next block
+                    break;
+                }
+                chunk++;
+            }
+        }
+
+        LanguageDetection.Result result = new LanguageDetection.Result();
+        result._utf8 = utf8.duplicate();
+        result._chunkOffsets = offsets;
+        result._chunkLengths = lengths;
+        result._chunkLanguages = languages;
+        result._chunkStart = 0;
+        result._chunkEnd = n;
+        result._chunkCodepoints = codepoints;
+        result._chunkWords = words;
+        summarize(result, detected);
+        return result;
+    }
+
+    // Fills in result's document-level fields from its chunks.
+    static void summarize(LanguageDetection.Result result,
+                          LanguageDetection.Result detected)
+    {
+        // language -> bytes, for the (few) languages that appear
+        int[] chunkLanguages = new int[result.numChunks()];
+        long[] bytes = new long[result.numChunks()];
+        int numLanguages = 0;
+        long total = 0;
+        for (int i = result._chunkStart; i < result._chunkEnd; i++) {
+            int language = result._chunkLanguages[i];
+            int j = 0;
+            while (j < numLanguages && chunkLanguages[j] != language) {
+                j++;
+            }
+            if (j == numLanguages) {
+                chunkLanguages[numLanguages++] = language;
+            }
+            bytes[j] += result._chunkLengths[i];
+            total += result._chunkLengths[i];
+        }
+
+        result.languages = new String[3];
+        result.percents = new int[3];
+        result.normalizedScores = new double[3];
+        for (int k = 0; k < 3; k++) {
+            int best = -1;
+            for (int j = 0; j < numLanguages; j++) {
+                if (bytes[j] >= 0 && (best < 0 || bytes[j] > bytes[best])) {
+                    best = j;
+                }
+            }
+            if (best < 0) {
+                result.languages[k] =
+                    LanguageDetection.languageCode(UNKNOWN_LANGUAGE);
+                continue;
+            }
+            String code = LanguageDetection.languageCode(chunkLanguages[best]);
+            result.languages[k] = code;
+            result.percents[k] = (int) (100 * bytes[best] / total);
+            if (detected != null) {
+                for (int m = 0; m < 3; m++) {
+                    if (code.equals(detected.languages[m])) {
+                        result.normalizedScores[k] =
+                            detected.normalizedScores[m];
+                    }
+                }
+            }
+            // used up
+            bytes[best] = -1;
+        }
+        result.isReliable = detected == null || detected.isReliable;
+    }
+}
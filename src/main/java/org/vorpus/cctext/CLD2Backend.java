@@ -0,0 +1,57 @@
+package org.vorpus.cctext;
+
+import java.nio.ByteBuffer;
+
+// The native half of LanguageDetection: something that can call
+// CLD2Wrap_detect_batch (see cld2wrap.h). There are two: CLD2BridJ, which
+// works anywhere, and CLD2Foreign (in src/ffm), which uses java.lang.foreign
+// and so needs Java 22.
+//
+// Each thread gets its own instance (see LanguageDetection.backends), so
+// implementations can keep native buffers around between calls without
+// any locking. A call goes setDocuments, setHints, then detect as many
+// times as it takes.
+interface CLD2Backend
+{
+    // What one detect() call found, copied back into Java arrays. Only the
+    // first (number of documents done) entries are meaningful, and the
+    // chunk arrays are indexed by chunkStarts, which start from 0 on every
+    // call.
+    static class Output
+    {
+        int[] languages;
+        int[] percents;
+        double[] normalizedScores;
+        int[] isReliable;
+        int[] chunkStarts;
+        int[] chunkOffsets;
+        int[] chunkLengths;
+        int[] chunkLanguages;
+    }
+
+    // Document i is utf8[i], which gets copied into native memory at
+    // docOffsets[i].
+    void setDocuments(byte[][] utf8, int[] docOffsets);
+
+    // Document i is direct[docOffsets[i] .. docOffsets[i + 1]) (absolute
+    // indices, ignoring direct's position), used where it is.
+    void setDocuments(ByteBuffer direct, int[] docOffsets);
+
+    // Hint strings, packed as by LanguageDetection.HintPacker.
+    void setHints(byte[] hintBytes, int hintLength,
+                  int[] contentLanguageHintOffsets, int[] tldHintOffsets);
+
+    // Runs documents [start, start + count); returns how many it got
+    // through before running out of room for chunks.
+    int detect(int start, int count, int maxChunks, Output out);
+
+    String languageCode(int language);
+
+    // "bridj" or "ffm"
+    String name();
+
+    // Frees the native memory now, rather than whenever the GC gets to it
+    // (or, for CLD2Foreign, never). Must be called from the owning thread;
+    // see LanguageDetection.releaseThreadResources.
+    void close();
+}
@@ -0,0 +1,187 @@
+package org.vorpus.cctext;
+
+import java.nio.ByteBuffer;
+
+import org.bridj.Pointer;
+import static org.bridj.Pointer.*;
+import static org.vorpus.cld2wrap.CLD2wrapBatchLibrary.*;
+
+// CLD2Backend via BridJ.
+//
+// Allocating and freeing native memory is slow, so we only ever grow our
+// buffers. When we do, the old ones are released right away rather than
+// left for the GC.
+class CLD2BridJ implements CLD2Backend
+{
+    Pointer<Byte> ownBytes;
+    Pointer<Byte> bytes;
+    Pointer<Integer> docOffsets;
+    Pointer<Byte> hintBytes;
+    Pointer<Integer> contentLanguageHintOffsets;
+    Pointer<Integer> tldHintOffsets;
+
+    Pointer<Integer> languages;
+    Pointer<Integer> percents;
+    Pointer<Double> normalizedScores;
+    Pointer<Integer> isReliable;
+    Pointer<Integer> textBytes;
+    Pointer<Integer> chunkStarts;
+    Pointer<Integer> chunkOffsets;
+    Pointer<Integer> chunkLengths;
+    Pointer<Integer> chunkLanguages;
+
+    static Pointer<Byte> growBytes(Pointer<Byte> p, long n)
+    {
+        // BridJ doesn't like zero-sized allocations
+        n = Math.max(n, 1);
+        if (p != null && p.getValidElements() >= n) {
+            return p;
+        }
+        long size = Math.max(n, p == null ? 0 : 2 * p.getValidElements());
+        if (p != null) {
+            p.release();
+        }
+        return allocateBytes(size);
+    }
+
+    static Pointer<Integer> growInts(Pointer<Integer> p, long n)
+    {
+        n = Math.max(n, 1);
+        if (p != null && p.getValidElements() >= n) {
+            return p;
+        }
+        long size = Math.max(n, p == null ? 0 : 2 * p.getValidElements());
+        if (p != null) {
+            p.release();
+        }
+        return allocateInts(size);
+    }
+
+    static Pointer<Double> growDoubles(Pointer<Double> p, long n)
+    {
+        n = Math.max(n, 1);
+        if (p != null && p.getValidElements() >= n) {
+            return p;
+        }
+        long size = Math.max(n, p == null ? 0 : 2 * p.getValidElements());
+        if (p != null) {
+            p.release();
+        }
+        return allocateDoubles(size);
+    }
+
+    public void setDocuments(byte[][] utf8, int[] offsets)
+    {
+        int numDocs = utf8.length;
+        ownBytes = growBytes(ownBytes, offsets[numDocs]);
+        for (int i = 0; i < numDocs; i++) {
+            ownBytes.setBytesAtOffset(offsets[i], utf8[i]);
+        }
+        bytes = ownBytes;
+        setOffsets(offsets);
+    }
+
+    public void setDocuments(ByteBuffer direct, int[] offsets)
+    {
+        // pointerToBytes always points at the start of the buffer,
+        // whatever its position.
+        bytes = pointerToBytes(direct);
+        setOffsets(offsets);
+    }
+
+    void setOffsets(int[] offsets)
+    {
+        docOffsets = growInts(docOffsets, offsets.length);
+        docOffsets.setInts(offsets);
+    }
+
+    public void setHints(byte[] hints, int hintLength,
+                         int[] contentLanguageOffsets, int[] tldOffsets)
+    {
+        int numDocs = contentLanguageOffsets.length;
+        hintBytes = growBytes(hintBytes, hintLength);
+        hintBytes.setBytesAtOffset(0, hints, 0, hintLength);
+        contentLanguageHintOffsets =
+            growInts(contentLanguageHintOffsets, numDocs);
+        contentLanguageHintOffsets.setInts(contentLanguageOffsets);
+        tldHintOffsets = growInts(tldHintOffsets, numDocs);
+        tldHintOffsets.setInts(tldOffsets);
+    }
+
+    public int detect(int start, int count, int maxChunks, Output out)
+    {
+        languages = growInts(languages, 3 * count);
+        percents = growInts(percents, 3 * count);
+        normalizedScores = growDoubles(normalizedScores, 3 * count);
+        isReliable = growInts(isReliable, count);
+        textBytes = growInts(textBytes, count);
+        chunkStarts = growInts(chunkStarts, count + 1);
+        chunkOffsets = growInts(chunkOffsets, maxChunks);
+        chunkLengths = growInts(chunkLengths, maxChunks);
+        chunkLanguages = growInts(chunkLanguages, maxChunks);
+
+        int done = CLD2Wrap_detect_batch(
+            bytes,
+            docOffsets.next(start),
+            count,
+            true,
+            hintBytes,
+            contentLanguageHintOffsets.next(start),
+            tldHintOffsets.next(start),
+            languages,
+            percents,
+            normalizedScores,
+            isReliable,
+            textBytes,
+            chunkStarts,
+            chunkOffsets,
+            chunkLengths,
+            chunkLanguages,
+            maxChunks);
+        if (done == 0) {
+            return 0;
+        }
+
+        out.languages = languages.getIntsAtOffset(0, 3 * done);
+        out.percents = percents.getIntsAtOffset(0, 3 * done);
+        out.normalizedScores = normalizedScores.getDoublesAtOffset(0,
+                                                                   3 * done);
+        out.isReliable = isReliable.getIntsAtOffset(0, done);
+        out.chunkStarts = chunkStarts.getIntsAtOffset(0, done + 1);
+        int numChunks = out.chunkStarts[done];
+        out.chunkOffsets = chunkOffsets.getIntsAtOffset(0, numChunks);
+        out.chunkLengths = chunkLengths.getIntsAtOffset(0, numChunks);
+        out.chunkLanguages = chunkLanguages.getIntsAtOffset(0, numChunks);
+        return done;
+    }
+
+    public String languageCode(int language)
+    {
+        return CLD2Wrap_language_code(language).getCString();
+    }
+
+    public String name()
+    {
+        return "bridj";
+    }
+
+    public void close()
+    {
+        // bytes may be pointing into someone else's direct buffer, which
+        // isn't ours to release.
+        for (Pointer<?> p : new Pointer<?>[] {
+                ownBytes, docOffsets, hintBytes,
+                contentLanguageHintOffsets, tldHintOffsets,
+                languages, percents, normalizedScores, isReliable, textBytes,
+                chunkStarts, chunkOffsets, chunkLengths, chunkLanguages }) {
+            if (p != null) {
+                p.release();
+            }
+        }
+        ownBytes = bytes = hintBytes = null;
+        docOffsets = contentLanguageHintOffsets = tldHintOffsets = null;
+        languages = percents = isReliable = textBytes = null;
+        chunkStarts = chunkOffsets = chunkLengths = chunkLanguages = null;
+        normalizedScores = null;
+    }
+}
@@ -0,0 +1,555 @@
+package org.vorpus.cctext;
+
+import java.io.InputStream;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import org.mozilla.intl.chardet.nsDetector;
+import org.mozilla.intl.chardet.nsPSMDetector;
+import org.mozilla.intl.chardet.nsICharsetDetectionObserver;
+
+// Figures out what encoding an HTML page is in before we hand it to the
+// parser. If we don't tell the parser, it has to guess for itself, and if it
+// then runs into a <meta charset> it may throw away everything it's decoded
+// so far and start again. (And the fast extraction path won't even try
+// without an encoding.)
+//
+// We look at, in order:
+// - a byte order mark
+// - the charset= from the HTTP Content-Type header
+// - a <meta charset> or <meta http-equiv=content-type> in the first
+//   PRESCAN_BYTES, found by a cut-down version of the HTML5 "prescan"
+//   algorithm
+// - whatever we last saw confirmed (by one of the above) for the same host
+// - if the whole page is pure ASCII, then it doesn't matter; we say
+//   windows-1252, which is what browsers assume
+// - jchardet, run over the first SNIFF_BYTES (unless they're all ASCII,
+//   in which case it can't tell us anything)
+// and if all of that fails we return null, and leave it to the parser.
+//
+// Everything here only looks at a bounded prefix of the document; the
+// InputStream version uses mark/reset, so the parser still sees the whole
+// thing.
+public class CharsetResolver
+{
+    static final int PRESCAN_BYTES = 4 * 1024;
+    static final int SNIFF_BYTES = 16 * 1024;
+    static final int DEFAULT_MAX_HOSTS = 10000;
+    static final int STRIPES = 16;
+
+    public static class Resolution
+    {
+        // null if we couldn't tell
+        public String charset;
+        // "bom", "header", "meta", "host-cache", "ascii", "detected", or
+        // "unknown"
+        public String source;
+
+        Resolution(String charset, String source)
+        {
+            this.charset = charset;
+            this.source = source;
+        }
+    }
+
+    // LRU map from host -> last confirmed charset, split into STRIPES
+    // independently locked maps (picked by hash) so that the worker
+    // threads mostly don't contend on it. Each stripe holds its share of
+    // maxHosts, so the LRU-ness is only approximate.
+    final List<LinkedHashMap<String, String>> hostCache =
+        new ArrayList<LinkedHashMap<String, String>>(STRIPES);
+
+    public CharsetResolver()
+    {
+        this(DEFAULT_MAX_HOSTS);
+    }
+
+    public CharsetResolver(final int maxHosts)
+    {
+        final int maxPerStripe = Math.max(1, maxHosts / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            // true -> iterate in access order, so the eldest entry is the
+            // least recently used one
+            hostCache.add(new LinkedHashMap<String, String>(16, 0.75f, true) {
+                    protected boolean removeEldestEntry(
+                        Map.Entry<String, String> e) {
+                        return size() > maxPerStripe;
+                    }
+                });
+        }
+    }
+
+    LinkedHashMap<String, String> stripe(String host)
+    {
+        // scramble the hash and take the top bits; the low ones are what
+        // the LinkedHashMap uses
+        return hostCache.get((host.hashCode() * 0x9e3779b9) >>> 28);
+    }
+
+    // The sniffing buffer; reused, since we only ever need it for the
+    // duration of a single resolve() call.
+    static final ThreadLocal<byte[]> sniffBuffers = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[SNIFF_BYTES + 1];
+        }
+    };
+
+    // resolve() needs to be able to rewind the stream; if this one can't,
+    // wrap it in something that can. Use the returned stream from then on.
+    public static InputStream markable(InputStream stream)
+    {
+        if (stream.markSupported()) {
+            return stream;
+        }
+        return new BufferedInputStream(stream, SNIFF_BYTES + 1);
+    }
+
+    // stream must be markable (see markable()); it's left positioned where
+    // it started.
+    public Resolution resolve(InputStream stream, String headerCharset,
+                              String host)
+        throws IOException
+    {
+        byte[] buf = sniffBuffers.get();
+        // One extra byte, so we can tell whether we saw the whole thing.
+        int limit = SNIFF_BYTES + 1;
+        stream.mark(limit);
+        int length = 0;
+        try {
+            while (length < limit) {
+                int n = stream.read(buf, length, limit - length);
+                if (n < 0) {
+                    break;
+                }
+                length += n;
+            }
+        } finally {
+            stream.reset();
+        }
+        return resolve(buf, 0, length, headerCharset, host);
+    }
+
+    public Resolution resolve(byte[] buf, int off, int len,
+                              String headerCharset, String host)
+    {
+        boolean complete = len <= SNIFF_BYTES;
+        len = Math.min(len, SNIFF_BYTES);
+
+        String charset = fromBOM(buf, off, len);
+        if (charset != null) {
+            return confirmed(host, charset, "bom");
+        }
+        charset = supportedOrNull(headerCharset);
+        if (charset != null) {
+            return confirmed(host, charset, "header");
+        }
+        charset = prescan(buf, off, Math.min(len, PRESCAN_BYTES));
+        if (charset != null) {
+            return confirmed(host, charset, "meta");
+        }
+        if (host != null) {
+            LinkedHashMap<String, String> stripe = stripe(host);
+            synchronized (stripe) {
+                charset = stripe.get(host);
+            }
+            if (charset != null) {
+                return new Resolution(charset, "host-cache");
+            }
+        }
+        if (isAscii(buf, off, len)) {
+            if (complete) {
+                return new Resolution("windows-1252", "ascii");
+            }
+            return new Resolution(null, "unknown");
+        }
+        charset = detect(buf, off, len);
+        if (charset != null) {
+            return new Resolution(charset, "detected");
+        }
+        return new Resolution(null, "unknown");
+    }
+
+    Resolution confirmed(String host, String charset, String source)
+    {
+        if (host != null) {
+            LinkedHashMap<String, String> stripe = stripe(host);
+            synchronized (stripe) {
+                stripe.put(host, charset);
+            }
+        }
+        return new Resolution(charset, source);
+    }
+
+    public int cachedHosts()
+    {
+        int size = 0;
+        for (LinkedHashMap<String, String> stripe : hostCache) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    static String fromBOM(byte[] buf, int off, int len)
+    {
+        if (len >= 3 && (buf[off] & 0xff) == 0xef
+            && (buf[off + 1] & 0xff) == 0xbb
+            && (buf[off + 2] & 0xff) == 0xbf) {
+            return "UTF-8";
+        }
+        if (len >= 2 && (buf[off] & 0xff) == 0xfe
+            && (buf[off + 1] & 0xff) == 0xff) {
+            return "UTF-16BE";
+        }
+        if (len >= 2 && (buf[off] & 0xff) == 0xff
+            && (buf[off + 1] & 0xff) == 0xfe) {
+            return "UTF-16LE";
+        }
+        return null;
+    }
+
+    // Returns the name as given (the parser has its own ideas about what
+    // some labels mean, so we don't canonicalize), if Java knows this
+    // charset at all; else null.
+    static String supportedOrNull(String name)
+    {
+        if (HTMLToText.charsetOrNull(name) == null) {
+            return null;
+        }
+        return name.trim();
+    }
+
+    // What a <meta> declares is subject to a couple of overrides, because
+    // a page that can declare its own encoding in ASCII can't actually be
+    // UTF-16.
+    static String metaCharset(String name)
+    {
+        Charset charset = HTMLToText.charsetOrNull(name);
+        if (charset == null) {
+            return null;
+        }
+        if (charset.name().startsWith("UTF-16")) {
+            return "UTF-8";
+        }
+        return name.trim();
+    }
+
+    static boolean isAscii(byte[] buf, int off, int len)
+    {
+        for (int i = off; i < off + len; i++) {
+            if (buf[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String detect(byte[] buf, int off, int len)
+    {
+        final String[] found = new String[1];
+        nsDetector detector = new nsDetector(nsPSMDetector.ALL);
+        detector.Init(new nsICharsetDetectionObserver() {
+                public void Notify(String charset) {
+                    found[0] = charset;
+                }
+            });
+        byte[] data = buf;
+        if (off != 0) {
+            data = new byte[len];
+            System.arraycopy(buf, off, data, 0, len);
+        }
+        detector.DoIt(data, len, false);
+        detector.DataEnd();
+        if (found[0] == null) {
+            // No definite answer; take its best guess. UTF-16 is always
+            // in the running, but a page whose markup we could read as
+            // ASCII can't be UTF-16 (and with a BOM we wouldn't be here).
+            for (String candidate : detector.getProbableCharsets()) {
+                if (!candidate.startsWith("UTF-16")
+                    && !candidate.equals("nomatch")) {
+                    found[0] = candidate;
+                    break;
+                }
+            }
+        }
+        return supportedOrNull(found[0]);
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // The <meta> prescan
+    //
+    // Roughly https://html.spec.whatwg.org/#prescan-a-byte-stream-to-determine-its-encoding
+    // but with less fussing over edge cases: we skip comments, look at the
+    // attributes of every <meta>, and step over every other tag.
+
+    static String prescan(byte[] buf, int off, int len)
+    {
+        Prescanner scanner = new Prescanner(buf, off, off + len);
+        return scanner.run();
+    }
+
+    static class Prescanner
+    {
+        byte[] buf;
+        int pos;
+        int end;
+        // filled in by attribute()
+        String attrName;
+        String attrValue;
+
+        Prescanner(byte[] buf, int start, int end)
+        {
+            this.buf = buf;
+            this.pos = start;
+            this.end = end;
+        }
+
+        String run()
+        {
+            while (pos < end) {
+                if (buf[pos] != '<') {
+                    pos++;
+                } else if (startsWith("<!--")) {
+                    int close = indexOf("-->", pos + 4);
+                    if (close < 0) {
+                        return null;
+                    }
+                    pos = close + 3;
+                } else if (startsWithIgnoreCase("<meta")
+                           && pos + 5 < end && isSpaceOrSlash(buf[pos + 5])) {
+                    pos += 5;
+                    String charset = meta();
+                    if (charset != null) {
+                        return charset;
+                    }
+                } else if (pos + 1 < end && (isLetter(buf[pos + 1])
+                                             || (buf[pos + 1] == '/'
+                                                 && pos + 2 < end
+                                                 && isLetter(buf[pos + 2])))) {
+                    // Some other tag: skip its name, then its attributes
+                    // (so a '>' inside a quoted value doesn't fool us).
+                    pos++;
+                    while (pos < end && !isSpaceOrSlash(buf[pos])
+                           && buf[pos] != '>') {
+                        pos++;
+                    }
+                    while (attribute()) {
+                    }
+                } else if (startsWith("<!") || startsWith("</")
+                           || startsWith("<?")) {
+                    int close = indexOf(">", pos + 2);
+                    if (close < 0) {
+                        return null;
+                    }
+                    pos = close + 1;
+                } else {
+                    pos++;
+                }
+            }
+            return null;
+        }
+
+        // Just after "<meta"; returns the declared charset if this <meta>
+        // declares one we support.
+        String meta()
+        {
+            boolean httpEquivContentType = false;
+            String content = null;
+            String charset = null;
+            while (attribute()) {
+                if (attrName.equals("http-equiv")) {
+                    httpEquivContentType =
+                        attrValue.equalsIgnoreCase("content-type");
+                } else if (attrName.equals("content") && content == null) {
+                    content = attrValue;
+                } else if (attrName.equals("charset") && charset == null) {
+                    charset = attrValue;
+                }
+            }
+            if (charset != null) {
+                return metaCharset(charset);
+            }
+            if (httpEquivContentType && content != null) {
+                return metaCharset(charsetFromContent(content));
+            }
+            return null;
+        }
+
+        // Reads one attribute into attrName/attrValue (name lowercased).
+        // Returns false at the end of the tag (or the buffer).
+        boolean attribute()
+        {
+            while (pos < end && (isSpace(buf[pos]) || buf[pos] == '/')) {
+                pos++;
+            }
+            if (pos >= end) {
+                return false;
+            }
+            if (buf[pos] == '>') {
+                pos++;
+                return false;
+            }
+            int nameStart = pos;
+            while (pos < end && !isSpace(buf[pos]) && buf[pos] != '='
+                   && buf[pos] != '>' && buf[pos] != '/') {
+                pos++;
+            }
+            attrName = ascii(nameStart, pos).toLowerCase();
+            attrValue = "";
+            while (pos < end && isSpace(buf[pos])) {
+                pos++;
+            }
+            if (pos >= end || buf[pos] != '=') {
+                return pos < end;
+            }
+            pos++;
+            while (pos < end && isSpace(buf[pos])) {
+                pos++;
+            }
+            if (pos >= end) {
+                return false;
+            }
+            byte quote = buf[pos];
+            if (quote == '"' || quote == '\'') {
+                int close = pos + 1;
+                while (close < end && buf[close] != quote) {
+                    close++;
+                }
+                if (close >= end) {
+                    pos = end;
+                    return false;
+                }
+                attrValue = ascii(pos + 1, close);
+                pos = close + 1;
+            } else {
+                int valueStart = pos;
+                while (pos < end && !isSpace(buf[pos]) && buf[pos] != '>') {
+                    pos++;
+                }
+                attrValue = ascii(valueStart, pos);
+            }
+            return true;
+        }
+
+        String ascii(int start, int stop)
+        {
+            // Anything non-ASCII can't be part of a name we care about, and
+            // ISO-8859-1 maps bytes 1:1 onto chars.
+            return new String(buf, start, stop - start,
+                              StandardCharsets.ISO_8859_1);
+        }
+
+        boolean startsWith(String s)
+        {
+            if (pos + s.length() > end) {
+                return false;
+            }
+            for (int i = 0; i < s.length(); i++) {
+                if (buf[pos + i] != s.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean startsWithIgnoreCase(String s)
+        {
+            if (pos + s.length() > end) {
+                return false;
+            }
+            for (int i = 0; i < s.length(); i++) {
+                if (Character.toLowerCase((char) buf[pos + i])
+                    != s.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int indexOf(String s, int from)
+        {
+            for (int i = from; i + s.length() <= end; i++) {
+                boolean match = true;
+                for (int j = 0; j < s.length(); j++) {
+                    if (buf[i + j] != s.charAt(j)) {
+                        match = false;
+                        break;
+                    }
+                }
+                if (match) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // The "algorithm for extracting a character encoding from a meta
+    // element": find "charset", skip spaces, "=", spaces, then take the
+    // (possibly quoted) value.
+    static String charsetFromContent(String content)
+    {
+        String lower = content.toLowerCase();
+        int from = 0;
+        while (true) {
+            int i = lower.indexOf("charset", from);
+            if (i < 0) {
+                return null;
+            }
+            i += "charset".length();
+            while (i < lower.length() && isSpace((byte) lower.charAt(i))) {
+                i++;
+            }
+            if (i >= lower.length() || lower.charAt(i) != '=') {
+                from = i;
+                continue;
+            }
+            i++;
+            while (i < lower.length() && isSpace((byte) lower.charAt(i))) {
+                i++;
+            }
+            if (i >= lower.length()) {
+                return null;
+            }
+            char quote = content.charAt(i);
+            if (quote == '"' || quote == '\'') {
+                int close = content.indexOf(quote, i + 1);
+                if (close < 0) {
+                    return null;
+                }
+                return content.substring(i + 1, close);
+            }
+            int stop = i;
+            while (stop < content.length()
+                   && !isSpace((byte) content.charAt(stop))
+                   && content.charAt(stop) != ';') {
+                stop++;
+            }
+            return content.substring(i, stop);
+        }
+    }
+
+    static boolean isSpace(byte b)
+    {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\f' || b == '\r';
+    }
+
+    static boolean isSpaceOrSlash(byte b)
+    {
+        return isSpace(b) || b == '/';
+    }
+
+    static boolean isLetter(byte b)
+    {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+}
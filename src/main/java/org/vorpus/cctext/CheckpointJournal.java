@@ -0,0 +1,151 @@
+package org.vorpus.cctext;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+
+// How far we've got through each archive, so that a run that dies part-way
+// through a big .warc.gz can pick up where it left off instead of starting
+// again (see Driver.setCheckpoints).
+//
+// There's one small JSON file per archive in the journal directory, replaced
+// atomically (Util.writeFileAtomically) each time the Driver flushes its
+// output. It holds the offset of the last record we committed -- for
+// compressed archives that's the offset of its gzip member, which is a
+// place a reader can start from. Everything the checkpoint vouches for has
+// been flushed before it's written, so after a crash we may redo the
+// records after it, but never skip one.
+//
+// The stats aren't per archive, so they go in one more file, DRIVER_FILE,
+// along with a copy of the checkpoint of every archive the flush covered.
+// That's written last, and is what makes the flush count: on resume, an
+// archive it lists carries on from there, even if its own file got further
+// before the crash, so the stats we restore and the records we redo always
+// match up. Archives it doesn't list finished (or failed) in an earlier
+// flush, and their own file has their last word -- unless that file is
+// newer than DRIVER_FILE, i.e. from a flush that never finished, in which
+// case we start the archive again.
+public class CheckpointJournal
+{
+    public static class Checkpoint
+    {
+        public String archive;
+        // of the last committed record; -1 if none yet
+        public long offset = -1;
+        public long records = 0;
+        public boolean complete = false;
+        public long time;
+    }
+
+    static final String DRIVER_FILE = "driver.checkpoint";
+
+    public static class DriverCheckpoint
+    {
+        public long time;
+        public Map<String, Object> stats;
+        public List<Checkpoint> archives;
+    }
+
+    final File directory;
+    final Gson gson = new Gson();
+    // what DRIVER_FILE said when we started; null if there wasn't one
+    final DriverCheckpoint previous;
+
+    public CheckpointJournal(File directory)
+        throws IOException
+    {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can't create " + directory);
+        }
+        File file = new File(directory, DRIVER_FILE);
+        if (file.exists()) {
+            previous = gson.fromJson(readString(file),
+                                     DriverCheckpoint.class);
+            if (previous == null || previous.archives == null) {
+                throw new IOException(file + " isn't a checkpoint");
+            }
+        } else {
+            previous = null;
+        }
+    }
+
+    static String readString(File file)
+        throws IOException
+    {
+        return new String(Files.readAllBytes(file.toPath()),
+                          StandardCharsets.UTF_8);
+    }
+
+    // The stats as of the last flush of the previous run; null if none.
+    public Map<String, Object> previousStats()
+    {
+        return previous == null ? null : previous.stats;
+    }
+
+    // Archive ids are URLs or paths; we want something readable that's
+    // still unique.
+    File fileFor(String archive)
+    {
+        String name = archive.substring(archive.lastIndexOf('/') + 1)
+            .replaceAll("[^A-Za-z0-9._-]", "_");
+        byte[] id = archive.getBytes(StandardCharsets.UTF_8);
+        return new File(directory,
+                        String.format("%s-%016x.checkpoint", name,
+                                      Util.hash64(id, 0, id.length)));
+    }
+
+    // Where the previous run got to with archive; null if we've never
+    // checkpointed it.
+    public Checkpoint read(String archive)
+        throws IOException
+    {
+        if (previous != null) {
+            for (Checkpoint checkpoint : previous.archives) {
+                if (archive.equals(checkpoint.archive)) {
+                    return checkpoint;
+                }
+            }
+        }
+        File file = fileFor(archive);
+        if (!file.exists()) {
+            return null;
+        }
+        Checkpoint checkpoint =
+            gson.fromJson(readString(file), Checkpoint.class);
+        if (checkpoint == null || !archive.equals(checkpoint.archive)) {
+            throw new IOException(file + " isn't a checkpoint for "
+                                  + archive);
+        }
+        if (previous != null && checkpoint.time > previous.time) {
+            return null;
+        }
+        return checkpoint;
+    }
+
+    // Records one flush: where each of archives has got to, and the stats
+    // as of the same moment.
+    public void write(List<Checkpoint> archives, Map<String, Object> stats)
+        throws IOException
+    {
+        long now = System.currentTimeMillis();
+        for (Checkpoint checkpoint : archives) {
+            checkpoint.time = now;
+            Util.writeFileAtomically(fileFor(checkpoint.archive),
+                                     gson.toJson(checkpoint));
+        }
+        DriverCheckpoint driver = new DriverCheckpoint();
+        driver.time = now;
+        driver.stats = stats;
+        driver.archives = archives;
+        Util.writeFileAtomically(new File(directory, DRIVER_FILE),
+                                 gson.toJson(driver));
+    }
+}
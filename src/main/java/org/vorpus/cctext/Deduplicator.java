@@ -0,0 +1,275 @@
+package org.vorpus.cctext;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.Arrays;
+
+// Remembers which blocks of text we've already written out, across the
+// whole crawl, so each distinct paragraph only gets written once.
+//
+// We only keep a 64-bit fingerprint of each block (Util.hash64), in a fixed
+// amount of off-heap memory: an open-addressing hash table of longs, where
+// 0 means an empty slot. A false "duplicate" needs two different blocks
+// with the same 64-bit fingerprint, which over even billions of blocks is
+// astronomically unlikely.
+//
+// The table is split into PARTITIONS independent ones (picked by the
+// fingerprint's high bits), each with its own lock, so concurrent inserts
+// mostly don't wait for each other. Each partition is a direct ByteBuffer,
+// which also keeps the total size from being limited to 2 GiB.
+//
+// The memory never grows. Once a partition is MAX_LOAD full we stop adding
+// to it -- new blocks are still reported as new, they just won't be caught
+// the next time around -- and count that in "dedupe-table-full".
+//
+// save() and load() let a job that's spread over many runs share one table.
+// The Driver only adds a block's fingerprint when it writes the block out,
+// and calls mark() at the moment it decides which output a flush covers;
+// save() then leaves out anything added after the mark, so a saved table
+// never claims a block whose text might not have made it to disk.
+public class Deduplicator
+{
+    static final int PARTITIONS = 64;
+    // linear probing slows down a lot past here
+    static final double MAX_LOAD = 0.75;
+
+    static final long FILE_MAGIC = 0x4343544544555031L; // "CCTEDUP1"
+
+    final ByteBuffer[] tables = new ByteBuffer[PARTITIONS];
+    final int[] used = new int[PARTITIONS];
+    // Between mark() and save(), the slots each partition has filled since
+    // the mark (null otherwise). Guarded by the partition's lock.
+    final int[][] sinceMark = new int[PARTITIONS][];
+    final int[] sinceMarkCount = new int[PARTITIONS];
+    // slots per partition; a power of two
+    final int slots;
+    final int maxUsed;
+
+    final Stats.Counter kept;
+    final Stats.Counter dropped;
+    final Stats.Counter droppedBytes;
+    final Stats.Counter full;
+    final Stats.Counter fingerprints;
+
+    // maxBytes is rounded down to a power of two's worth of slots per
+    // partition.
+    public Deduplicator(long maxBytes, Stats stats)
+    {
+        long perPartition = Math.max(8, maxBytes / PARTITIONS / 8);
+        // ByteBuffers are int-indexed
+        perPartition = Math.min(perPartition, Integer.MAX_VALUE / 8);
+        slots = Integer.highestOneBit((int) perPartition);
+        maxUsed = (int) (slots * MAX_LOAD);
+        for (int i = 0; i < PARTITIONS; i++) {
+            // allocateDirect zeroes it, i.e., every slot starts empty
+            tables[i] = ByteBuffer.allocateDirect(8 * slots);
+        }
+
+        kept = stats.counter("dedupe-blocks-kept");
+        dropped = stats.counter("dedupe-blocks-dropped");
+        droppedBytes = stats.counter("dedupe-bytes-dropped");
+        full = stats.counter("dedupe-table-full");
+        fingerprints = stats.counter("dedupe-fingerprints");
+    }
+
+    public long capacityBytes()
+    {
+        return 8L * slots * PARTITIONS;
+    }
+
+    // Records fingerprint, and returns true if it's new (i.e., the block
+    // should be written).
+    public boolean add(long fingerprint)
+    {
+        if (fingerprint == 0) {
+            // 0 marks empty slots
+            fingerprint = 1;
+        }
+        int partition = (int) (fingerprint >>> 58) & (PARTITIONS - 1);
+        ByteBuffer table = tables[partition];
+        int mask = slots - 1;
+        synchronized (table) {
+            int slot = (int) fingerprint & mask;
+            while (true) {
+                long existing = table.getLong(8 * slot);
+                if (existing == fingerprint) {
+                    return false;
+                }
+                if (existing == 0) {
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (used[partition] >= maxUsed) {
+                full.increment();
+                return true;
+            }
+            table.putLong(8 * slot, fingerprint);
+            used[partition]++;
+            if (sinceMark[partition] != null) {
+                noteSinceMark(partition, slot);
+            }
+        }
+        fingerprints.increment();
+        return true;
+    }
+
+    void noteSinceMark(int partition, int slot)
+    {
+        int[] marked = sinceMark[partition];
+        int count = sinceMarkCount[partition];
+        if (count == marked.length) {
+            marked = Arrays.copyOf(marked, 2 * count);
+            sinceMark[partition] = marked;
+        }
+        marked[count] = slot;
+        sinceMarkCount[partition] = count + 1;
+    }
+
+    // Fingerprints buf[from, to) and adds it, counting the outcome.
+    public boolean addBlock(ByteBuffer buf, int from, int to)
+    {
+        return addBlock(Util.hash64(buf, from, to), to - from);
+    }
+
+    // The same, for a block of bytes bytes fingerprinted earlier.
+    public boolean addBlock(long fingerprint, int bytes)
+    {
+        if (add(fingerprint)) {
+            kept.increment();
+            return true;
+        }
+        dropped.increment();
+        droppedBytes.add(bytes);
+        return false;
+    }
+
+    // Sets what the next save() is as of: fingerprints added after this
+    // are left out of it. Nothing should be adding while it runs, or
+    // whatever is might end up on either side of the mark.
+    public void mark()
+    {
+        for (int i = 0; i < PARTITIONS; i++) {
+            synchronized (tables[i]) {
+                sinceMark[i] = new int[16];
+                sinceMarkCount[i] = 0;
+            }
+        }
+    }
+
+    // Writes the table to file, atomically (temp file + rename), so a crash
+    // part-way through leaves the previous copy intact. Inserts can carry on
+    // meanwhile. If mark() was called, the table is written as of the mark;
+    // otherwise each partition is as of some moment during the save.
+    public void save(File file)
+        throws IOException
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(16);
+            header.putLong(FILE_MAGIC);
+            header.putInt(PARTITIONS);
+            header.putInt(slots);
+            header.flip();
+            writeFully(channel, header);
+            // Each partition is copied under its lock, with the slots
+            // filled since the mark emptied again (load() doesn't care
+            // where in the table things are, so the holes don't matter),
+            // and written out after.
+            ByteBuffer copy = ByteBuffer.allocateDirect(8 * slots);
+            for (int i = 0; i < PARTITIONS; i++) {
+                copy.clear();
+                synchronized (tables[i]) {
+                    copy.put(tables[i].duplicate());
+                    if (sinceMark[i] != null) {
+                        for (int j = 0; j < sinceMarkCount[i]; j++) {
+                            copy.putLong(8 * sinceMark[i][j], 0);
+                        }
+                        sinceMark[i] = null;
+                    }
+                }
+                copy.flip();
+                writeFully(channel, copy);
+            }
+            channel.force(true);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+                   StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buf)
+        throws IOException
+    {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    // Adds everything in a file written by save(). That can be from a
+    // Deduplicator of a different size; if it's bigger than us, some
+    // fingerprints may not fit (see "dedupe-table-full").
+    public void load(File file)
+        throws IOException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(16);
+            readFully(channel, header);
+            header.flip();
+            if (header.getLong() != FILE_MAGIC) {
+                throw new IOException(file + " is not a dedupe table");
+            }
+            int filePartitions = header.getInt();
+            int fileSlots = header.getInt();
+            long expected = 16 + 8L * filePartitions * fileSlots;
+            if (filePartitions <= 0 || fileSlots <= 0
+                || channel.size() != expected) {
+                throw new IOException(file + " is truncated or corrupt");
+            }
+
+            ByteBuffer chunk = ByteBuffer.allocateDirect(1 << 20);
+            long remaining = 8L * filePartitions * fileSlots;
+            while (remaining > 0) {
+                chunk.clear();
+                if (remaining < chunk.capacity()) {
+                    chunk.limit((int) remaining);
+                }
+                readFully(channel, chunk);
+                chunk.flip();
+                remaining -= chunk.remaining();
+                while (chunk.hasRemaining()) {
+                    long fingerprint = chunk.getLong();
+                    if (fingerprint != 0) {
+                        add(fingerprint);
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buf)
+        throws IOException
+    {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+    }
+}
@@ -2,13 +2,27 @@ package org.vorpus.cctext;
 
 import java.util.Set;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import java.io.File;
 import java.io.Writer;
-import java.io.FileWriter;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.management.JMException;
 
 import org.jwat.common.HttpHeader;
 import org.jwat.common.Payload;
@@ -38,13 +52,86 @@ public class Driver
     static final int BUFFER_SIZE = 65536;
     // how often to dump stats to disk
     static final int STAT_FLUSH_TIME_MS = 60 * 1000;
+    // how often flush() saves the dedupe table, which can be big (close()
+    // always does)
+    static final int DEDUPE_SAVE_TIME_MS = 15 * 60 * 1000;
 
-    private void XX() {}
+    // Driver can be shared between threads (see ArchiveEngine), so
+    // everything below that touches shared state is either thread-safe
+    // (Stats) or synchronizes on the object it touches (each log on its
+    // Writer).
+    volatile long lastFlushTime = 0;
 
-    long lastFlushTime = 0;
+    Stats stats = new Stats();
+    final Stats.Counter totalResponseCount =
+        stats.counter("total-response-count");
+    final Stats.Counter totalResponseBytes =
+        stats.counter("total-response-bytes");
+    final Stats.Counter totalResponseBytesContent =
+        stats.counter("total-response-bytes-content");
+    final Stats.Counter totalHtmlBytes =
+        stats.counter("total-html-bytes");
+    final Stats.Counter totalHtmlBytesContent =
+        stats.counter("total-html-bytes-content");
+    final Stats.Counter noTextCount = stats.counter("no-text-count");
+    final Stats.Family mimeTypeStats = stats.family("mime-type");
+    final Stats.Family headerCharsetStats = stats.family("header-charset");
+    // Where the encoding we actually parsed with came from; see
+    // CharsetResolver.
+    final Stats.Family charsetSourceStats = stats.family("charset-source");
+    final Stats.Family headerLanguageStats = stats.family("header-language");
+    final Stats.Family tldStats = stats.family("tld");
+    final Stats.Family exceptionStats = stats.family("exceptions");
+    final Stats.Family extractionModeStats = stats.family("extraction-mode");
+    final Stats.Family fastFallbackStats =
+        stats.family("fast-fallback-reason");
+    final Stats.Family fastCheckStats = stats.family("fast-check");
+    final Stats.Counter fastCheckDifference =
+        stats.counter("fast-check-difference-chars");
+    // Bytes, code points and words by detected language, over all pages
+    final SpanStats.Totals spanTotals = new SpanStats.Totals(stats);
 
-    Map stats = new HashMap();
-    Gson statsGson = new Gson();
+    // Where the time goes, per stage of processing a record and per mime
+    // type, plus throughput and queue gauges; see Metrics. Dumped to
+    // metricsFile on every flush, and available over JMX (see
+    // registerMBean). The stages:
+    // - read: getting the next record out of the archive, which includes
+    //   inflating whatever of the previous record we didn't read
+    // - copy: copying an HTML payload for the pipeline (and so inflating
+    //   it)
+    // - charset, parse, detect: the parts of analyze(); parse includes
+    //   inflating the payload if there's no pipeline, and normalize is the
+    //   part of parse spent in TextNormalizer
+    // - analyze: all of analyze(), which is also what the "mime-type"
+    //   family has
+    // - output: writing the results, in commit()
+    final Metrics metrics = new Metrics();
+    final Metrics.HistogramFamily stageLatency = metrics.histograms("stage");
+    final LatencyHistogram readLatency = stageLatency.get("read");
+    final LatencyHistogram copyLatency = stageLatency.get("copy");
+    final LatencyHistogram charsetLatency = stageLatency.get("charset");
+    final LatencyHistogram parseLatency = stageLatency.get("parse");
+    final LatencyHistogram normalizeLatency =
+        stageLatency.get("normalize");
+    final LatencyHistogram detectLatency = stageLatency.get("detect");
+    final LatencyHistogram analyzeLatency = stageLatency.get("analyze");
+    final LatencyHistogram outputLatency = stageLatency.get("output");
+    final Metrics.HistogramFamily mimeTypeLatency =
+        metrics.histograms("mime-type");
+    File metricsFile;
+    Gson metricsGson = new Gson();
+    // every pipeline that's running, for the queue gauges
+    final Set<RecordPipeline> pipelines = Collections.newSetFromMap(
+        new ConcurrentHashMap<RecordPipeline, Boolean>());
+
+    CharsetResolver charsetResolver = new CharsetResolver();
+    // Skips CLD2 for blocks of text we've seen before; null (the default)
+    // to always run it over the whole document. See setBlockCacheBytes.
+    BlockLanguageCache blockCache = null;
+    HTMLToText.Mode extractionMode = HTMLToText.Mode.FULL;
+    int fastCheckInterval = 1000;
+    StatsFlusher statsFlusher;
+    ScheduledExecutorService backgroundFlusher = null;
 
     Gson urlInfoGson = new Gson();
     Gson exceptionLogGson = new GsonBuilder()
@@ -52,53 +139,283 @@ public class Driver
         .create();
 
     File statsFile;
+    // extractedText can be null, if the text isn't wanted (or goes to a
+    // text sink instead)
     Writer exceptionLog, urlInfoLog, extractedText;
+    // Everything written to exceptionLog goes through here; see
+    // setExceptionLogLimits.
+    ExceptionLogger exceptionLogger;
+
+    // Crawl-wide deduplication of the extracted text; null to write every
+    // block. See setDedupe.
+    Deduplicator deduplicator = null;
+    File dedupeFile = null;
+    // Guarded by this: when the table was last saved, and whether a flush
+    // is saving it right now.
+    long lastDedupeSave = 0;
+    boolean dedupeSaving = false;
+    // Checkpointing; see setCheckpoints. activeArchives has the progress of
+    // every archive we're in the middle of.
+    CheckpointJournal checkpoints = null;
+    boolean resume = false;
+    final Map<String, ArchiveProgress> activeArchives =
+        new ConcurrentHashMap<String, ArchiveProgress>();
+    final Stats.Family resumeStats = stats.family("resume");
+
+    // See setRecordLimits.
+    RecordLimits limits = RecordLimits.NONE;
+    Writer quarantineLog = null;
+    Gson quarantineGson = new Gson();
+    final Stats.Family limitStats = stats.family("record-limit");
+
+    // commit() holds the read lock while it writes out a record and
+    // updates its archive's progress; flushes take the write lock just
+    // long enough to snapshot the progress and the stats (and mark the
+    // dedupe table), so that they all agree about which records are done.
+    final ReentrantReadWriteLock commitLock = new ReentrantReadWriteLock();
+
+    // Updated by commit(), which for any one archive only ever runs on one
+    // thread at a time; read by whoever is flushing.
+    static class ArchiveProgress
+    {
+        volatile long offset = -1;
+        volatile long records = 0;
+        volatile boolean complete = false;
+    }
+
+    // If set, the extracted text goes here instead of to the extractedText
+    // Writer; see setExtractedTextSink.
+    ExtractedTextSink textSink = null;
+    UrlInfoColumns urlInfoColumns = null;
 
-    // XX dedupe memory size?
     public Driver(String statsPath,
                   Writer exceptionLog,
                   Writer urlInfoLog,
                   Writer extractedText)
     {
         statsFile = new File(statsPath);
+        statsFlusher = new StatsFlusher(statsFile);
+        metricsFile = new File(statsPath + ".metrics");
+        metrics.rate("records-per-second", totalResponseCount);
+        metrics.rate("bytes-per-second", totalResponseBytes);
+        metrics.rate("html-bytes-per-second", totalHtmlBytes);
+        metrics.gauge("pipeline-queue-depth", new Metrics.Gauge() {
+                public double value() {
+                    int depth = 0;
+                    for (RecordPipeline pipeline : pipelines) {
+                        depth += pipeline.queueDepth();
+                    }
+                    return depth;
+                }
+            });
+        metrics.gauge("pipeline-buffered-bytes", new Metrics.Gauge() {
+                public double value() {
+                    long bytes = 0;
+                    for (RecordPipeline pipeline : pipelines) {
+                        bytes += pipeline.bufferedBytes();
+                    }
+                    return bytes;
+                }
+            });
+        metrics.gauge("block-cache-entries", new Metrics.Gauge() {
+                public double value() {
+                    BlockLanguageCache cache = blockCache;
+                    return cache == null ? 0 : cache.size();
+                }
+            });
+        metrics.gauge("block-cache-memory-bytes", new Metrics.Gauge() {
+                public double value() {
+                    BlockLanguageCache cache = blockCache;
+                    return cache == null ? 0 : cache.memoryBytes();
+                }
+            });
         this.exceptionLog = exceptionLog;
+        exceptionLogger = new ExceptionLogger(
+            exceptionLog, exceptionLogGson,
+            ExceptionLogger.DEFAULT_QUEUE_SIZE, stats);
         this.urlInfoLog = urlInfoLog;
         this.extractedText = extractedText;
     }
 
+    // input must be positioned at the start of the archive; if we're
+    // resuming, we skip ahead ourselves.
     public void processAll(String urlOrPath, InputStream input)
         throws IOException
     {
-        if (urlOrPath.endsWith(".warc.gz")
-            || urlOrPath.endsWith(".warc")) {
-            _processAllWarc(urlOrPath, input);
-        } else if (urlOrPath.endsWith(".arc.gz")
-                   || urlOrPath.endsWith(".arc")) {
-            _processAllArc(urlOrPath, input);
+        processArchive(urlOrPath, input, null);
+    }
+
+    // Like processAll, but for a file on local disk. If it's gzipped and
+    // we have decompression threads (setDecompressionThreads), it's
+    // inflated in parallel by a ParallelGzipInputStream; otherwise it's
+    // memory-mapped, and if it's not compressed then the payloads we look
+    // at are handed around as slices of the mapping rather than copied.
+    public void processLocalFile(String path)
+        throws IOException
+    {
+        if (decompressionThreads == null || !path.endsWith(".gz")) {
+            InputStream input = new MappedFileInputStream(new File(path));
+            try {
+                processAll(path, input);
+            } finally {
+                input.close();
+            }
         } else {
-            throw new IllegalArgumentException(("urlOrPath must end in .warc "
-                                                + "or .arc (+/- .gz); got %s")
-                                               .format(urlOrPath));
+            processArchive(path, null, new File(path));
+        }
+    }
+
+    // Reads from input, unless localFile is set.
+    void processArchive(String urlOrPath, InputStream input, File localFile)
+        throws IOException
+    {
+        if (!urlOrPath.endsWith(".warc.gz")
+            && !urlOrPath.endsWith(".warc")
+            && !urlOrPath.endsWith(".arc.gz")
+            && !urlOrPath.endsWith(".arc")) {
+            throw new IllegalArgumentException(String.format(
+                "urlOrPath must end in .warc or .arc (+/- .gz); got %s",
+                urlOrPath));
+        }
+
+        ArchiveProgress progress = null;
+        long baseOffset = 0;
+        long resumeAfter = -1;
+        if (checkpoints != null) {
+            progress = new ArchiveProgress();
+            if (resume) {
+                CheckpointJournal.Checkpoint previous =
+                    checkpoints.read(urlOrPath);
+                if (previous != null) {
+                    if (previous.complete) {
+                        resumeStats.increment("already-complete");
+                        return;
+                    }
+                    resumeStats.increment("resumed");
+                    if (previous.offset > 0) {
+                        // The checkpointed record starts a gzip member (or
+                        // is just a record, if uncompressed), so a reader
+                        // can start there; we then skip that one record.
+                        if (input != null) {
+                            skipFully(input, previous.offset);
+                        }
+                        baseOffset = previous.offset;
+                    }
+                    resumeAfter = previous.offset;
+                    progress.offset = previous.offset;
+                    progress.records = previous.records;
+                }
+            }
+            activeArchives.put(urlOrPath, progress);
+        }
+
+        ParallelGzipInputStream members = null;
+        try {
+            if (localFile != null) {
+                members = new ParallelGzipInputStream(
+                    localFile, baseOffset, decompressionThreads,
+                    2 * decompressionThreadCount);
+                input = members;
+            }
+            if (urlOrPath.endsWith(".warc.gz")
+                || urlOrPath.endsWith(".warc")) {
+                _processAllWarc(urlOrPath, input, members,
+                                baseOffset, resumeAfter);
+            } else {
+                _processAllArc(urlOrPath, input, members,
+                               baseOffset, resumeAfter);
+            }
+            if (progress != null) {
+                progress.complete = true;
+            }
+        } finally {
+            if (members != null) {
+                members.close();
+            }
+            try {
+                // also writes the final checkpoint, complete or not
+                flush();
+            } finally {
+                if (progress != null) {
+                    activeArchives.remove(urlOrPath);
+                }
+            }
+        }
+    }
+
+    static void skipFully(InputStream input, long count)
+        throws IOException
+    {
+        while (count > 0) {
+            long skipped = input.skip(count);
+            if (skipped <= 0) {
+                // skip() is allowed to give up; read() isn't
+                if (input.read() < 0) {
+                    throw new IOException("archive ends before checkpoint");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
         }
-        flush();
     }
 
     public void _processAllArc(String urlOrPath, InputStream input)
         throws IOException
     {
-        ArcReader reader = ArcReaderFactory.getReader(input, BUFFER_SIZE);
-        while (true) {
-            ArcRecordBase recordBase = reader.getNextRecord();
-            if (recordBase == null) {
-                break;
+        _processAllArc(urlOrPath, input, null, 0, -1);
+    }
+
+    // The reader's offsets are relative to input, which starts baseOffset
+    // bytes into the archive -- or if members is set, input is members,
+    // and they're offsets into the uncompressed data. Records up to and
+    // including resumeAfter were done by a previous run.
+    public void _processAllArc(String urlOrPath, InputStream input,
+                               ParallelGzipInputStream members,
+                               long baseOffset, long resumeAfter)
+        throws IOException
+    {
+        ArcReader reader;
+        if (members != null) {
+            reader = ArcReaderFactory.getReaderUncompressed(input,
+                                                            BUFFER_SIZE);
+        } else {
+            reader = ArcReaderFactory.getReader(input, BUFFER_SIZE);
+        }
+        MappedFileInputStream mapped = null;
+        if (input instanceof MappedFileInputStream && !reader.isCompressed()) {
+            mapped = (MappedFileInputStream) input;
+        }
+        RecordPipeline pipeline = newPipeline();
+        try {
+            while (true) {
+                long readStart = System.nanoTime();
+                ArcRecordBase recordBase = reader.getNextRecord();
+                readLatency.record(System.nanoTime() - readStart);
+                if (recordBase == null) {
+                    break;
+                }
+                long offset = recordOffset(members, baseOffset,
+                                           recordBase.getStartOffset());
+                if (offset <= resumeAfter) {
+                    continue;
+                }
+                if (recordBase instanceof ArcRecord) {
+                    ArcRecord record = (ArcRecord) recordBase;
+                    handleRecord(pipeline,
+                                 urlOrPath,
+                                 offset,
+                                 record.getUrl(),
+                                 record.getHttpHeader(),
+                                 record.getPayload(),
+                                 payloadSlice(mapped, offset,
+                                              record.header.headerBytes,
+                                              record.getHttpHeader(),
+                                              record.getPayload()));
+                }
             }
-            if (recordBase instanceof ArcRecord) {
-                ArcRecord record = (ArcRecord) recordBase;
-                processOne(urlOrPath,
-                           record.getStartOffset(),
-                           record.getUrl(),
-                           record.getHttpHeader(),
-                           record.getPayload());
+        } finally {
+            if (pipeline != null) {
+                pipeline.finish();
             }
         }
     }
@@ -106,22 +423,340 @@ public class Driver
     public void _processAllWarc(String urlOrPath, InputStream input)
         throws IOException
     {
-        WarcReader reader = WarcReaderFactory.getReader(input, BUFFER_SIZE);
-        while (true) {
-            WarcRecord record = reader.getNextRecord();
-            if (record == null) {
-                break;
+        _processAllWarc(urlOrPath, input, null, 0, -1);
+    }
+
+    // See _processAllArc.
+    public void _processAllWarc(String urlOrPath, InputStream input,
+                                ParallelGzipInputStream members,
+                                long baseOffset, long resumeAfter)
+        throws IOException
+    {
+        WarcReader reader;
+        if (members != null) {
+            reader = WarcReaderFactory.getReaderUncompressed(input,
+                                                             BUFFER_SIZE);
+        } else {
+            reader = WarcReaderFactory.getReader(input, BUFFER_SIZE);
+        }
+        MappedFileInputStream mapped = null;
+        if (input instanceof MappedFileInputStream && !reader.isCompressed()) {
+            mapped = (MappedFileInputStream) input;
+        }
+        RecordPipeline pipeline = newPipeline();
+        try {
+            while (true) {
+                long readStart = System.nanoTime();
+                WarcRecord record = reader.getNextRecord();
+                readLatency.record(System.nanoTime() - readStart);
+                if (record == null) {
+                    break;
+                }
+                long offset = recordOffset(members, baseOffset,
+                                           record.getStartOffset());
+                if (offset <= resumeAfter) {
+                    continue;
+                }
+                if (record.header.warcTypeStr.equals("response")) {
+                    handleRecord(pipeline,
+                                 urlOrPath,
+                                 offset,
+                                 record.header.warcTargetUriUri,
+                                 record.getHttpHeader(),
+                                 record.getPayload(),
+                                 payloadSlice(mapped, offset,
+                                              record.header.headerBytes,
+                                              record.getHttpHeader(),
+                                              record.getPayload()));
+                }
             }
-            if (record.header.warcTypeStr.equals("response")) {
-                processOne(urlOrPath,
-                           record.getStartOffset(),
-                           record.header.warcTargetUriUri,
-                           record.getHttpHeader(),
-                           record.getPayload());
+        } finally {
+            if (pipeline != null) {
+                pipeline.finish();
             }
         }
     }
 
+    // The HTTP content of a record in an uncompressed, mapped archive, as a
+    // slice of the mapping; or null, in which case the payload gets read
+    // as usual. jwat keeps the raw record header, so the block starts
+    // right after it, and the content is the last getRemaining() bytes of
+    // the block. Only done for payloads we're actually going to look at.
+    static ByteBuffer payloadSlice(MappedFileInputStream mapped,
+                                   long recordOffset,
+                                   byte[] recordHeader,
+                                   HttpHeader header,
+                                   Payload payload)
+        throws IOException
+    {
+        if (mapped == null || recordHeader == null || payload == null
+            || htmlMimeType(header) == null) {
+            return null;
+        }
+        long total = payload.getTotalLength();
+        long remaining = payload.getRemaining();
+        long blockStart = recordOffset + recordHeader.length;
+        if (remaining > Integer.MAX_VALUE
+            || blockStart + total > mapped.length()) {
+            return null;
+        }
+        return mapped.slice(blockStart + total - remaining, (int) remaining);
+    }
+
+    // Where a record starts in the archive file.
+    static long recordOffset(ParallelGzipInputStream members,
+                             long baseOffset, long readerOffset)
+    {
+        if (members != null) {
+            return members.memberOffset(readerOffset);
+        }
+        return baseOffset + readerOffset;
+    }
+
+    // For processLocalFile; see setDecompressionThreads.
+    ExecutorService decompressionThreads = null;
+    int decompressionThreadCount = 0;
+
+    // Lets processLocalFile inflate gzipped archives on this many threads
+    // (shared by all the archives being processed); 0 turns it off.
+    // Worth it when there are fewer archives going at once than cores,
+    // e.g. a single big archive.
+    public void setDecompressionThreads(int threads)
+    {
+        if (decompressionThreads != null) {
+            decompressionThreads.shutdown();
+            decompressionThreads = null;
+        }
+        decompressionThreadCount = threads;
+        if (threads > 0) {
+            decompressionThreads = Executors.newFixedThreadPool(
+                threads, Util.daemonThreadFactory("cctext-inflater"));
+        }
+    }
+
+    // See HTMLToText.Mode. In FAST mode, one in every checkInterval
+    // documents that took the fast path is re-parsed with the full parser
+    // to measure how much the two disagree ("fast-check" in the stats).
+    public void setExtractionMode(HTMLToText.Mode mode, int checkInterval)
+    {
+        extractionMode = mode;
+        fastCheckInterval = checkInterval;
+    }
+
+    // Roughly how much heap the block language cache may use; 0 (the
+    // default) turns it off. Starts from empty either way. It's off unless
+    // asked for because it changes the output: the document-level language
+    // summary in the url-info log (cld2-document-stats) gets rebuilt from
+    // the chunks instead of coming from CLD2 -- see BlockLanguageCache.
+    public void setBlockCacheBytes(long maxBytes)
+    {
+        if (blockCache != null) {
+            blockCache.clear();
+        }
+        if (maxBytes > 0) {
+            blockCache = new BlockLanguageCache(maxBytes, stats);
+        } else {
+            blockCache = null;
+        }
+    }
+
+    // Turns on checkpointing: every time we flush, we record in the journal
+    // in directory how far we've got through each archive, and the stats
+    // as of the same moment (see CheckpointJournal). With resume set, the
+    // stats are added back in right away, so that the stats file carries
+    // on from where the crashed run left it rather than starting again from
+    // zero (that's right for the usual setup of one Driver per run); and
+    // processAll() looks up each archive first: if it was finished it's
+    // skipped, and otherwise we skip ahead to the checkpoint and carry on
+    // from there.
+    //
+    // Records after the checkpoint get redone, so their output may appear
+    // twice: url-info lines, and their extracted text too, whether it goes
+    // to the Writer or to the text sink. With periodic flushes that's at
+    // most a minute or so's worth. With dedupe on, a table that had seen a
+    // redone record's blocks would drop them the second time round, losing
+    // the text if the first copy never made it to disk; flush() only ever
+    // saves the table as of the same moment as checkpoints it has already
+    // written, so it's never newer than them, and redone blocks come out
+    // again instead. The stats bumped for records
+    // that were still being read or analyzed at the checkpoint (at most the
+    // pipeline's worth per archive) get counted again too.
+    public void setCheckpoints(String directory, boolean resume)
+        throws IOException
+    {
+        if (directory == null) {
+            checkpoints = null;
+        } else {
+            checkpoints = new CheckpointJournal(new File(directory));
+            Map<String, Object> previous = checkpoints.previousStats();
+            if (resume && previous != null) {
+                stats.restore(previous);
+            }
+        }
+        this.resume = resume;
+    }
+
+    // Puts a budget on each record (see RecordLimits). Every time a record
+    // goes over one, that's counted in "record-limit", and if
+    // quarantineLog is set the record gets a line there -- archive, offset,
+    // URI, which limits, time spent -- so it can be dug out and replayed
+    // later.
+    public void setRecordLimits(RecordLimits limits, Writer quarantineLog)
+    {
+        this.limits = limits;
+        this.quarantineLog = quarantineLog;
+    }
+
+    // The payload as analyze() should read it, i.e., truncated if it's
+    // over the limit. RecordPipeline uses this too, so that it doesn't
+    // copy what we won't read.
+    InputStream limitPayload(InputStream payload, long remaining)
+    {
+        long max = limits.maxPayloadBytes;
+        if (max > 0 && remaining > max) {
+            return new RecordLimits.LimitedInputStream(payload, max);
+        }
+        return payload;
+    }
+
+    void cutOff(RecordResult result, String limit)
+    {
+        limitStats.increment(limit);
+        if (result.limitsExceeded == null) {
+            result.limitsExceeded = new ArrayList<String>();
+        }
+        result.limitsExceeded.add(limit);
+    }
+
+    // Sends the extracted text to sink instead of the Writer given to the
+    // constructor. commit() hands each record's text over without taking
+    // any lock of ours, and the sink compresses and writes it in the
+    // background. We don't close it; that's up to whoever made it.
+    public void setExtractedTextSink(ExtractedTextSink sink)
+    {
+        textSink = sink;
+    }
+
+    // For threads that call commit() and are about to go away (see
+    // RecordPipeline), so the text sink can let go of their buffer.
+    void releaseTextSinkBuffer()
+        throws IOException
+    {
+        ExtractedTextSink sink = textSink;
+        if (sink != null) {
+            sink.release();
+        }
+    }
+
+    // Writes the url info in the columnar format instead of as JSON lines
+    // to the Writer given to the constructor (UrlInfoColumns.toJson gets
+    // the JSON back). As with the text sink, closing it is up to whoever
+    // made it.
+    public void setUrlInfoColumns(UrlInfoColumns columns)
+    {
+        urlInfoColumns = columns;
+    }
+
+    // Turns on block deduplication for the extracted text, with a table
+    // using about maxBytes of (off-heap) memory; 0 turns it off. If path is
+    // non-null, the table is loaded from there (if it exists), and saved
+    // back every DEDUPE_SAVE_TIME_MS or so and on close(), so that
+    // successive runs share it. Blocks are
+    // fingerprinted in analyze(), but only added to the table in commit(),
+    // as they're written out; see flush().
+    public synchronized void setDedupe(long maxBytes, String path)
+        throws IOException
+    {
+        if (maxBytes <= 0) {
+            deduplicator = null;
+            dedupeFile = null;
+            return;
+        }
+        Deduplicator dedupe = new Deduplicator(maxBytes, stats);
+        File file = path == null ? null : new File(path);
+        if (file != null && file.exists()) {
+            dedupe.load(file);
+        }
+        deduplicator = dedupe;
+        dedupeFile = file;
+        lastDedupeSave = System.currentTimeMillis();
+    }
+
+    // Pipelining: by default each record is read, parsed, detected and
+    // logged on the calling thread before we read the next one. If
+    // setPipelineWorkers() is called, then the reading thread instead just
+    // copies each HTML payload out of the archive and hands it to a pool of
+    // workers; see RecordPipeline.
+    ExecutorService pipelineWorkers = null;
+    int pipelineMaxRecords = 256;
+    int pipelineMaxBytes = 64 * 1024 * 1024;
+
+    public void setPipelineWorkers(int workers)
+    {
+        if (pipelineWorkers != null) {
+            pipelineWorkers.shutdown();
+            pipelineWorkers = null;
+        }
+        if (workers > 0) {
+            final ThreadFactory threads =
+                Util.daemonThreadFactory("cctext-pipeline-worker");
+            pipelineWorkers = Executors.newFixedThreadPool(
+                workers, new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        return threads.newThread(new Runnable() {
+                                public void run() {
+                                    try {
+                                        r.run();
+                                    } finally {
+                                        LanguageDetection
+                                            .releaseThreadResources();
+                                    }
+                                }
+                            });
+                    }
+                });
+        }
+    }
+
+    // Bounds on how far the reader can get ahead of the output: at most
+    // maxRecords records and maxBytes bytes of copied payload in flight.
+    public void setPipelineLimits(int maxRecords, int maxBytes)
+    {
+        pipelineMaxRecords = maxRecords;
+        pipelineMaxBytes = maxBytes;
+    }
+
+    RecordPipeline newPipeline()
+    {
+        if (pipelineWorkers == null) {
+            return null;
+        }
+        RecordPipeline pipeline =
+            new RecordPipeline(this, pipelineWorkers,
+                               pipelineMaxRecords, pipelineMaxBytes);
+        pipelines.add(pipeline);
+        return pipeline;
+    }
+
+    // content, if set, is the payload's content (see payloadSlice).
+    void handleRecord(RecordPipeline pipeline,
+                      String sourceUrlOrPath,
+                      long offset,
+                      Uri uri,
+                      HttpHeader header,
+                      Payload payload,
+                      ByteBuffer content)
+        throws IOException
+    {
+        if (pipeline == null) {
+            processOne(sourceUrlOrPath, offset, uri, header, payload,
+                       content);
+        } else {
+            pipeline.submit(sourceUrlOrPath, offset, uri, header, payload,
+                            content);
+        }
+    }
+
     public String getTLD(Uri uri)
     {
         if (uri == null) {
@@ -132,6 +767,47 @@ public class Driver
         }
     }
 
+    // Returns the parsed mime type if this is a record whose content we
+    // actually look at, or else null.
+    public static String htmlMimeType(HttpHeader header)
+    {
+        if (header == null) {
+            return null;
+        }
+        ContentType ct = ContentType.parseContentType(header.contentType);
+        if (ct == null) {
+            return null;
+        }
+        String mimeType = ct.contentType + "/" + ct.mediaType;
+        if (mimeType.equals("text/html")
+            || mimeType.equals("application/xhtml+xml")) {
+            return mimeType;
+        }
+        return null;
+    }
+
+    // Everything analyze() learns about a record, held until commit()
+    // writes it out.
+    static class RecordResult
+    {
+        String sourceUrlOrPath;
+        long offset;
+        Uri uri;
+        Set<String> languageHints;
+        LanguageDetection.Result langInfo;
+        // what goes in the extracted text output (see taggedBlocks), and
+        // if we're deduplicating, each line's fingerprint and UTF-8 size
+        String taggedBlocks;
+        long[] blockFingerprints;
+        int[] blockBytes;
+        SpanStats spanStats;
+        Throwable exception;
+        // which RecordLimits it went over, if any, and how long it took
+        List<String> limitsExceeded;
+        long payloadBytes;
+        long elapsedNanos;
+    }
+
     public void processOne(String sourceUrlOrPath,
                            long offset,
                            Uri uri,
@@ -139,50 +815,133 @@ public class Driver
                            Payload payload)
         throws IOException
     {
+        processOne(sourceUrlOrPath, offset, uri, header, payload, null);
+    }
+
+    public void processOne(String sourceUrlOrPath,
+                           long offset,
+                           Uri uri,
+                           HttpHeader header,
+                           Payload payload,
+                           ByteBuffer content)
+        throws IOException
+    {
+        InputStream contentStream;
+        if (content != null) {
+            contentStream = new MappedFileInputStream.BufferInputStream(
+                content);
+        } else {
+            contentStream = payload.getInputStream();
+        }
+        RecordResult result = analyze(sourceUrlOrPath, offset, uri, header,
+                                      payload.getTotalLength(),
+                                      payload.getRemaining(),
+                                      contentStream);
+        commit(result);
+        maybeFlush();
+    }
+
+    // The expensive part of processing a record: parsing and language
+    // detection. This only touches shared state via the stats, so it's safe
+    // to run on several records at once; anything that has to come out in
+    // record order is left for commit().
+    RecordResult analyze(String sourceUrlOrPath,
+                         long offset,
+                         Uri uri,
+                         HttpHeader header,
+                         long totalLength,
+                         long remaining,
+                         InputStream contentStream)
+    {
+        RecordResult result = new RecordResult();
+        result.sourceUrlOrPath = sourceUrlOrPath;
+        result.offset = offset;
+        result.uri = uri;
+        result.payloadBytes = remaining;
+
+        long startNanos = System.nanoTime();
+        String mimeType = null;
+        RecordLimits limits = this.limits;
+        long deadline = 0;
+        if (limits.maxMillis > 0) {
+            deadline = startNanos + limits.maxMillis * 1000000L;
+        }
+
         //System.out.println(uri);
         try {
-            bumpStat("total-response-count");
-            bumpStat("total-response-bytes", payload.getTotalLength());
-            bumpStat("total-response-bytes-content", payload.getRemaining());
-
-            InputStream contentStream = payload.getInputStream();
+            totalResponseCount.increment();
+            totalResponseBytes.add(totalLength);
+            totalResponseBytesContent.add(remaining);
 
             ContentType ct = ContentType.parseContentType(header.contentType);
             if (ct == null) {
-                bumpStat("mime-type", null);
-                return;
+                mimeTypeStats.increment(null);
+                return result;
             }
-            String mimeType = String.format("%s/%s",
-                                            ct.contentType, ct.mediaType);
+            mimeType = ct.contentType + "/" + ct.mediaType;
             String headerCharset = null;
             if (ct.parameters != null) {
                 headerCharset = ct.parameters.get("charset");
             }
 
-            bumpStat("mime-type", mimeType);
-            bumpStat("header-charset", headerCharset);
+            mimeTypeStats.increment(mimeType);
+            headerCharsetStats.increment(headerCharset);
 
             HTMLToText.Result extracted = null;
+            if (limits.maxPayloadBytes > 0
+                && remaining > limits.maxPayloadBytes
+                && (mimeType.equals("text/html")
+                    || mimeType.equals("application/xhtml+xml"))) {
+                cutOff(result, "payload-bytes");
+                contentStream = limitPayload(contentStream, remaining);
+            }
             if (mimeType.equals("text/html")) {
-                bumpStat("total-html-bytes", payload.getTotalLength());
-                bumpStat("total-html-bytes-content", payload.getRemaining());
+                totalHtmlBytes.add(totalLength);
+                totalHtmlBytesContent.add(remaining);
+                contentStream = CharsetResolver.markable(contentStream);
+                long charsetStart = System.nanoTime();
+                CharsetResolver.Resolution encoding =
+                    charsetResolver.resolve(contentStream, headerCharset,
+                                            uri == null ? null : uri.getHost());
+                charsetLatency.record(System.nanoTime() - charsetStart);
+                charsetSourceStats.increment(encoding.source);
+                long parseStart = System.nanoTime();
                 extracted = HTMLToText.parse(contentStream,
-                                             false, headerCharset);
+                                             false, encoding.charset,
+                                             extractionMode,
+                                             fastCheckInterval,
+                                             true,
+                                             limits.maxExtractedChars,
+                                             deadline);
+                parseLatency.record(System.nanoTime() - parseStart);
             } else if (mimeType.equals("application/xhtml+xml")) {
-                bumpStat("total-html-bytes", payload.getTotalLength());
-                bumpStat("total-html-bytes-content", payload.getRemaining());
+                totalHtmlBytes.add(totalLength);
+                totalHtmlBytesContent.add(remaining);
+                long parseStart = System.nanoTime();
                 extracted = HTMLToText.parse(contentStream,
-                                             true, headerCharset);
+                                             true, headerCharset,
+                                             HTMLToText.Mode.FULL, 0,
+                                             true,
+                                             limits.maxExtractedChars,
+                                             deadline);
+                parseLatency.record(System.nanoTime() - parseStart);
             } else {
-                return;
+                return result;
+            }
+            normalizeLatency.record(extracted.normalizeNanos);
+            countExtraction(extracted);
+            if (extracted.limitExceeded != null) {
+                cutOff(result, extracted.limitExceeded);
+                if (extracted.limitExceeded.equals("parse-time")) {
+                    // don't spend any more time on it
+                    return result;
+                }
             }
 
-            if (extracted.content.isEmpty()) {
-                // LanguageDetection.detect requires a non-empty string for
-                // stupid FFI-related reasons, and in any case there's no
-                // reason to continue.
-                bumpStat("no-text-count");
-                return;
+            if (extracted.isEmpty()) {
+                // There's no reason to continue.
+                noTextCount.increment();
+                return result;
             }
 
             String contentLanguage = null;
@@ -191,29 +950,209 @@ public class Driver
             if (contentLanguageLine != null) {
                 contentLanguage = contentLanguageLine.value;
             }
-            bumpStat("header-language", contentLanguage);
+            headerLanguageStats.increment(contentLanguage);
             String tld = getTLD(uri);
-            bumpStat("tld", tld);
+            tldStats.increment(tld);
 
             Set<String> languageHints = extracted.languageHints;
             if (contentLanguage != null) {
                 languageHints.add(contentLanguage);
             }
-            LanguageDetection.Result langInfo =
-                LanguageDetection.detect(extracted.content,
-                                         languageHints,
-                                         tld);
+            // The text goes to CLD2 as UTF-8, straight out of the
+            // extractor's buffer. That buffer gets reused for the next
+            // record this thread parses, so anything that wants the
+            // langInfo chunks has to look at them before we return.
+            BlockLanguageCache cache = blockCache;
+            LanguageDetection.Result langInfo;
+            long detectStart = System.nanoTime();
+            if (cache != null) {
+                langInfo = cache.detect(extracted.utf8, languageHints, tld);
+            } else {
+                langInfo = LanguageDetection.detect(extracted.utf8,
+                                                    languageHints,
+                                                    tld);
+            }
+            detectLatency.record(System.nanoTime() - detectStart);
+
+            result.languageHints = languageHints;
+            result.langInfo = langInfo;
+            taggedBlocks(extracted.utf8, langInfo, result);
+            result.spanStats = SpanStats.of(langInfo);
+            if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                cutOff(result, "detect-time");
+            }
+        } catch (Throwable e) {
+            result.exception = e;
+        } finally {
+            result.elapsedNanos = System.nanoTime() - startNanos;
+            analyzeLatency.record(result.elapsedNanos);
+            mimeTypeLatency.record(mimeType, result.elapsedNanos);
+        }
+        return result;
+    }
+
+    // The extracted text output: one line per block, giving the language of
+    // whichever chunk covers most of it, a tab, and the block's text. Has to
+    // happen in analyze(), while the chunks are still valid. If we're
+    // deduplicating, we also fingerprint each block here, but leave it to
+    // commit() to drop the ones that have been seen before.
+    void taggedBlocks(ByteBuffer utf8, LanguageDetection.Result langInfo,
+                      RecordResult result)
+    {
+        boolean fingerprint = deduplicator != null;
+        StringBuilder out = new StringBuilder();
+        long[] fingerprints = new long[16];
+        int[] bytes = new int[16];
+        int blocks = 0;
+        int numChunks = langInfo.numChunks();
+        int chunk = 0;
+        int start = utf8.position();
+        int limit = utf8.limit();
+        while (start < limit) {
+            int end = start;
+            while (end < limit && utf8.get(end) != '\n') {
+                end++;
+            }
+            if (end > start) {
+                // chunks are in order, and so are the blocks
+                while (chunk < numChunks) {
+                    LanguageDetection.ResultChunk c = langInfo.getChunk(chunk);
+                    if (c.getOffset() + c.getLength() > start) {
+                        break;
+                    }
+                    chunk++;
+                }
+                String language = "un";
+                int bestOverlap = 0;
+                for (int i = chunk; i < numChunks; i++) {
+                    LanguageDetection.ResultChunk c = langInfo.getChunk(i);
+                    if (c.getOffset() >= end) {
+                        break;
+                    }
+                    int overlap = Math.min(end, c.getOffset() + c.getLength())
+                        - Math.max(start, c.getOffset());
+                    if (overlap > bestOverlap) {
+                        bestOverlap = overlap;
+                        language = c.getLanguage();
+                    }
+                }
+                ByteBuffer block = utf8.duplicate();
+                block.limit(end);
+                block.position(start);
+                out.append(language).append('\t')
+                    .append(StandardCharsets.UTF_8.decode(block))
+                    .append('\n');
+                if (fingerprint) {
+                    if (blocks == fingerprints.length) {
+                        fingerprints = Arrays.copyOf(fingerprints, 2 * blocks);
+                        bytes = Arrays.copyOf(bytes, 2 * blocks);
+                    }
+                    fingerprints[blocks] = Util.hash64(utf8, start, end);
+                    bytes[blocks] = end - start;
+                    blocks++;
+                }
+            }
+            start = end + 1;
+        }
+        result.taggedBlocks = out.toString();
+        if (fingerprint) {
+            result.blockFingerprints = fingerprints;
+            result.blockBytes = bytes;
+        }
+    }
 
-            logUriInfo(uri, languageHints, langInfo);
+    // The lines of result.taggedBlocks the deduplicator hasn't seen before,
+    // which it now has. Only called from commit(), so that the table never
+    // holds a block before its text is on its way out.
+    String dedupedBlocks(RecordResult result)
+    {
+        Deduplicator dedupe = deduplicator;
+        String tagged = result.taggedBlocks;
+        if (dedupe == null || result.blockFingerprints == null) {
+            return tagged;
+        }
+        StringBuilder out = new StringBuilder(tagged.length());
+        int lineStart = 0;
+        int block = 0;
+        while (lineStart < tagged.length()) {
+            int lineEnd = tagged.indexOf('\n', lineStart) + 1;
+            if (dedupe.addBlock(result.blockFingerprints[block],
+                                result.blockBytes[block])) {
+                out.append(tagged, lineStart, lineEnd);
+            }
+            block++;
+            lineStart = lineEnd;
+        }
+        return out.toString();
+    }
 
-            // iterate through chunks, reconstructing into lines-with-tags.
-            // count bytes, characters and words in each block for stats
-            // subdivided by language
+    void countExtraction(HTMLToText.Result extracted)
+    {
+        extractionModeStats.increment(extracted.extractionMode);
+        if (extracted.fallbackReason != null) {
+            fastFallbackStats.increment(extracted.fallbackReason);
+        }
+        if (extracted.checkOutcome != null) {
+            fastCheckStats.increment(extracted.checkOutcome);
+            fastCheckDifference.add(extracted.checkDifference);
+        }
+    }
 
-            XX();
-        } catch (Throwable e) {
+    // Writes out the results for one record. When pipelining, this is
+    // called from a single thread, in record order.
+    void commit(RecordResult result)
+    {
+        long start = System.nanoTime();
+        commitLock.readLock().lock();
+        try {
+            commitOutput(result);
+        } finally {
+            ArchiveProgress progress =
+                activeArchives.get(result.sourceUrlOrPath);
+            if (progress != null) {
+                progress.offset = result.offset;
+                progress.records++;
+            }
+            commitLock.readLock().unlock();
+            outputLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    void commitOutput(RecordResult result)
+    {
+        if (result.limitsExceeded != null && quarantineLog != null) {
+            try {
+                logQuarantine(result);
+            } catch (IOException e) {
+                System.err.println("Failed to write quarantine log:");
+                e.printStackTrace(System.err);
+            }
+        }
+        Throwable e = result.exception;
+        if (e == null && result.langInfo != null) {
+            try {
+                logUriInfo(result.uri, result.languageHints, result.langInfo,
+                           result.spanStats);
+                String text = dedupedBlocks(result);
+                ExtractedTextSink sink = textSink;
+                if (text.isEmpty()) {
+                    // nothing new
+                } else if (sink != null) {
+                    sink.write(text);
+                } else if (extractedText != null) {
+                    synchronized (extractedText) {
+                        extractedText.write(text);
+                    }
+                }
+                spanTotals.add(result.spanStats);
+            } catch (Throwable e2) {
+                e = e2;
+            }
+        }
+        if (e != null) {
             try {
-                logException(sourceUrlOrPath, offset, uri, e);
+                logException(result.sourceUrlOrPath, result.offset,
+                             result.uri, e);
             } catch (Throwable e2) {
                 System.err.println("Oh noes! Double-fault in exception "
                                    + "logging path.");
@@ -223,8 +1162,6 @@ public class Driver
                 System.err.println("");
             }
         }
-
-        maybeFlush();
     }
 
     public void logException(String sourceUrlOrPath, long offset,
@@ -244,30 +1181,75 @@ public class Driver
                                    stack[0].getClassName(),
                                    stack[0].getMethodName(),
                                    ExceptionUtils.getMessage(rootCause));
-        bumpStat("exceptions", tag);
+        exceptionStats.increment(tag);
 
         String uriString = (uri == null) ? "(null)" : uri.toString();
 
-        Map stats = ImmutableMap.of
-            ("archive", sourceUrlOrPath,
-             "offset", offset,
-             "uri", uriString,
-             // ExceptionUtils.getMessage automatically includes class name
-             "exception", ExceptionUtils.getMessage(rootCause),
-             "traceback", ExceptionUtils.getStackTrace(e));
-        exceptionLog.write(exceptionLogGson.toJson(stats));
-        exceptionLog.write("\n\n");
-        exceptionLog.flush();
+        // The formatting and writing happen on the logger's thread.
+        exceptionLogger.log(sourceUrlOrPath, offset, uriString, tag,
+                            rootCause, e);
+    }
+
+    // Each exception tag (see logException) gets its full traceback
+    // logged the first fullTraces times; after that, we log a random
+    // sample of up to samples occurrences, and a count, on every flush.
+    // See ExceptionLogger.
+    public void setExceptionLogLimits(int fullTraces, int samples)
+    {
+        exceptionLogger.setLimits(fullTraces, samples);
+    }
+
+    void logQuarantine(RecordResult result)
+        throws IOException
+    {
+        Map entry = ImmutableMap.builder()
+            .put("archive", result.sourceUrlOrPath)
+            .put("offset", result.offset)
+            .put("uri", result.uri == null ? "(null)" : result.uri.toString())
+            .put("limits", result.limitsExceeded)
+            .put("millis", result.elapsedNanos / 1000000)
+            .put("payload-bytes", result.payloadBytes)
+            .build();
+        String line = quarantineGson.toJson(entry);
+        synchronized (quarantineLog) {
+            quarantineLog.write(line);
+            quarantineLog.write("\n");
+        }
     }
 
     public void logUriInfo(Uri uri, Set<String> languageHints,
-                           LanguageDetection.Result langInfo)
+                           LanguageDetection.Result langInfo,
+                           SpanStats spanStats)
         throws IOException
     {
         if (uri == null) {
             return;
         }
 
+        UrlInfoColumns columns = urlInfoColumns;
+        if (columns != null) {
+            UrlInfoColumns.Row row = new UrlInfoColumns.Row();
+            row.url = uri.toString();
+            row.tld = uri.getHost() == null ? null : getTLD(uri);
+            row.declaredLanguages =
+                languageHints.toArray(new String[languageHints.size()]);
+            row.isReliable = langInfo.isReliable;
+            row.languages = langInfo.languages;
+            row.percents = langInfo.percents;
+            row.normalizedScores = langInfo.normalizedScores;
+            row.spanLanguages = new String[spanStats.size];
+            for (int i = 0; i < spanStats.size; i++) {
+                row.spanLanguages[i] =
+                    LanguageDetection.languageCode(spanStats.languages[i]);
+            }
+            row.spanBytes = Arrays.copyOf(spanStats.bytes, spanStats.size);
+            row.spanCodepoints =
+                Arrays.copyOf(spanStats.codepoints, spanStats.size);
+            row.spanWords = Arrays.copyOf(spanStats.words, spanStats.size);
+            columns.add(row);
+            return;
+        }
+
         Map stats = ImmutableMap.of
             ("url", uri.toString(),
              "declared-languages", languageHints,
@@ -276,32 +1258,24 @@ public class Driver
                              "languages", langInfo.languages,
                              "percents", langInfo.percents,
                              "normalized-scores", langInfo.normalizedScores),
-             "cld2-span-stats", "XX");
-        urlInfoLog.write(urlInfoGson.toJson(stats));
-        urlInfoLog.write("\n");
-        // add detected language stats
-        XX();
+             "cld2-span-stats", spanStats.toMap());
+        String line = urlInfoGson.toJson(stats);
+        synchronized (urlInfoLog) {
+            urlInfoLog.write(line);
+            urlInfoLog.write("\n");
+        }
     }
 
+    // The by-name interface to the stats; handy from the REPL and for
+    // rare events. The per-record path uses the handles below instead.
     public void bumpStat(String stat)
     {
         bumpStat(stat, 1);
     }
 
-    public void _bumpStatImpl(Map statmap, String stat, long amount)
-    {
-        assert stat != null;
-
-        Long current = (Long) statmap.get(stat);
-        if (current == null) {
-            current = new Long(0);
-        }
-        statmap.put(stat, current + amount);
-    }
-
     public void bumpStat(String stat, long amount)
     {
-        _bumpStatImpl(stats, stat, amount);
+        stats.counter(stat).add(amount);
     }
 
     public void bumpStat(String stat, String value)
@@ -311,38 +1285,249 @@ public class Driver
 
     public void bumpStat(String stat, String value, long amount)
     {
-        assert stat != null;
-        if (value == null) {
-            value = "__null";
-        }
-        Map substats = (Map) stats.get(stat);
-        if (substats == null) {
-            substats = new HashMap();
-            stats.put(stat, substats);
-        }
-        _bumpStatImpl(substats, value, amount);
+        stats.family(stat).add(value, amount);
     }
 
+    // Called on the record path. Does nothing if there's a background
+    // flusher, which is the recommended setup.
     public void maybeFlush()
         throws IOException
     {
+        if (backgroundFlusher != null) {
+            return;
+        }
         long now = System.currentTimeMillis();
-        if (now - lastStatDumpTime >= STAT_FLUSH_TIME_MS) {
-            flush();
+        if (now - lastFlushTime >= STAT_FLUSH_TIME_MS) {
+            synchronized (this) {
+                // someone else may have flushed while we were waiting
+                if (now - lastFlushTime >= STAT_FLUSH_TIME_MS) {
+                    periodicFlush();
+                }
+            }
         }
     }
 
+    // Moves stats flushing off the record path entirely: a background
+    // thread snapshots the counters every STAT_FLUSH_TIME_MS while the
+    // workers carry on.
+    public synchronized void startBackgroundFlush()
+    {
+        if (backgroundFlusher == null) {
+            backgroundFlusher =
+                StatsFlusher.startBackground(this, STAT_FLUSH_TIME_MS);
+        }
+    }
+
+    public synchronized void stopBackgroundFlush()
+    {
+        if (backgroundFlusher != null) {
+            backgroundFlusher.shutdown();
+            backgroundFlusher = null;
+        }
+    }
+
+    // See StatsFlusher for what delta mode means.
+    public void setStatsDeltaMode(boolean enabled)
+    {
+        statsFlusher.setDeltaMode(enabled);
+    }
+
+    public synchronized void periodicFlush()
+        throws IOException
+    {
+        lastFlushTime = System.currentTimeMillis();
+        List<CheckpointJournal.Checkpoint> progress;
+        Map<String, Object> snapshot;
+        commitLock.writeLock().lock();
+        try {
+            progress = progressSnapshot();
+            snapshot = stats.snapshot();
+        } finally {
+            commitLock.writeLock().unlock();
+        }
+        statsFlusher.writePeriodic(snapshot);
+        writeMetrics();
+        flushLogs();
+        writeCheckpoints(progress, snapshot);
+    }
+
     public void flush()
         throws IOException
     {
+        flush(false);
+    }
+
+    // The same, but with saveDedupe the dedupe table is saved even if it
+    // was saved recently.
+    void flush(boolean saveDedupe)
+        throws IOException
+    {
+        Deduplicator dedupe = startDedupeSave(saveDedupe);
+        try {
+            flushOutput(dedupe);
+            // Outside the monitor, since a big table takes a while to
+            // write, and archives finishing meanwhile shouldn't have to
+            // wait for it. The table is saved as of the mark, and every
+            // block in it was handed to the output by a commit() before
+            // then, so by now its text has been flushed along with the
+            // rest. (Commits carry on while we save; their blocks make it
+            // into the next save.)
+            if (dedupe != null) {
+                dedupe.save(dedupeFile);
+            }
+        } finally {
+            if (dedupe != null) {
+                finishDedupeSave();
+            }
+        }
+    }
+
+    // Returns the Deduplicator if this flush should save it, or null.
+    // Only one flush saves at a time.
+    synchronized Deduplicator startDedupeSave(boolean force)
+        throws IOException
+    {
+        if (dedupeFile == null) {
+            return null;
+        }
         long now = System.currentTimeMillis();
-        lastStatDumpTime = now;
-        // false -> truncate, rather than append
-        FileWriter statsWriter = new FileWriter(statsFile, false);
-        statsWriter.write(statsGson.toJson(stats));
-        statsWriter.close();
+        if (!force && now - lastDedupeSave < DEDUPE_SAVE_TIME_MS) {
+            return null;
+        }
+        while (dedupeSaving) {
+            if (!force) {
+                return null;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for "
+                                                 + "dedupe table save");
+            }
+        }
+        dedupeSaving = true;
+        lastDedupeSave = now;
+        return deduplicator;
+    }
 
-        urlInfoLog.flush();
+    synchronized void finishDedupeSave()
+    {
+        dedupeSaving = false;
+        notifyAll();
+    }
+
+    // If dedupe isn't null, marks it at the same moment as the checkpoints
+    // (see Deduplicator.mark).
+    synchronized void flushOutput(Deduplicator dedupe)
+        throws IOException
+    {
+        lastFlushTime = System.currentTimeMillis();
+        List<CheckpointJournal.Checkpoint> progress;
+        Map<String, Object> snapshot;
+        commitLock.writeLock().lock();
+        try {
+            progress = progressSnapshot();
+            snapshot = stats.snapshot();
+            if (dedupe != null) {
+                dedupe.mark();
+            }
+        } finally {
+            commitLock.writeLock().unlock();
+        }
+        statsFlusher.writeFull(snapshot);
+        writeMetrics();
+        flushLogs();
+        writeCheckpoints(progress, snapshot);
+    }
+
+    // Taken *before* we flush the logs, so every record a checkpoint
+    // counts as done has its output flushed by the time it's written.
+    List<CheckpointJournal.Checkpoint> progressSnapshot()
+    {
+        List<CheckpointJournal.Checkpoint> result =
+            new ArrayList<CheckpointJournal.Checkpoint>();
+        if (checkpoints == null) {
+            return result;
+        }
+        for (Map.Entry<String, ArchiveProgress> entry
+                 : activeArchives.entrySet()) {
+            ArchiveProgress progress = entry.getValue();
+            CheckpointJournal.Checkpoint checkpoint =
+                new CheckpointJournal.Checkpoint();
+            checkpoint.archive = entry.getKey();
+            // read complete first: once it's set, offset is final
+            checkpoint.complete = progress.complete;
+            checkpoint.offset = progress.offset;
+            checkpoint.records = progress.records;
+            result.add(checkpoint);
+        }
+        return result;
+    }
+
+    void writeCheckpoints(List<CheckpointJournal.Checkpoint> progress,
+                          Map<String, Object> snapshot)
+        throws IOException
+    {
+        if (checkpoints != null) {
+            checkpoints.write(progress, snapshot);
+        }
+    }
+
+    void writeMetrics()
+        throws IOException
+    {
+        Util.writeFileAtomically(metricsFile,
+                                 metricsGson.toJson(metrics.snapshot()));
+    }
+
+    // Makes the metrics visible over JMX, as
+    // org.vorpus.cctext:type=Metrics,name=<the stats file's path>.
+    public void registerMBean()
+        throws JMException
+    {
+        metrics.registerMBean(statsFile.getPath());
+    }
+
+    public void unregisterMBean()
+        throws JMException
+    {
+        metrics.unregisterMBean();
+    }
+
+    void flushLogs()
+        throws IOException
+    {
+        exceptionLogger.flush();
+        synchronized (urlInfoLog) {
+            urlInfoLog.flush();
+        }
+        if (extractedText != null) {
+            synchronized (extractedText) {
+                extractedText.flush();
+            }
+        }
+        if (quarantineLog != null) {
+            synchronized (quarantineLog) {
+                quarantineLog.flush();
+            }
+        }
+        if (textSink != null) {
+            textSink.flush();
+        }
+        if (urlInfoColumns != null) {
+            urlInfoColumns.flush();
+        }
+    }
+
+    // Flushes everything (saving the dedupe table, however recently it was
+    // saved), and stops the exception logger's thread. The Writers and
+    // sinks we were given stay open; they're the caller's.
+    public void close()
+        throws IOException
+    {
+        flush(true);
+        exceptionLogger.close();
     }
 
     protected void finalize() throws Throwable
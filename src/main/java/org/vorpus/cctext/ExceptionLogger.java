@@ -0,0 +1,291 @@
+package org.vorpus.cctext;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+// Writes the exception log on a thread of its own, so that a record that
+// fails costs the record path no more than a queue insertion. (On a bad
+// archive, thousands of records can hit the same parser bug, and
+// formatting and flushing a traceback for each one used to be most of the
+// work.)
+//
+// Entries are grouped by tag (see Driver.logException). The first
+// fullTraces occurrences of each tag get logged in full, as they always
+// were. After that, we keep a random sample (a reservoir) of up to
+// samples occurrences per tag, and on each flush() write those out, along
+// with a summary of how many occurrences there were since the last flush.
+// Only the occurrences that make it into a sample ever get their
+// tracebacks formatted.
+//
+// The queue is bounded; if it's full, the entry is dropped and counted
+// ("exception-log-dropped" in the stats) rather than holding up the
+// record. The tag counts in the stats are kept by Driver, so they're
+// exact either way.
+//
+// Tags include the root cause's message, which can have anything in it
+// (offsets, URLs...), so there's no telling how many distinct ones we'll
+// see. Once we're keeping track of MAX_TAGS of them, any new tag is logged
+// (and sampled) as OVERFLOW_TAG instead. Driver's stats still count them
+// under their own tags.
+//
+// The log is flushed on flush() (which Driver calls whenever it flushes
+// its other logs), and whenever the queue has been idle for a few
+// seconds, never per entry. close() flushes and stops the thread.
+public class ExceptionLogger
+{
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+    public static final int DEFAULT_FULL_TRACES = 10;
+    public static final int DEFAULT_SAMPLES = 5;
+    static final long IDLE_FLUSH_MILLIS = 5000;
+    static final int MAX_TAGS = 10000;
+    static final String OVERFLOW_TAG = "(too many distinct tags)";
+
+    static class Entry
+    {
+        String archive;
+        long offset;
+        String uri;
+        String tag;
+        Throwable rootCause;
+        Throwable exception;
+        // set on the marker that flush() puts in the queue
+        CountDownLatch flushed;
+    }
+
+    // Only touched by the logger thread.
+    static class Tag
+    {
+        long total = 0;
+        long sinceFlush = 0;
+        // occurrences past fullTraces since the last flush, and the sample
+        // of them
+        long sampleSeen = 0;
+        List<Map<String, Object>> sample =
+            new ArrayList<Map<String, Object>>();
+    }
+
+    final Writer out;
+    final Gson gson;
+    final BlockingQueue<Entry> queue;
+    final Stats.Counter dropped;
+    volatile int fullTraces = DEFAULT_FULL_TRACES;
+    volatile int samples = DEFAULT_SAMPLES;
+    final Thread thread;
+    volatile boolean closed = false;
+
+    final Map<String, Tag> tags = new HashMap<String, Tag>();
+    final Random random = new Random();
+    boolean dirty = false;
+
+    public ExceptionLogger(Writer out, Gson gson, int queueSize, Stats stats)
+    {
+        this.out = out;
+        this.gson = gson;
+        this.queue = new ArrayBlockingQueue<Entry>(queueSize);
+        this.dropped = stats.counter("exception-log-dropped");
+        this.thread = Util.daemonThreadFactory("cctext-exception-logger")
+            .newThread(new Runnable() {
+                    public void run() {
+                        drain();
+                    }
+                });
+        this.thread.start();
+    }
+
+    // 0 for fullTraces means only ever log samples; 0 for samples means
+    // just the summaries once a tag's used up its full tracebacks.
+    public void setLimits(int fullTraces, int samples)
+    {
+        this.fullTraces = fullTraces;
+        this.samples = samples;
+    }
+
+    // Never blocks. rootCause is what the entry reports; exception is
+    // what gets its traceback printed.
+    public void log(String archive, long offset, String uri, String tag,
+                    Throwable rootCause, Throwable exception)
+    {
+        Entry entry = new Entry();
+        entry.archive = archive;
+        entry.offset = offset;
+        entry.uri = uri;
+        entry.tag = tag;
+        entry.rootCause = rootCause;
+        entry.exception = exception;
+        if (closed || !queue.offer(entry)) {
+            dropped.increment();
+        }
+    }
+
+    // Waits until everything logged so far (and the samples) is written
+    // and flushed. Does nothing once we're closed.
+    public void flush()
+        throws IOException
+    {
+        if (!closed) {
+            writeAndFlush();
+        }
+    }
+
+    void writeAndFlush()
+        throws IOException
+    {
+        Entry marker = new Entry();
+        marker.flushed = new CountDownLatch(1);
+        try {
+            queue.put(marker);
+            marker.flushed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted flushing exception log");
+        }
+    }
+
+    // Flushes, then stops the logger thread; anything logged after this
+    // is dropped. Doesn't close the Writer.
+    public void close()
+        throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writeAndFlush();
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted closing exception log");
+        }
+    }
+
+    void drain()
+    {
+        while (true) {
+            Entry entry;
+            try {
+                entry = queue.poll(IDLE_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                if (entry == null) {
+                    if (dirty) {
+                        out.flush();
+                        dirty = false;
+                    }
+                } else if (entry.flushed != null) {
+                    try {
+                        writeSamples();
+                        out.flush();
+                        dirty = false;
+                    } finally {
+                        entry.flushed.countDown();
+                    }
+                } else {
+                    handle(entry);
+                }
+            } catch (Throwable e) {
+                // Nowhere else to put it, and we mustn't die.
+                System.err.println("Failed to write exception log:");
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+
+    void handle(Entry entry)
+        throws IOException
+    {
+        Tag tag = tags.get(entry.tag);
+        if (tag == null && tags.size() >= MAX_TAGS) {
+            entry.tag = OVERFLOW_TAG;
+            tag = tags.get(entry.tag);
+        }
+        if (tag == null) {
+            tag = new Tag();
+            tags.put(entry.tag, tag);
+        }
+        tag.total++;
+        tag.sinceFlush++;
+        if (tag.total <= fullTraces) {
+            write(render(entry));
+            return;
+        }
+        // Algorithm R: after n occurrences, each one is in the sample with
+        // probability samples / n.
+        tag.sampleSeen++;
+        int limit = samples;
+        if (tag.sample.size() < limit) {
+            tag.sample.add(render(entry));
+        } else if (limit > 0) {
+            long slot = (long) (random.nextDouble() * tag.sampleSeen);
+            if (slot < limit) {
+                tag.sample.set((int) slot, render(entry));
+            }
+        }
+    }
+
+    Map<String, Object> render(Entry entry)
+    {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("archive", entry.archive);
+        result.put("offset", entry.offset);
+        result.put("uri", entry.uri);
+        // ExceptionUtils.getMessage automatically includes class name
+        result.put("exception", ExceptionUtils.getMessage(entry.rootCause));
+        result.put("traceback", ExceptionUtils.getStackTrace(entry.exception));
+        return result;
+    }
+
+    // For each tag that's past its full tracebacks and has happened since
+    // the last flush: the sample, then a summary.
+    void writeSamples()
+        throws IOException
+    {
+        for (Map.Entry<String, Tag> entry : tags.entrySet()) {
+            Tag tag = entry.getValue();
+            if (tag.sampleSeen == 0) {
+                tag.sinceFlush = 0;
+                continue;
+            }
+            for (Map<String, Object> sampled : tag.sample) {
+                sampled.put("sampled-from", tag.sampleSeen);
+                write(sampled);
+            }
+            Map<String, Object> summary = new LinkedHashMap<String, Object>();
+            summary.put("tag", entry.getKey());
+            summary.put("occurrences", tag.total);
+            summary.put("since-last-flush", tag.sinceFlush);
+            summary.put("sampled", tag.sample.size());
+            write(summary);
+            tag.sinceFlush = 0;
+            tag.sampleSeen = 0;
+            tag.sample.clear();
+        }
+    }
+
+    void write(Map<String, Object> entry)
+        throws IOException
+    {
+        out.write(gson.toJson(entry));
+        out.write("\n\n");
+        dirty = true;
+    }
+}
@@ -0,0 +1,326 @@
+package org.vorpus.cctext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.TreeSet;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPOutputStream;
+
+// Where the extracted text goes, when there's a lot of it.
+//
+// Any number of threads can write() at once. Each thread fills a buffer of
+// its own, and when that's full (about CHUNK_BYTES) it's handed to a
+// background pool that compresses it -- each chunk separately, as its own
+// gzip member (or whatever the Codec does) -- and appends it to the current
+// output file through a FileChannel. Concatenated gzip members are a valid
+// gzip file, so the output reads like any other .gz, and chunks can be
+// compressed in parallel. Since chunks from different threads go out in
+// whatever order they finish, lines from different records may be
+// interleaved at chunk granularity; each line stands alone, so that's fine.
+//
+// Memory is bounded: at most maxBufferedBytes of handed-off chunks can be
+// waiting to be compressed or written, plus the one chunk each writing
+// thread is filling. A writer only blocks when that budget is used up. A
+// thread only gets a new chunk once it writes again after a hand-off, and
+// threads that are done writing for good should call release(), or we'd
+// hang on to their (empty) buffer forever.
+//
+// Files are <prefix>-00000<extension>, <prefix>-00001<extension>, ...; we
+// move on to the next one once the current one reaches rollBytes (checked
+// between chunks, so they can go over by up to one compressed chunk).
+public class ExtractedTextSink implements Closeable
+{
+    static final int CHUNK_BYTES = 4 * 1024 * 1024;
+    static final long DEFAULT_MAX_BUFFERED_BYTES = 256L * 1024 * 1024;
+    static final long DEFAULT_ROLL_BYTES = 1024L * 1024 * 1024;
+
+    public interface Codec
+    {
+        // e.g. ".gz"
+        String extension();
+
+        // Compresses one chunk; closing the returned stream must finish
+        // the compressed data, but not close out.
+        OutputStream wrap(OutputStream out) throws IOException;
+    }
+
+    public static final Codec GZIP = new Codec() {
+            public String extension() {
+                return ".gz";
+            }
+
+            public OutputStream wrap(OutputStream out) throws IOException {
+                return new GZIPOutputStream(out, 64 * 1024);
+            }
+        };
+
+    public static final Codec NONE = new Codec() {
+            public String extension() {
+                return "";
+            }
+
+            public OutputStream wrap(OutputStream out) {
+                return out;
+            }
+        };
+
+    final File directory;
+    final String prefix;
+    final Codec codec;
+    final long rollBytes;
+    final ExecutorService compressors;
+    // one permit per chunk we're allowed to have handed off
+    final Semaphore budget;
+
+    // The per-thread buffers. All of them are also in allBuffers, so that
+    // flush() can get at them.
+    final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>();
+    final List<Buffer> allBuffers = new ArrayList<Buffer>();
+
+    // Guarded by this: the output file, and the chunks handed off but not
+    // yet written, by sequence number (chunks are numbered in the order
+    // they're handed off, so flush() can wait for just the ones before it).
+    FileChannel channel;
+    int fileNumber = -1;
+    long fileBytes;
+    long handedOff = 0;
+    final TreeSet<Long> inFlight = new TreeSet<Long>();
+    IOException failure;
+
+    static class Buffer
+    {
+        // null until something's written, and again after a hand-off
+        byte[] bytes = null;
+        int length = 0;
+    }
+
+    public ExtractedTextSink(File directory, String prefix)
+        throws IOException
+    {
+        this(directory, prefix, GZIP, DEFAULT_ROLL_BYTES,
+             DEFAULT_MAX_BUFFERED_BYTES, 1);
+    }
+
+    public ExtractedTextSink(File directory, String prefix, Codec codec,
+                             long rollBytes, long maxBufferedBytes,
+                             int compressorThreads)
+        throws IOException
+    {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.codec = codec;
+        this.rollBytes = rollBytes;
+        budget = new Semaphore((int) Math.max(1, Math.min(
+            Integer.MAX_VALUE, maxBufferedBytes / CHUNK_BYTES)));
+        compressors = Executors.newFixedThreadPool(
+            compressorThreads,
+            Util.daemonThreadFactory("cctext-text-compressor"));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can't create " + directory);
+        }
+        openNextFile();
+    }
+
+    public void write(String text)
+        throws IOException
+    {
+        write(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void write(byte[] bytes)
+        throws IOException
+    {
+        checkFailure();
+        Buffer buffer = buffers.get();
+        if (buffer == null) {
+            buffer = new Buffer();
+            buffers.set(buffer);
+            synchronized (allBuffers) {
+                allBuffers.add(buffer);
+            }
+        }
+        // Only flush() ever touches a buffer from another thread, so this
+        // lock is almost never contended.
+        synchronized (buffer) {
+            // Each write goes into a single chunk, since chunks from
+            // different threads can end up interleaved, and we mustn't
+            // split a line.
+            if (buffer.bytes != null
+                && buffer.length + bytes.length > buffer.bytes.length) {
+                handOff(buffer);
+            }
+            if (buffer.bytes == null) {
+                // anything bigger than a chunk gets a chunk of its own
+                // (counted as just one chunk against the budget, but these
+                // are rare)
+                buffer.bytes = new byte[Math.max(CHUNK_BYTES, bytes.length)];
+            }
+            System.arraycopy(bytes, 0, buffer.bytes, buffer.length,
+                             bytes.length);
+            buffer.length += bytes.length;
+        }
+    }
+
+    // Sends buffer's contents off to be compressed; the next write gets a
+    // fresh array. Blocks if we're over budget.
+    void handOff(Buffer buffer)
+        throws IOException
+    {
+        if (buffer.length == 0) {
+            return;
+        }
+        try {
+            budget.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for output buffer", e);
+        }
+        final byte[] bytes = buffer.bytes;
+        final int length = buffer.length;
+        buffer.bytes = null;
+        buffer.length = 0;
+        final long sequence;
+        synchronized (this) {
+            sequence = ++handedOff;
+            inFlight.add(sequence);
+        }
+        compressors.execute(new Runnable() {
+                public void run() {
+                    try {
+                        ByteArrayOutputStream compressed =
+                            new ByteArrayOutputStream(length / 3);
+                        OutputStream out = codec.wrap(compressed);
+                        out.write(bytes, 0, length);
+                        out.close();
+                        append(compressed.toByteArray());
+                    } catch (IOException e) {
+                        fail(e);
+                    } finally {
+                        budget.release();
+                        synchronized (ExtractedTextSink.this) {
+                            inFlight.remove(sequence);
+                            ExtractedTextSink.this.notifyAll();
+                        }
+                    }
+                }
+            });
+    }
+
+    // Hands off whatever the calling thread has buffered, and forgets its
+    // buffer. (Handed off before it's forgotten, so a concurrent flush()
+    // either sees the buffer or waits for the chunk.)
+    public void release()
+        throws IOException
+    {
+        Buffer buffer = buffers.get();
+        if (buffer == null) {
+            return;
+        }
+        synchronized (buffer) {
+            handOff(buffer);
+        }
+        synchronized (allBuffers) {
+            allBuffers.remove(buffer);
+        }
+        buffers.remove();
+    }
+
+    synchronized void append(byte[] compressed)
+        throws IOException
+    {
+        if (fileBytes > 0 && fileBytes + compressed.length > rollBytes) {
+            channel.close();
+            openNextFile();
+        }
+        ByteBuffer buf = ByteBuffer.wrap(compressed);
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        fileBytes += compressed.length;
+    }
+
+    synchronized void openNextFile()
+        throws IOException
+    {
+        fileNumber++;
+        File file = new File(directory, String.format(
+            "%s-%05d%s", prefix, fileNumber, codec.extension()));
+        channel = FileChannel.open(file.toPath(),
+                                   StandardOpenOption.CREATE_NEW,
+                                   StandardOpenOption.WRITE);
+        fileBytes = 0;
+    }
+
+    synchronized void fail(IOException e)
+    {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    synchronized void checkFailure()
+        throws IOException
+    {
+        if (failure != null) {
+            throw new IOException("writing extracted text failed", failure);
+        }
+    }
+
+    // Hands off everything buffered so far, from every thread, and waits
+    // until it's all written out and synced to disk. Only waits for chunks
+    // handed off before it's done that, so writers that keep going can't
+    // keep it waiting forever.
+    public void flush()
+        throws IOException
+    {
+        List<Buffer> snapshot;
+        synchronized (allBuffers) {
+            snapshot = new ArrayList<Buffer>(allBuffers);
+        }
+        for (Buffer buffer : snapshot) {
+            synchronized (buffer) {
+                handOff(buffer);
+            }
+        }
+        synchronized (this) {
+            long last = handedOff;
+            while (!inFlight.isEmpty() && inFlight.first() <= last) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted in flush", e);
+                }
+            }
+            checkFailure();
+            channel.force(false);
+        }
+    }
+
+    public void close()
+        throws IOException
+    {
+        try {
+            flush();
+        } finally {
+            compressors.shutdown();
+            synchronized (this) {
+                channel.close();
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.vorpus.cctext;
 
 import java.io.InputStream;
+import java.io.ByteArrayInputStream;
 import java.io.StringReader;
 import java.io.IOException;
 
@@ -9,6 +10,10 @@ import java.util.HashSet;
 import java.util.Arrays;
 import java.util.Collections;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
 import org.xml.sax.XMLReader;
 import org.xml.sax.SAXException;
 import org.xml.sax.ContentHandler;
@@ -26,64 +31,388 @@ import com.ibm.icu.text.Normalizer2;
 
 public class HTMLToText
 {
+    // Setting up a parser is surprisingly expensive compared to parsing a
+    // small page (and SAXParserFactory.newInstance() does a service-loader
+    // lookup every time), so each thread keeps its own parsers and
+    // TextExtractor around and reuses them for every document.
+    static final SAXParserFactory xmlParserFactory;
+    static
+    {
+        xmlParserFactory = SAXParserFactory.newInstance();
+        xmlParserFactory.setNamespaceAware(true);
+        xmlParserFactory.setValidating(false);
+    }
+
+    static final ThreadLocal<Context> contexts = new ThreadLocal<Context>() {
+        protected Context initialValue() {
+            return new Context();
+        }
+    };
+
     public static Result parse(InputStream stream,
                                boolean xhtml,
                                String declared_encoding)
         throws Throwable
     {
-        XMLReader parser;
+        return contexts.get().parse(stream, xhtml, declared_encoding);
+    }
 
-        if (xhtml) {
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            factory.setNamespaceAware(true);
-            factory.setValidating(false);
-            parser = factory.newSAXParser().getXMLReader();
-        } else {
-            // ALLOW means to follow the HTML5 spec rather than the SAX spec
-            // when they differ -- this just means to allow little things like
-            // comments containing double-hyphens, and edge-cases involving
-            // which characters count as white-space, stuff like that.
-            HtmlParser htmlParser = new HtmlParser(XmlViolationPolicy.ALLOW);
-            htmlParser.setHeuristics(Heuristics.ALL);
-            parser = htmlParser;
-        }
+    // FULL runs every document through the real HTML5 parser. FAST tries
+    // StreamingExtractor first, and only falls back to the real parser for
+    // documents it can't handle (and for XHTML, which always goes through
+    // the XML parser).
+    public enum Mode
+    {
+        FULL, FAST
+    }
 
+    // In FAST mode, every checkInterval'th document that the fast path
+    // handles is also run through the full parser, and the two outputs are
+    // compared (see Result.checkOutcome). 0 disables this.
+    public static Result parse(InputStream stream,
+                               boolean xhtml,
+                               String declared_encoding,
+                               Mode mode,
+                               int checkInterval)
+        throws Throwable
+    {
+        return parse(stream, xhtml, declared_encoding, mode, checkInterval,
+                     false);
+    }
 
+    // With utf8Output set, the text comes back as UTF-8 in Result.utf8
+    // instead of as a String in Result.content. That buffer is reused for
+    // the next document parsed on the same thread, so anything that needs
+    // to outlive that has to be copied out first.
+    public static Result parse(InputStream stream,
+                               boolean xhtml,
+                               String declared_encoding,
+                               Mode mode,
+                               int checkInterval,
+                               boolean utf8Output)
+        throws Throwable
+    {
+        return parse(stream, xhtml, declared_encoding, mode, checkInterval,
+                     utf8Output, 0, 0);
+    }
+
+    // Extraction stops early (see Result.limitExceeded) once there are more
+    // than maxChars characters of visible text, or System.nanoTime() gets
+    // past deadline. 0 means no limit, for either. See RecordLimits.
+    public static Result parse(InputStream stream,
+                               boolean xhtml,
+                               String declared_encoding,
+                               Mode mode,
+                               int checkInterval,
+                               boolean utf8Output,
+                               int maxChars,
+                               long deadline)
+        throws Throwable
+    {
+        Context context = contexts.get();
+        context.extractor.utf8Output = utf8Output;
+        context.extractor.maxChars = maxChars;
+        context.extractor.deadline = deadline;
+        if (mode == Mode.FULL || xhtml) {
+            return context.parse(stream, xhtml, declared_encoding);
+        }
+        return context.parseFast(stream, declared_encoding, checkInterval);
+    }
+
+    // Everything needed to parse one document at a time. Not thread-safe;
+    // use the one returned by contexts.get().
+    static class Context
+    {
+        HtmlParser htmlParser = null;
+        XMLReader xmlParser = null;
         TextExtractor extractor = new TextExtractor();
-        parser.setContentHandler(extractor);
-        // It's important to install a null entity resolver, so that the
-        // parser won't go trying to download DTDs from the internet.
-        parser.setEntityResolver(extractor);
-
-        // Error handling:
-        // The SAX API allows parser to report three types of errors: "error",
-        // "fatalError", and "warning". In general, "error" and "warning" are
-        // recoverable (the parser may keep going), and in fact looking at
-        // htmlparser/impl/Tokenizer.java there are tons of calls to error
-        // which then get cleaned up after and parsing continues. OTOH there
-        // are very few *fatal* errors, and when a fatal error is encountered
-        // the parser throws an exception regardless. So we don't bother
-        // setting an ErrorHandler.
-        // parser.setErrorHandler(null);
-
-        InputSource source = new InputSource(stream);
-        source.setEncoding(declared_encoding);
-        parser.parse(source);
-
-        assert extractor.blockInProgress.length() == 0;
-
-        Result result = new Result();
-        result.content = extractor.documentInProgress.toString();
-        assert result.content.charAt(result.content.length() - 1) == '\n';
-        result.languageHints = extractor.languageHints;
-
-        return result;
+        StreamingExtractor streamingExtractor =
+            new StreamingExtractor(extractor);
+        // The fast path wants the whole document in memory. Like the
+        // extractor's builders, this keeps whatever size it grows to,
+        // unless that's more than TextExtractor.MAX_RETAINED_CAPACITY.
+        static final int CONTENT_CAPACITY = 64 * 1024;
+        byte[] content = new byte[CONTENT_CAPACITY];
+        long fastCount = 0;
+
+        XMLReader getParser(boolean xhtml)
+            throws Throwable
+        {
+            XMLReader parser;
+            if (xhtml) {
+                if (xmlParser == null) {
+                    synchronized (xmlParserFactory) {
+                        xmlParser = xmlParserFactory.newSAXParser()
+                            .getXMLReader();
+                    }
+                    setupParser(xmlParser);
+                }
+                parser = xmlParser;
+            } else {
+                if (htmlParser == null) {
+                    // ALLOW means to follow the HTML5 spec rather than the
+                    // SAX spec when they differ -- this just means to allow
+                    // little things like comments containing
+                    // double-hyphens, and edge-cases involving which
+                    // characters count as white-space, stuff like that.
+                    htmlParser = new HtmlParser(XmlViolationPolicy.ALLOW);
+                    htmlParser.setHeuristics(Heuristics.ALL);
+                    setupParser(htmlParser);
+                }
+                parser = htmlParser;
+            }
+            return parser;
+        }
+
+        void setupParser(XMLReader parser)
+        {
+            parser.setContentHandler(extractor);
+            // It's important to install a null entity resolver, so that the
+            // parser won't go trying to download DTDs from the internet.
+            parser.setEntityResolver(extractor);
+
+            // Error handling:
+            // The SAX API allows parser to report three types of errors:
+            // "error", "fatalError", and "warning". In general, "error" and
+            // "warning" are recoverable (the parser may keep going), and in
+            // fact looking at htmlparser/impl/Tokenizer.java there are tons
+            // of calls to error which then get cleaned up after and parsing
+            // continues. OTOH there are very few *fatal* errors, and when a
+            // fatal error is encountered the parser throws an exception
+            // regardless. So we don't bother setting an ErrorHandler.
+            // parser.setErrorHandler(null);
+        }
+
+        Result parse(InputStream stream,
+                     boolean xhtml,
+                     String declared_encoding)
+            throws Throwable
+        {
+            XMLReader parser = getParser(xhtml);
+            extractor.reset();
+            if (extractor.deadline != 0) {
+                stream = new RecordLimits.DeadlineInputStream(
+                    stream, extractor.deadline);
+            }
+
+            InputSource source = new InputSource(stream);
+            source.setEncoding(declared_encoding);
+            try {
+                parser.parse(source);
+            } catch (Throwable e) {
+                // Who knows what state the parser was left in; start afresh
+                // next time.
+                htmlParser = null;
+                xmlParser = null;
+                RecordLimits.Exceeded exceeded = RecordLimits.find(e);
+                if (exceeded == null) {
+                    throw e;
+                }
+                return cutShort(exceeded, "full");
+            }
+
+            Result result = finish();
+            result.extractionMode = "full";
+            return result;
+        }
+
+        // What we'd got when the extractor hit a limit.
+        Result cutShort(RecordLimits.Exceeded exceeded, String mode)
+        {
+            extractor.flushBlock();
+            Result result = finish();
+            result.extractionMode = mode;
+            result.limitExceeded = exceeded.limit;
+            return result;
+        }
+
+        Result finish()
+        {
+            assert extractor.blockInProgress.length() == 0;
+
+            Result result = new Result();
+            result.normalizeNanos = extractor.normalizeNanos;
+            if (extractor.utf8Output) {
+                result.utf8 = extractor.utf8Document.duplicate();
+                result.utf8.flip();
+                result.languageHints = extractor.languageHints;
+                return result;
+            }
+            result.content = extractor.documentInProgress.toString();
+            assert (result.content.isEmpty()
+                    || result.content.charAt(result.content.length() - 1)
+                       == '\n');
+            result.languageHints = extractor.languageHints;
+
+            return result;
+        }
+
+        Result parseFast(InputStream stream,
+                         String declared_encoding,
+                         int checkInterval)
+            throws Throwable
+        {
+            try {
+                return parseFastContent(readAll(stream), declared_encoding,
+                                        checkInterval);
+            } finally {
+                if (content.length > TextExtractor.MAX_RETAINED_CAPACITY) {
+                    content = new byte[CONTENT_CAPACITY];
+                }
+            }
+        }
+
+        Result parseFastContent(int length,
+                                String declared_encoding,
+                                int checkInterval)
+            throws Throwable
+        {
+            String reason;
+            Charset charset = charsetOrNull(declared_encoding);
+            if (charset == null) {
+                reason = (declared_encoding == null
+                          ? "no-charset" : "unknown-charset");
+            } else {
+                extractor.reset();
+                try {
+                    streamingExtractor.extract(content, 0, length, charset);
+                    Result result = finish();
+                    result.extractionMode = "fast";
+                    fastCount++;
+                    if (checkInterval > 0 && fastCount % checkInterval == 0) {
+                        check(result, length, declared_encoding);
+                    }
+                    return result;
+                } catch (StreamingExtractor.Unsupported e) {
+                    reason = e.getMessage();
+                } catch (RecordLimits.Exceeded e) {
+                    return cutShort(e, "fast");
+                }
+            }
+            Result result = parse(new ByteArrayInputStream(content, 0, length),
+                                  false, declared_encoding);
+            result.extractionMode = "fast-fallback";
+            result.fallbackReason = reason;
+            return result;
+        }
+
+        // Runs the full parser on the same document, and records how far its
+        // output is from what the fast path gave us.
+        void check(Result fast, int length, String declared_encoding)
+        {
+            // Get the full parser's output as a String, so that it doesn't
+            // overwrite the fast result's UTF-8.
+            boolean utf8Output = extractor.utf8Output;
+            extractor.utf8Output = false;
+            Result full;
+            try {
+                full = parse(new ByteArrayInputStream(content, 0, length),
+                             false, declared_encoding);
+            } catch (Throwable e) {
+                fast.checkOutcome = "full-parser-failed";
+                return;
+            } finally {
+                extractor.utf8Output = utf8Output;
+            }
+            fast.checkDifference = difference(fast.getContent(),
+                                              full.content);
+            if (fast.checkDifference == 0
+                && fast.languageHints.equals(full.languageHints)) {
+                fast.checkOutcome = "identical";
+            } else {
+                fast.checkOutcome = "different";
+            }
+        }
+
+        int readAll(InputStream stream)
+            throws IOException
+        {
+            int length = 0;
+            while (true) {
+                if (length == content.length) {
+                    content = Arrays.copyOf(content, content.length * 2);
+                }
+                int n = stream.read(content, length, content.length - length);
+                if (n < 0) {
+                    return length;
+                }
+                length += n;
+            }
+        }
+    }
+
+    static Charset charsetOrNull(String name)
+    {
+        if (name == null) {
+            return null;
+        }
+        try {
+            return Charset.forName(name.trim());
+        } catch (IllegalArgumentException e) {
+            // IllegalCharsetNameException or UnsupportedCharsetException
+            return null;
+        }
+    }
+
+    // Size of the region where a and b differ, after stripping their common
+    // prefix and suffix. 0 iff they're equal.
+    static int difference(String a, String b)
+    {
+        int limit = Math.min(a.length(), b.length());
+        int prefix = 0;
+        while (prefix < limit && a.charAt(prefix) == b.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < limit - prefix
+               && a.charAt(a.length() - 1 - suffix)
+                  == b.charAt(b.length() - 1 - suffix)) {
+            suffix++;
+        }
+        return Math.max(a.length(), b.length()) - prefix - suffix;
     }
 
     public static class Result
     {
+        // Exactly one of these is set, depending on whether the parse was
+        // asked for UTF-8 output. utf8 runs from position to limit.
         public String content;
+        public ByteBuffer utf8;
         public Set<String> languageHints;
+
+        // "full", "fast", or "fast-fallback" (with the reason we gave up)
+        public String extractionMode;
+        public String fallbackReason;
+        // Only set on fast results that were double-checked against the
+        // full parser: "identical", "different" or "full-parser-failed",
+        // and how many chars of content differed.
+        public String checkOutcome;
+        public int checkDifference;
+        // Set if extraction stopped early because of a RecordLimits limit
+        // ("extracted-chars" or "parse-time"); the text is what we had by
+        // then.
+        public String limitExceeded;
+        // How much of the parse went on normalizing the text (see
+        // TextNormalizer); Driver reports it as a stage of its own.
+        public long normalizeNanos;
+
+        public boolean isEmpty()
+        {
+            if (content != null) {
+                return content.isEmpty();
+            }
+            return !utf8.hasRemaining();
+        }
+
+        // Decodes the UTF-8 if necessary (and then keeps the String).
+        public String getContent()
+        {
+            if (content == null) {
+                content = StandardCharsets.UTF_8.decode(utf8.duplicate())
+                    .toString();
+            }
+            return content;
+        }
     }
 
     public static class TextExtractor extends DefaultHandler
@@ -168,8 +497,26 @@ public class HTMLToText
             assertNoIntersection(blockTags, knownRegularTags);
         }
 
-        public StringBuilder blockInProgress = new StringBuilder();
-        public StringBuilder documentInProgress = new StringBuilder();
+        // Initial sizes for the builders below. They keep whatever capacity
+        // they grow to between documents, unless some monster page made them
+        // bigger than MAX_RETAINED_CAPACITY.
+        static final int BLOCK_CAPACITY = 1024;
+        static final int DOCUMENT_CAPACITY = 16 * 1024;
+        static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+        public StringBuilder blockInProgress =
+            new StringBuilder(BLOCK_CAPACITY);
+        public StringBuilder documentInProgress =
+            new StringBuilder(DOCUMENT_CAPACITY);
+
+        // With utf8Output set, finished blocks are encoded straight into
+        // utf8Document (which is direct, so LanguageDetection can hand it
+        // to CLD2 without copying) instead of going into
+        // documentInProgress; normalizedBlock is just scratch space.
+        public boolean utf8Output = false;
+        public ByteBuffer utf8Document =
+            ByteBuffer.allocateDirect(DOCUMENT_CAPACITY);
+        StringBuilder normalizedBlock = new StringBuilder(BLOCK_CAPACITY);
         //public StringBuilder linkInProgress = new StringBuilder();
         // these integers count embedding depth for the relevant feature
         //public int inLink = 0;
@@ -177,6 +524,41 @@ public class HTMLToText
 
         public Set<String> languageHints = new HashSet();
 
+        // See HTMLToText.parse. These aren't touched by reset().
+        public int maxChars = 0;
+        public long deadline = 0;
+        int charsSeen = 0;
+        long normalizeNanos = 0;
+
+        // Gets ready to extract another document. languageHints is handed
+        // off to the caller in the Result (who may add to it), so that gets
+        // replaced rather than cleared.
+        public void reset()
+        {
+            blockInProgress = resetBuilder(blockInProgress, BLOCK_CAPACITY);
+            documentInProgress = resetBuilder(documentInProgress,
+                                              DOCUMENT_CAPACITY);
+            normalizedBlock = resetBuilder(normalizedBlock, BLOCK_CAPACITY);
+            if (utf8Document.capacity() > MAX_RETAINED_CAPACITY) {
+                utf8Document = ByteBuffer.allocateDirect(DOCUMENT_CAPACITY);
+            }
+            utf8Document.clear();
+            inInvisible = 1;
+            languageHints = new HashSet();
+            charsSeen = 0;
+            normalizeNanos = 0;
+        }
+
+        static StringBuilder resetBuilder(StringBuilder builder,
+                                          int initialCapacity)
+        {
+            if (builder.capacity() > MAX_RETAINED_CAPACITY) {
+                return new StringBuilder(initialCapacity);
+            }
+            builder.setLength(0);
+            return builder;
+        }
+
         public boolean isInvisible(String uri, String localName)
         {
             return (!uri.equals(HTML_NAMESPACE)
@@ -185,7 +567,19 @@ public class HTMLToText
 
         static Normalizer2 NFC = Normalizer2.getNFCInstance();
 
+        TextNormalizer normalizer = new TextNormalizer();
+
         public static String normalizeText(CharSequence content)
+        {
+            StringBuilder out = new StringBuilder(content.length());
+            new TextNormalizer().normalizeInto(content, out);
+            return out.toString();
+        }
+
+        // The original, straightforward definition of normalizeText.
+        // TextNormalizer must produce exactly the same output as this; keep
+        // it around for checking that.
+        public static String normalizeTextReference(CharSequence content)
         {
             // Some interesting characters:
             //
@@ -228,24 +622,77 @@ public class HTMLToText
                 return;
             }
             if (blockTags.contains(localName)) {
-                String block = normalizeText(blockInProgress);
-                blockInProgress.setLength(0);
-
-                //int block_codepoints = codePointCount(block);
-                // int link_codepoints = codePointCount(normalize(linkInProgress));
-                // linkInProgress.setLength(0);
-
-                if (!block.isEmpty()) {
-                    documentInProgress.append(block);
-                    documentInProgress.append("\n");
-                    // int linkiness = (int) Math.round((double) link_codepoints
-                    //                                  / (double) block_codepoints
-                    //                                  * 100);
-                    // if (wordCount(block) >= 5) {
-                    //     System.out.println(block);
-                    // }
-                    //System.out.println(block);
-                    //System.out.format("%d: %s\n", linkiness, block);
+                flushBlock();
+            }
+        }
+
+        // Ends the block in progress.
+        void flushBlock()
+        {
+            StringBuilder out = documentInProgress;
+            if (utf8Output) {
+                out = normalizedBlock;
+                out.setLength(0);
+            }
+            long start = System.nanoTime();
+            int blockLength = normalizer.normalizeInto(blockInProgress, out);
+            normalizeNanos += System.nanoTime() - start;
+            blockInProgress.setLength(0);
+
+            //int block_codepoints = codePointCount(block);
+            // int link_codepoints = codePointCount(normalize(linkInProgress));
+            // linkInProgress.setLength(0);
+
+            if (blockLength > 0) {
+                out.append("\n");
+                if (utf8Output) {
+                    appendUTF8(out);
+                }
+                // int linkiness = (int) Math.round((double) link_codepoints
+                //                                  / (double) block_codepoints
+                //                                  * 100);
+                // if (wordCount(block) >= 5) {
+                //     System.out.println(block);
+                // }
+                //System.out.println(block);
+                //System.out.format("%d: %s\n", linkiness, block);
+            }
+        }
+
+        // Same output as String.getBytes(UTF_8), including replacing lone
+        // surrogates with '?'.
+        void appendUTF8(CharSequence chars)
+        {
+            int length = chars.length();
+            if (utf8Document.remaining() < 3 * length) {
+                ByteBuffer bigger = ByteBuffer.allocateDirect(
+                    Math.max(2 * utf8Document.capacity(),
+                             utf8Document.position() + 3 * length));
+                utf8Document.flip();
+                bigger.put(utf8Document);
+                utf8Document = bigger;
+            }
+            ByteBuffer out = utf8Document;
+            for (int i = 0; i < length; i++) {
+                char c = chars.charAt(i);
+                if (c < 0x80) {
+                    out.put((byte) c);
+                } else if (c < 0x800) {
+                    out.put((byte) (0xc0 | (c >> 6)));
+                    out.put((byte) (0x80 | (c & 0x3f)));
+                } else if (!Character.isSurrogate(c)) {
+                    out.put((byte) (0xe0 | (c >> 12)));
+                    out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                    out.put((byte) (0x80 | (c & 0x3f)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                           && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, chars.charAt(++i));
+                    out.put((byte) (0xf0 | (cp >> 18)));
+                    out.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                    out.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                    out.put((byte) (0x80 | (cp & 0x3f)));
+                } else {
+                    out.put((byte) '?');
                 }
             }
         }
@@ -313,9 +760,18 @@ public class HTMLToText
             }
         }
 
+        void checkDeadline()
+            throws RecordLimits.Exceeded
+        {
+            if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                throw new RecordLimits.Exceeded("parse-time");
+            }
+        }
+
         public void startElement(String uri, String localName, String qName,
                                  Attributes atts) throws SAXException
         {
+            checkDeadline();
             checkForLangHints(uri, localName, qName, atts);
 
             if (isInvisible(uri, localName)) {
@@ -365,10 +821,19 @@ public class HTMLToText
         public void characters(char[] ch, int start, int length)
             throws SAXException
         {
+            checkDeadline();
             if (inInvisible > 0) {
                 return;
             }
 
+            if (maxChars > 0 && charsSeen + length > maxChars) {
+                // keep what fits, and stop there
+                blockInProgress.append(ch, start,
+                                       Math.max(0, maxChars - charsSeen));
+                charsSeen = maxChars;
+                throw new RecordLimits.Exceeded("extracted-chars");
+            }
+            charsSeen += length;
             blockInProgress.append(ch, start, length);
             // if (inLink > 0) {
             //     linkInProgress.append(ch, start, length);
@@ -1,16 +1,14 @@
 package org.vorpus.cctext;
 
 import java.util.Set;
+import java.util.List;
 import java.util.Arrays;
+import java.util.Collections;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 import org.apache.commons.lang3.StringUtils;
 
-import org.bridj.Pointer;
-import static org.bridj.Pointer.*;
-import org.vorpus.cld2wrap.CLD2Wrap;
-import static org.vorpus.cld2wrap.CLD2wrapLibrary.*;
-import org.vorpus.cld2wrap.CLD2WrapResultChunk;
 
 public class LanguageDetection
 {
@@ -18,43 +16,257 @@ public class LanguageDetection
                                 Set<String> contentLanguageHints,
                                 String tldHint)
     {
-        // pointerToBytes blows up with NullPointerException if passed an
-        // empty array. why? it's a mystery.
+        // The old one-at-a-time interface required this (pointerToBytes
+        // blows up with NullPointerException if passed an empty array),
+        // and callers still check, since there's no point detecting nothing.
         assert !s.isEmpty();
 
-        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        return detectBatch(Collections.singletonList(s),
+                           Collections.singletonList(contentLanguageHints),
+                           Collections.singletonList(tldHint))[0];
+    }
+
+    // Detects the language of UTF-8 text, from utf8's position to its
+    // limit. If utf8 is direct (as the ones that come out of HTMLToText
+    // are), CLD2 reads it where it is, and the result chunks are just views
+    // onto it -- so they're only good for as long as utf8's contents are.
+    public static Result detect(ByteBuffer utf8,
+                                Set<String> contentLanguageHints,
+                                String tldHint)
+    {
+        assert utf8.hasRemaining();
+
+        ByteBuffer doc = utf8.duplicate();
+        CLD2Backend backend = backend();
+        if (doc.isDirect()) {
+            backend.setDocuments(doc,
+                                 new int[] { doc.position(), doc.limit() });
+        } else {
+            byte[] copy = new byte[doc.remaining()];
+            doc.duplicate().get(copy);
+            backend.setDocuments(new byte[][] { copy },
+                                 new int[] { 0, copy.length });
+            doc = ByteBuffer.wrap(copy);
+        }
+        return run(backend, new ByteBuffer[] { doc },
+                   Collections.singletonList(contentLanguageHints),
+                   Collections.singletonList(tldHint))[0];
+    }
+
+    // Detects the languages of many documents with a single call into CLD2,
+    // instead of one call per document plus one per result chunk. The three
+    // lists are parallel; any of the hints may be null.
+    public static Result[] detectBatch(List<String> texts,
+                                       List<Set<String>> contentLanguageHints,
+                                       List<String> tldHints)
+    {
+        int numDocs = texts.size();
+        if (numDocs == 0) {
+            return new Result[0];
+        }
+
+        // Pack the documents into one buffer.
+        byte[][] utf8 = new byte[numDocs][];
+        ByteBuffer[] docs = new ByteBuffer[numDocs];
+        int[] docOffsets = new int[numDocs + 1];
+        for (int i = 0; i < numDocs; i++) {
+            utf8[i] = texts.get(i).getBytes(StandardCharsets.UTF_8);
+            docs[i] = ByteBuffer.wrap(utf8[i]);
+            docOffsets[i + 1] = docOffsets[i] + utf8[i].length;
+        }
+        CLD2Backend backend = backend();
+        backend.setDocuments(utf8, docOffsets);
+        return run(backend, docs, contentLanguageHints, tldHints);
+    }
+
+    // Runs the documents last given to backend.setDocuments. docs[i] is
+    // document i on the Java side, from its position on.
+    static Result[] run(CLD2Backend backend,
+                        ByteBuffer[] docs,
+                        List<Set<String>> contentLanguageHints,
+                        List<String> tldHints)
+    {
+        int numDocs = docs.length;
+        Result[] results = new Result[numDocs];
+
+        HintPacker hints = new HintPacker();
+        int[] contentLanguageHintOffsets = new int[numDocs];
+        int[] tldHintOffsets = new int[numDocs];
+        for (int i = 0; i < numDocs; i++) {
+            // silently passes through null
+            contentLanguageHintOffsets[i] = hints.add(
+                StringUtils.join(contentLanguageHints.get(i), ","));
+            tldHintOffsets[i] = hints.add(tldHints.get(i));
+        }
+        backend.setHints(hints.bytes, hints.length,
+                         contentLanguageHintOffsets, tldHintOffsets);
+
+        // Chunk offsets etc. for the whole batch. We guess how many chunks
+        // there will be, and if CLD2 runs out of room part-way through, we
+        // carry on from where it stopped (with more room if it couldn't
+        // even manage one document).
+        int[] chunkOffsets = new int[0];
+        int[] chunkLengths = new int[0];
+        int[] chunkLanguages = new int[0];
+        int totalChunks = 0;
+        int maxChunks = Math.max(64, 4 * numDocs);
+        CLD2Backend.Output out = new CLD2Backend.Output();
+
+        int start = 0;
+        while (start < numDocs) {
+            int done = backend.detect(start, numDocs - start, maxChunks, out);
+            if (done == 0) {
+                maxChunks *= 2;
+                continue;
+            }
+
+            int newChunks = out.chunkStarts[done];
+            if (totalChunks + newChunks > chunkOffsets.length) {
+                int size = Math.max(totalChunks + newChunks,
+                                    2 * chunkOffsets.length);
+                chunkOffsets = Arrays.copyOf(chunkOffsets, size);
+                chunkLengths = Arrays.copyOf(chunkLengths, size);
+                chunkLanguages = Arrays.copyOf(chunkLanguages, size);
+            }
+            System.arraycopy(out.chunkOffsets, 0,
+                             chunkOffsets, totalChunks, newChunks);
+            System.arraycopy(out.chunkLengths, 0,
+                             chunkLengths, totalChunks, newChunks);
+            System.arraycopy(out.chunkLanguages, 0,
+                             chunkLanguages, totalChunks, newChunks);
+
+            for (int i = 0; i < done; i++) {
+                Result result = new Result();
+                result.languages = new String[] {
+                    languageCode(out.languages[3 * i]),
+                    languageCode(out.languages[3 * i + 1]),
+                    languageCode(out.languages[3 * i + 2]),
+                };
+                result.percents = Arrays.copyOfRange(out.percents,
+                                                     3 * i, 3 * i + 3);
+                result.normalizedScores =
+                    Arrays.copyOfRange(out.normalizedScores,
+                                       3 * i, 3 * i + 3);
+                result.isReliable = out.isReliable[i] != 0;
+                result._utf8 = docs[start + i];
+                result._chunkStart = totalChunks + out.chunkStarts[i];
+                result._chunkEnd = totalChunks + out.chunkStarts[i + 1];
+                results[start + i] = result;
+            }
+            totalChunks += newChunks;
+            start += done;
+        }
+
+        // Now that the chunk arrays have stopped growing, hand them out.
+        for (Result result : results) {
+            result._chunkOffsets = chunkOffsets;
+            result._chunkLengths = chunkLengths;
+            result._chunkLanguages = chunkLanguages;
+        }
+        return results;
+    }
+
+    // CLD2 Language value -> code ("en", "un", ...). The codes are static
+    // strings on the C side, so we only need to fetch each one once.
+    static final String[] languageCodes = new String[1024];
+
+    static String languageCode(int language)
+    {
+        if (language < 0 || language >= languageCodes.length) {
+            return backend().languageCode(language);
+        }
+        // Racy, but harmless: everyone would store the same string.
+        String code = languageCodes[language];
+        if (code == null) {
+            code = backend().languageCode(language);
+            languageCodes[language] = code;
+        }
+        return code;
+    }
 
-        CLD2Wrap detector = new CLD2Wrap();
-        Pointer<CLD2Wrap> pdetector = pointerTo(detector);
+    // Packs hint strings NUL-terminated into one byte array, returning the
+    // offset of each (or -1 for null).
+    static class HintPacker
+    {
+        byte[] bytes = new byte[256];
+        int length = 0;
 
-        // silently passes through null
-        String contentLanguageString =
-            StringUtils.join(contentLanguageHints, ",");
+        int add(String hint)
+        {
+            if (hint == null) {
+                return -1;
+            }
+            byte[] encoded = hint.getBytes(StandardCharsets.UTF_8);
+            int needed = length + encoded.length + 1;
+            if (needed > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(needed,
+                                                      2 * bytes.length));
+            }
+            int offset = length;
+            System.arraycopy(encoded, 0, bytes, length, encoded.length);
+            bytes[length + encoded.length] = 0;
+            length = needed;
+            return offset;
+        }
+    }
 
-        //System.out.format("hints: %s / %s\n", contentLanguageString, tldHint);
+    // Which binding to use: "ffm" (java.lang.foreign), "bridj", or "auto"
+    // (the default), which means ffm if it loads -- it needs Java 22 and
+    // the classes from src/ffm -- and bridj otherwise.
+    public static final String BACKEND_PROPERTY = "cctext.cld2.backend";
 
-        CLD2Wrap_detect(pdetector,
-                        pointerToBytes(utf8),
-                        utf8.length,
-                        true,
-                        // pointerToCString silently passes through nulls
-                        pointerToCString(contentLanguageString),
-                        pointerToCString(tldHint));
+    // Each thread gets its own backend, which keeps its native memory
+    // around between calls. (No initialValue, so that
+    // releaseThreadResources can tell whether there's anything to release.)
+    static final ThreadLocal<CLD2Backend> backends =
+        new ThreadLocal<CLD2Backend>();
 
-        Result result = new Result();
-        result.languages =
-            new String[] { detector.language_code0().getCString(),
-                           detector.language_code1().getCString(),
-                           detector.language_code2().getCString()
-            };
-        result.percents = detector.percents().getInts(3);
-        result.normalizedScores = detector.normalized_scores().getDoubles(3);
-        result.isReliable = detector.is_reliable();
+    static CLD2Backend backend()
+    {
+        CLD2Backend backend = backends.get();
+        if (backend == null) {
+            backend = newBackend(System.getProperty(BACKEND_PROPERTY, "auto"));
+            backends.set(backend);
+        }
+        return backend;
+    }
 
-        result._utf8 = utf8;
-        result._pdetector = pdetector;
+    static CLD2Backend newBackend(String which)
+    {
+        if (which.equals("ffm") || which.equals("auto")) {
+            try {
+                // Loaded reflectively, since it's compiled for a newer Java
+                // than the rest of us.
+                return (CLD2Backend)
+                    Class.forName("org.vorpus.cctext.CLD2Foreign")
+                    .getDeclaredConstructor().newInstance();
+            } catch (Throwable e) {
+                // UnsupportedClassVersionError on older Javas, or
+                // ClassNotFoundException if it wasn't built
+                if (which.equals("ffm")) {
+                    throw new RuntimeException("ffm CLD2 backend unavailable",
+                                               e);
+                }
+            }
+        }
+        return new CLD2BridJ();
+    }
+
+    public static String backendName()
+    {
+        return backend().name();
+    }
 
-        return result;
+    // Frees this thread's native buffers. Threads that do detection and
+    // then go away should call this on their way out, since the ffm
+    // backend's memory isn't tied to the GC at all.
+    public static void releaseThreadResources()
+    {
+        CLD2Backend backend = backends.get();
+        if (backend != null) {
+            backend.close();
+            backends.remove();
+        }
     }
 
     static public class Result
@@ -64,35 +276,73 @@ public class LanguageDetection
         public double[] normalizedScores;
         public boolean isReliable;
 
-        public byte[] _utf8;
-        public Pointer<CLD2Wrap> _pdetector;
+        // The document's text, starting at _utf8.position()
+        public ByteBuffer _utf8;
+        // This document's chunks are [_chunkStart, _chunkEnd) in these
+        // arrays, which are shared by every Result from the same batch.
+        public int[] _chunkOffsets;
+        public int[] _chunkLengths;
+        public int[] _chunkLanguages;
+        public int _chunkStart;
+        public int _chunkEnd;
+        // Usually null. BlockLanguageCache sets these for the chunks it
+        // knows the counts of already (and -1 for the rest); see SpanStats.
+        public int[] _chunkCodepoints;
+        public int[] _chunkWords;
 
         public int numChunks()
         {
-            return CLD2Wrap_num_result_chunks(_pdetector);
+            return _chunkEnd - _chunkStart;
         }
 
         public ResultChunk getChunk(int i)
         {
-            CLD2WrapResultChunk cChunk = new CLD2WrapResultChunk();
-            Pointer<CLD2WrapResultChunk> pcChunk = pointerTo(cChunk);
-            CLD2Wrap_get_result_chunk(_pdetector, i, pcChunk);
-
+            int index = _chunkStart + i;
             ResultChunk jChunk = new ResultChunk();
-            jChunk.language = cChunk.language_code().getCString();
-            int start = cChunk.offset();
-            jChunk.spanLengthUTF8 = cChunk.length();
-            int end = start + jChunk.spanLengthUTF8;
-            byte[] utf8Span = Arrays.copyOfRange(_utf8, start, end);
-            jChunk.contentSpan = new String(utf8Span, StandardCharsets.UTF_8);
+            jChunk.language = languageCode(_chunkLanguages[index]);
+            jChunk.utf8 = _utf8;
+            jChunk.offset = _utf8.position() + _chunkOffsets[index];
+            jChunk.spanLengthUTF8 = _chunkLengths[index];
             return jChunk;
         }
     }
 
+    // A span of the document that CLD2 thinks is all in one language. This
+    // is just a view on the document's UTF-8; the text is only decoded if
+    // someone asks for it.
     static public class ResultChunk
     {
         String language, contentSpan;
+        ByteBuffer utf8;
+        // where the span is in utf8 (an absolute index)
+        int offset;
         // for calculating "total storage size" statistics.
         int spanLengthUTF8;
+
+        public String getLanguage()
+        {
+            return language;
+        }
+
+        public int getOffset()
+        {
+            return offset;
+        }
+
+        public int getLength()
+        {
+            return spanLengthUTF8;
+        }
+
+        public String getContentSpan()
+        {
+            if (contentSpan == null) {
+                ByteBuffer span = utf8.duplicate();
+                span.limit(offset + spanLengthUTF8);
+                span.position(offset);
+                contentSpan = StandardCharsets.UTF_8.decode(span).toString();
+            }
+            return contentSpan;
+        }
     }
 }
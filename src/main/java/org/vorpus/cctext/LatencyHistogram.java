@@ -0,0 +1,176 @@
+package org.vorpus.cctext;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// A histogram of durations, in nanoseconds, in a fixed amount of memory
+// (about 18K), the same way HdrHistogram does it: log-linear buckets, where
+// each power of two is split into SUB_BUCKETS equal parts. So any value
+// comes back out (as a percentile, say) within 1/SUB_BUCKETS -- under 2% --
+// of what went in, from nanoseconds up to MAX_NANOS (about 18 minutes;
+// anything longer is counted as that).
+//
+// record() is lock-free and can be called from any number of threads; it's
+// one atomic increment of the bucket plus a couple of LongAdders. Since
+// every histogram has the same buckets, two of them can be added together
+// exactly (add(), or merge the "buckets" of two snapshots), which is what
+// makes it possible to combine numbers from several workers or runs.
+public class LatencyHistogram
+{
+    static final int SUB_BITS = 6;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int MAX_EXPONENT = 40;
+    public static final long MAX_NANOS = (1L << (MAX_EXPONENT + 1)) - 1;
+    // values below SUB_BUCKETS get a bucket each; after that, SUB_BUCKETS
+    // per power of two
+    static final int BUCKETS =
+        SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+    final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    final LongAdder count = new LongAdder();
+    final LongAdder sum = new LongAdder();
+    final AtomicLong max = new AtomicLong();
+
+    static int bucketFor(long nanos)
+    {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(0, nanos);
+        }
+        if (nanos > MAX_NANOS) {
+            nanos = MAX_NANOS;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int shift = exponent - SUB_BITS;
+        int sub = (int) (nanos >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    // The largest value that lands in bucket i.
+    static long highestIn(int i)
+    {
+        if (i < SUB_BUCKETS) {
+            return i;
+        }
+        int shift = (i - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (i - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    public void record(long nanos)
+    {
+        counts.incrementAndGet(bucketFor(nanos));
+        count.increment();
+        sum.add(nanos);
+        long previous = max.get();
+        while (nanos > previous && !max.compareAndSet(previous, nanos)) {
+            previous = max.get();
+        }
+    }
+
+    // Adds everything recorded in other into this one.
+    public void add(LatencyHistogram other)
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = other.counts.get(i);
+            if (n != 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        long otherMax = other.max.get();
+        long previous = max.get();
+        while (otherMax > previous && !max.compareAndSet(previous, otherMax)) {
+            previous = max.get();
+        }
+    }
+
+    public long count()
+    {
+        return count.sum();
+    }
+
+    public long max()
+    {
+        return max.get();
+    }
+
+    public double mean()
+    {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // The value that percentile percent of recorded values are at or
+    // below (to within the bucket size), or 0 if nothing's been recorded.
+    public long valueAtPercentile(double percent)
+    {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        return valueAtPercentile(snapshot, total, percent);
+    }
+
+    long valueAtPercentile(long[] snapshot, long total, double percent)
+    {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percent / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                // never report more than the actual maximum
+                return Math.min(highestIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+    static final String[] PERCENTILE_NAMES = {
+        "p50-us", "p90-us", "p99-us", "p999-us"
+    };
+
+    // count, mean, percentiles and max, in microseconds, plus the raw
+    // buckets as [highest value in bucket (ns), count] pairs (just the
+    // non-empty ones), for anyone who wants to merge histograms later.
+    public Map<String, Object> snapshot(boolean withBuckets)
+    {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("count", total);
+        result.put("mean-us", Math.round(mean() / 1000.0));
+        for (int p = 0; p < PERCENTILES.length; p++) {
+            result.put(PERCENTILE_NAMES[p],
+                       valueAtPercentile(snapshot, total, PERCENTILES[p])
+                       / 1000);
+        }
+        result.put("max-us", max.get() / 1000);
+        if (withBuckets) {
+            List<long[]> buckets = new ArrayList<long[]>();
+            for (int i = 0; i < BUCKETS; i++) {
+                if (snapshot[i] != 0) {
+                    buckets.add(new long[] { highestIn(i), snapshot[i] });
+                }
+            }
+            result.put("buckets", buckets);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,466 @@
+package org.vorpus.cctext;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+
+import org.apache.commons.io.output.NullWriter;
+
+// The command line: runs a list of archives through an ArchiveEngine and
+// writes everything into one output directory. Run with --help for the
+// options; each one just calls the Driver (or ArchiveEngine) setter of
+// the same name, so see those for what they mean.
+//
+// Outputs, all named <prefix>.something in the output directory:
+//   .stats, .stats.metrics   the stats and metrics files (and
+//   .stats.deltas            with --stats-delta)
+//   .exceptions              the exception log
+//   .url-info.json           the url info log; .url-info.cui with
+//                            --url-info-format columns (UrlInfoColumns)
+//   .text                    the extracted text; .text-00000.gz etc. with
+//                            --text-sink (ExtractedTextSink)
+//   .quarantine              records that went over --max-* (RecordLimits)
+//
+// With --resume, the logs are appended to rather than truncated. The
+// columnar url info and the text sink can't be appended to, so those get
+// a fresh name with the time in it.
+//
+// Exits with status 1 if any archive failed (the exception log says why;
+// the rest still get processed), and 2 for a usage error.
+public class Main
+{
+    static final String USAGE =
+        "usage: cctext [options] <archive>...\n"
+        + "\n"
+        + "Archives are paths or http(s):// or s3:// URLs.\n"
+        + "\n"
+        + "Input and output:\n"
+        + "  --archive-list FILE       read more archives from FILE, one per\n"
+        + "                            line (- for stdin)\n"
+        + "  --output-dir DIR          where the outputs go (default .)\n"
+        + "  --prefix NAME             output file names start with this\n"
+        + "                            (default cctext)\n"
+        + "  --url-info-format F       json (default) or columns\n"
+        + "  --text-sink CODEC         write the text through a background\n"
+        + "                            sink, compressed with gzip or none\n"
+        + "  --checkpoints DIR         keep a checkpoint journal in DIR\n"
+        + "  --resume                  skip what the journal says is done\n"
+        + "\n"
+        + "Concurrency:\n"
+        + "  --threads N               archives at once (default: cores)\n"
+        + "  --pipeline-workers N      parse and detect on N workers per\n"
+        + "                            process, not the reading thread\n"
+        + "  --pipeline-limits R,B     at most R records and B bytes in\n"
+        + "                            flight per archive\n"
+        + "  --decompression-threads N inflate local .gz files on N threads\n"
+        + "  --fetch-threads N         concurrent ranged GETs for remote\n"
+        + "                            archives\n"
+        + "  --range-bytes B           size of each ranged GET\n"
+        + "  --ranges-ahead N          ranges to prefetch per archive\n"
+        + "\n"
+        + "Processing:\n"
+        + "  --extraction-mode M       full (default) or fast\n"
+        + "  --fast-check-interval N   in fast mode, check 1 in N documents\n"
+        + "                            against the full parser\n"
+        + "  --block-cache-bytes B     block language cache size (0: off)\n"
+        + "  --dedupe-bytes B          block dedupe table size (0: off)\n"
+        + "  --dedupe-table FILE       load and save the dedupe table here\n"
+        + "  --max-payload-bytes B     per-record limits; records over them\n"
+        + "  --max-extracted-chars N   are cut off and quarantined\n"
+        + "  --max-millis N\n"
+        + "\n"
+        + "Monitoring:\n"
+        + "  --stats-delta             also log what changed on each flush\n"
+        + "  --jmx                     publish the metrics over JMX\n"
+        + "  --exception-traces N      full tracebacks per exception tag\n"
+        + "  --exception-samples N     sampled tracebacks per tag per flush\n"
+        + "\n"
+        + "Sizes (B) can have a k, m or g suffix.\n";
+
+    static class UsageException extends Exception
+    {
+        UsageException(String message)
+        {
+            super(message);
+        }
+    }
+
+    // Everything on the command line.
+    static class Options
+    {
+        boolean help = false;
+        List<String> archives = new ArrayList<String>();
+        File outputDir = new File(".");
+        String prefix = "cctext";
+        boolean columnarUrlInfo = false;
+        ExtractedTextSink.Codec textCodec = null;
+        String checkpoints = null;
+        boolean resume = false;
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        int pipelineWorkers = 0;
+        int pipelineMaxRecords = -1;
+        int pipelineMaxBytes = -1;
+        int decompressionThreads = 0;
+        // -1: ArchiveEngine's defaults
+        int fetchThreads = -1;
+        int rangeBytes = -1;
+        int rangesAhead = -1;
+
+        HTMLToText.Mode extractionMode = HTMLToText.Mode.FULL;
+        int fastCheckInterval = 0;
+        long blockCacheBytes = 0;
+        long dedupeBytes = 0;
+        String dedupeTable = null;
+        long maxPayloadBytes = 0;
+        int maxExtractedChars = 0;
+        long maxMillis = 0;
+
+        boolean statsDelta = false;
+        boolean jmx = false;
+        int exceptionTraces = ExceptionLogger.DEFAULT_FULL_TRACES;
+        int exceptionSamples = ExceptionLogger.DEFAULT_SAMPLES;
+    }
+
+    static Options parse(String[] args)
+        throws UsageException, IOException
+    {
+        Options options = new Options();
+        int i = 0;
+        while (i < args.length) {
+            String arg = args[i++];
+            if (!arg.startsWith("--")) {
+                options.archives.add(arg);
+                continue;
+            }
+            if (arg.equals("--")) {
+                while (i < args.length) {
+                    options.archives.add(args[i++]);
+                }
+                break;
+            }
+            // --name=value or --name value
+            String name = arg;
+            String value = null;
+            int equals = arg.indexOf('=');
+            if (equals >= 0) {
+                name = arg.substring(0, equals);
+                value = arg.substring(equals + 1);
+            }
+            // flags
+            if (name.equals("--resume")) {
+                options.resume = true;
+                continue;
+            } else if (name.equals("--stats-delta")) {
+                options.statsDelta = true;
+                continue;
+            } else if (name.equals("--jmx")) {
+                options.jmx = true;
+                continue;
+            } else if (name.equals("--help")) {
+                options.help = true;
+                return options;
+            }
+            if (value == null) {
+                if (i == args.length) {
+                    throw new UsageException(name + " needs a value");
+                }
+                value = args[i++];
+            }
+            try {
+                if (name.equals("--archive-list")) {
+                    readArchiveList(value, options.archives);
+                } else if (name.equals("--output-dir")) {
+                    options.outputDir = new File(value);
+                } else if (name.equals("--prefix")) {
+                    options.prefix = value;
+                } else if (name.equals("--url-info-format")) {
+                    if (value.equals("columns")) {
+                        options.columnarUrlInfo = true;
+                    } else if (value.equals("json")) {
+                        options.columnarUrlInfo = false;
+                    } else {
+                        throw new UsageException(
+                            "unknown url info format " + value);
+                    }
+                } else if (name.equals("--text-sink")) {
+                    if (value.equals("gzip")) {
+                        options.textCodec = ExtractedTextSink.GZIP;
+                    } else if (value.equals("none")) {
+                        options.textCodec = ExtractedTextSink.NONE;
+                    } else {
+                        throw new UsageException("unknown codec " + value);
+                    }
+                } else if (name.equals("--checkpoints")) {
+                    options.checkpoints = value;
+                } else if (name.equals("--threads")) {
+                    options.threads = Integer.parseInt(value);
+                } else if (name.equals("--pipeline-workers")) {
+                    options.pipelineWorkers = Integer.parseInt(value);
+                } else if (name.equals("--pipeline-limits")) {
+                    String[] parts = value.split(",");
+                    if (parts.length != 2) {
+                        throw new UsageException(
+                            "--pipeline-limits wants RECORDS,BYTES");
+                    }
+                    options.pipelineMaxRecords = Integer.parseInt(parts[0]);
+                    options.pipelineMaxBytes = intSize(parts[1]);
+                } else if (name.equals("--decompression-threads")) {
+                    options.decompressionThreads = Integer.parseInt(value);
+                } else if (name.equals("--fetch-threads")) {
+                    options.fetchThreads = Integer.parseInt(value);
+                } else if (name.equals("--range-bytes")) {
+                    options.rangeBytes = intSize(value);
+                } else if (name.equals("--ranges-ahead")) {
+                    options.rangesAhead = Integer.parseInt(value);
+                } else if (name.equals("--extraction-mode")) {
+                    try {
+                        options.extractionMode =
+                            HTMLToText.Mode.valueOf(value.toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        throw new UsageException(
+                            "unknown extraction mode " + value);
+                    }
+                } else if (name.equals("--fast-check-interval")) {
+                    options.fastCheckInterval = Integer.parseInt(value);
+                } else if (name.equals("--block-cache-bytes")) {
+                    options.blockCacheBytes = size(value);
+                } else if (name.equals("--dedupe-bytes")) {
+                    options.dedupeBytes = size(value);
+                } else if (name.equals("--dedupe-table")) {
+                    options.dedupeTable = value;
+                } else if (name.equals("--max-payload-bytes")) {
+                    options.maxPayloadBytes = size(value);
+                } else if (name.equals("--max-extracted-chars")) {
+                    options.maxExtractedChars = intSize(value);
+                } else if (name.equals("--max-millis")) {
+                    options.maxMillis = Long.parseLong(value);
+                } else if (name.equals("--exception-traces")) {
+                    options.exceptionTraces = Integer.parseInt(value);
+                } else if (name.equals("--exception-samples")) {
+                    options.exceptionSamples = Integer.parseInt(value);
+                } else {
+                    throw new UsageException("unknown option " + name);
+                }
+            } catch (NumberFormatException e) {
+                throw new UsageException("bad value for " + name + ": "
+                                         + value);
+            }
+        }
+        if (options.archives.isEmpty()) {
+            throw new UsageException("no archives given");
+        }
+        if (options.resume && options.checkpoints == null) {
+            throw new UsageException("--resume needs --checkpoints");
+        }
+        return options;
+    }
+
+    // 64k, 8m, 1g, or just bytes
+    static long size(String value)
+    {
+        String lower = value.toLowerCase();
+        long multiplier = 1;
+        if (lower.endsWith("k")) {
+            multiplier = 1024L;
+        } else if (lower.endsWith("m")) {
+            multiplier = 1024L * 1024;
+        } else if (lower.endsWith("g")) {
+            multiplier = 1024L * 1024 * 1024;
+        }
+        if (multiplier != 1) {
+            lower = lower.substring(0, lower.length() - 1);
+        }
+        return Long.parseLong(lower) * multiplier;
+    }
+
+    static int intSize(String value)
+    {
+        long size = size(value);
+        if (size > Integer.MAX_VALUE) {
+            throw new NumberFormatException("too big");
+        }
+        return (int) size;
+    }
+
+    // Blank lines and #-comments are skipped.
+    static void readArchiveList(String path, List<String> archives)
+        throws IOException
+    {
+        InputStream input = (path.equals("-")
+                             ? System.in : new FileInputStream(path));
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(input, StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    archives.add(line);
+                }
+            }
+        } finally {
+            if (input != System.in) {
+                reader.close();
+            }
+        }
+    }
+
+    static Writer openLog(File file, boolean append)
+        throws IOException
+    {
+        return new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(file, append),
+                                   StandardCharsets.UTF_8),
+            Driver.BUFFER_SIZE);
+    }
+
+    public static void main(String[] args)
+        throws IOException
+    {
+        Options options;
+        try {
+            options = parse(args);
+        } catch (UsageException e) {
+            System.err.println("cctext: " + e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+        if (options.help) {
+            System.out.print(USAGE);
+            return;
+        }
+        System.exit(run(options));
+    }
+
+    static int run(Options options)
+        throws IOException
+    {
+        File dir = options.outputDir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create " + dir);
+        }
+        String prefix = options.prefix;
+        boolean append = options.resume;
+        // for the outputs we can't append to
+        String fresh = append ? "-" + System.currentTimeMillis() : "";
+
+        List<Closeable> toClose = new ArrayList<Closeable>();
+        Writer exceptionLog =
+            openLog(new File(dir, prefix + ".exceptions"), append);
+        toClose.add(exceptionLog);
+        Writer urlInfoLog;
+        UrlInfoColumns urlInfoColumns = null;
+        if (options.columnarUrlInfo) {
+            urlInfoLog = new NullWriter();
+            urlInfoColumns = new UrlInfoColumns(new FileOutputStream(
+                new File(dir, prefix + ".url-info" + fresh + ".cui")));
+            toClose.add(urlInfoColumns);
+        } else {
+            urlInfoLog = openLog(new File(dir, prefix + ".url-info.json"),
+                                 append);
+            toClose.add(urlInfoLog);
+        }
+        Writer extractedText = null;
+        ExtractedTextSink textSink = null;
+        if (options.textCodec != null) {
+            textSink = new ExtractedTextSink(
+                dir, prefix + ".text" + fresh, options.textCodec,
+                ExtractedTextSink.DEFAULT_ROLL_BYTES,
+                ExtractedTextSink.DEFAULT_MAX_BUFFERED_BYTES,
+                Math.max(1, options.threads / 4));
+            toClose.add(textSink);
+        } else {
+            extractedText = openLog(new File(dir, prefix + ".text"), append);
+            toClose.add(extractedText);
+        }
+
+        Driver driver = new Driver(new File(dir, prefix + ".stats").getPath(),
+                                   exceptionLog, urlInfoLog, extractedText);
+        driver.setUrlInfoColumns(urlInfoColumns);
+        driver.setExtractedTextSink(textSink);
+        driver.setExtractionMode(options.extractionMode,
+                                 options.fastCheckInterval);
+        driver.setBlockCacheBytes(options.blockCacheBytes);
+        driver.setDedupe(options.dedupeBytes, options.dedupeTable);
+        driver.setCheckpoints(options.checkpoints, options.resume);
+        if (options.maxPayloadBytes > 0 || options.maxExtractedChars > 0
+            || options.maxMillis > 0) {
+            Writer quarantineLog =
+                openLog(new File(dir, prefix + ".quarantine"), append);
+            toClose.add(quarantineLog);
+            driver.setRecordLimits(
+                new RecordLimits(options.maxPayloadBytes,
+                                 options.maxExtractedChars,
+                                 options.maxMillis),
+                quarantineLog);
+        }
+        driver.setDecompressionThreads(options.decompressionThreads);
+        driver.setPipelineWorkers(options.pipelineWorkers);
+        if (options.pipelineMaxRecords > 0) {
+            driver.setPipelineLimits(options.pipelineMaxRecords,
+                                     options.pipelineMaxBytes);
+        }
+        driver.setStatsDeltaMode(options.statsDelta);
+        driver.setExceptionLogLimits(options.exceptionTraces,
+                                     options.exceptionSamples);
+        if (options.jmx) {
+            try {
+                driver.registerMBean();
+            } catch (JMException e) {
+                System.err.println("cctext: couldn't register MBean: " + e);
+            }
+        }
+
+        ArchiveEngine engine = new ArchiveEngine(driver, options.threads);
+        if (options.fetchThreads >= 0 || options.rangeBytes > 0
+            || options.rangesAhead > 0) {
+            engine.setRangedFetch(
+                options.fetchThreads >= 0
+                ? options.fetchThreads : ArchiveEngine.DEFAULT_FETCH_THREADS,
+                options.rangeBytes > 0
+                ? options.rangeBytes
+                : RangedObjectInputStream.DEFAULT_RANGE_BYTES,
+                options.rangesAhead > 0
+                ? options.rangesAhead
+                : RangedObjectInputStream.DEFAULT_RANGES_AHEAD);
+        }
+        driver.startBackgroundFlush();
+        try {
+            engine.processAll(options.archives);
+        } finally {
+            driver.stopBackgroundFlush();
+            engine.shutdown();
+            // processAll flushed the logs; this makes sure the sinks'
+            // last blocks are out too, even if it failed
+            driver.close();
+            for (Closeable closeable : toClose) {
+                closeable.close();
+            }
+        }
+        int failed = engine.failedArchives();
+        if (failed > 0) {
+            System.err.println("cctext: " + failed + " of "
+                               + options.archives.size()
+                               + " archives failed; see the exception log");
+            return 1;
+        }
+        return 0;
+    }
+}
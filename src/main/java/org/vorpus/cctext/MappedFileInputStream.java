@@ -0,0 +1,213 @@
+package org.vorpus.cctext;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// A local file, read through a memory mapping instead of read() calls.
+//
+// The file is mapped a WINDOW_BYTES window at a time (a mapping is indexed
+// by int), and we just walk through it; the kernel's readahead on page
+// faults does the large sequential reads for us, and bytes go straight from
+// the page cache to whoever reads them, with no syscall per 64K and no
+// intermediate heap buffer. skip() is free, which makes resuming from a
+// checkpoint instant.
+//
+// slice() hands out read-only views of any part of the file. Mappings are
+// only ever released by the GC, so a slice stays valid for as long as
+// someone holds on to it, even after we've moved on to another window or
+// been closed.
+public class MappedFileInputStream extends InputStream
+{
+    static final long WINDOW_BYTES = 1L << 30;
+
+    final FileChannel channel;
+    final long length;
+
+    MappedByteBuffer window = null;
+    long windowStart = 0;
+    long position = 0;
+    long mark = 0;
+
+    public MappedFileInputStream(File file)
+        throws IOException
+    {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        length = channel.size();
+    }
+
+    public long length()
+    {
+        return length;
+    }
+
+    public long position()
+    {
+        return position;
+    }
+
+    // Makes sure the window covers position, which must be < length.
+    void mapPosition()
+        throws IOException
+    {
+        if (window != null && position >= windowStart
+            && position < windowStart + window.capacity()) {
+            return;
+        }
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                             Math.min(WINDOW_BYTES, length - windowStart));
+    }
+
+    public int read()
+        throws IOException
+    {
+        if (position >= length) {
+            return -1;
+        }
+        mapPosition();
+        return window.get((int) (position++ - windowStart)) & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len)
+        throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= length) {
+            return -1;
+        }
+        mapPosition();
+        int inWindow = (int) (position - windowStart);
+        int n = Math.min(len, window.capacity() - inWindow);
+        ByteBuffer view = window.duplicate();
+        view.position(inWindow);
+        view.get(b, off, n);
+        position += n;
+        return n;
+    }
+
+    public long skip(long n)
+    {
+        if (n <= 0) {
+            return 0;
+        }
+        long skipped = Math.min(n, length - position);
+        position += skipped;
+        return skipped;
+    }
+
+    public int available()
+    {
+        return (int) Math.min(Integer.MAX_VALUE, length - position);
+    }
+
+    public boolean markSupported()
+    {
+        return true;
+    }
+
+    public void mark(int readLimit)
+    {
+        mark = position;
+    }
+
+    public void reset()
+    {
+        position = mark;
+    }
+
+    // A read-only view of file[offset, offset + count), or null if that's
+    // not all in the file.
+    public ByteBuffer slice(long offset, int count)
+        throws IOException
+    {
+        if (offset < 0 || count < 0 || offset + count > length) {
+            return null;
+        }
+        if (window != null && offset >= windowStart
+            && offset + count <= windowStart + window.capacity()) {
+            ByteBuffer view = window.duplicate();
+            view.position((int) (offset - windowStart));
+            view.limit(view.position() + count);
+            return view.slice();
+        }
+        // straddles a window edge; rare enough to just map it separately
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, count);
+    }
+
+    public void close()
+        throws IOException
+    {
+        window = null;
+        channel.close();
+    }
+
+    // An InputStream over a buffer, e.g. a slice(); reads don't move the
+    // buffer's own position.
+    public static class BufferInputStream extends InputStream
+    {
+        final ByteBuffer buf;
+        int mark;
+
+        public BufferInputStream(ByteBuffer buf)
+        {
+            this.buf = buf.duplicate();
+            mark = this.buf.position();
+        }
+
+        public int read()
+        {
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            return buf.get() & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len)
+        {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        public long skip(long n)
+        {
+            int skipped = (int) Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + skipped);
+            return skipped;
+        }
+
+        public int available()
+        {
+            return buf.remaining();
+        }
+
+        public boolean markSupported()
+        {
+            return true;
+        }
+
+        public void mark(int readLimit)
+        {
+            mark = buf.position();
+        }
+
+        public void reset()
+        {
+            buf.position(mark);
+        }
+    }
+}
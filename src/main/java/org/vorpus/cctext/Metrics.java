@@ -0,0 +1,255 @@
+package org.vorpus.cctext;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// What Stats can't tell us: where the time goes, and how fast things are
+// moving right now. Driver keeps one of these (see Driver.metrics), and
+// dumps snapshot() next to the stats file on every flush; it can also be
+// watched live over JMX (see registerMBean).
+//
+// There are two kinds of metric:
+// - latency histograms (LatencyHistogram), in families keyed by some
+//   string, like the Stats families: "stage" -> "parse", "mime-type" ->
+//   "text/html".
+// - gauges, which are just asked for their current value whenever someone
+//   looks: queue depths, and rates (see Rate).
+//
+// Like Stats, hot-path code should look up its histogram once and hang on
+// to it.
+public class Metrics
+{
+    public interface Gauge
+    {
+        double value();
+    }
+
+    public static class HistogramFamily
+    {
+        // Each histogram is a fixed 18K or so, so we can't have one for
+        // every junk value in some header; past maxKeys, new keys all
+        // share "__other".
+        final int maxKeys;
+        final ConcurrentMap<String, LatencyHistogram> histograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+        HistogramFamily(int maxKeys)
+        {
+            this.maxKeys = maxKeys;
+        }
+
+        public LatencyHistogram get(String key)
+        {
+            if (key == null) {
+                key = "__null";
+            }
+            LatencyHistogram histogram = histograms.get(key);
+            if (histogram == null) {
+                if (histograms.size() >= maxKeys) {
+                    key = "__other";
+                }
+                histogram = new LatencyHistogram();
+                LatencyHistogram existing =
+                    histograms.putIfAbsent(key, histogram);
+                if (existing != null) {
+                    histogram = existing;
+                }
+            }
+            return histogram;
+        }
+
+        public void record(String key, long nanos)
+        {
+            get(key).record(nanos);
+        }
+
+        Map<String, Object> snapshot(boolean withBuckets)
+        {
+            Map<String, Object> result = new TreeMap<String, Object>();
+            for (Map.Entry<String, LatencyHistogram> entry
+                     : histograms.entrySet()) {
+                result.put(entry.getKey(),
+                           entry.getValue().snapshot(withBuckets));
+            }
+            return result;
+        }
+    }
+
+    // Per-second rate of a Stats counter, over the last WINDOW_NANOS or
+    // so. Metrics rolls it on every snapshot, but it only takes a new
+    // sample if the last one is at least WINDOW_NANOS old, and measures
+    // from the sample before that; so the window is always at least that
+    // long (once we've been running that long), however often we flush.
+    public static class Rate implements Gauge
+    {
+        static final long WINDOW_NANOS = 10L * 1000 * 1000 * 1000;
+
+        final Stats.Counter counter;
+        long olderValue, olderNanos;
+        long newerValue, newerNanos;
+
+        Rate(Stats.Counter counter)
+        {
+            this.counter = counter;
+            olderValue = newerValue = counter.get();
+            olderNanos = newerNanos = System.nanoTime();
+        }
+
+        public synchronized double value()
+        {
+            long elapsed = System.nanoTime() - olderNanos;
+            if (elapsed <= 0) {
+                return 0;
+            }
+            return (counter.get() - olderValue) * 1e9 / elapsed;
+        }
+
+        synchronized void roll()
+        {
+            long now = System.nanoTime();
+            if (now - newerNanos >= WINDOW_NANOS) {
+                olderValue = newerValue;
+                olderNanos = newerNanos;
+                newerValue = counter.get();
+                newerNanos = now;
+            }
+        }
+    }
+
+    static final int DEFAULT_MAX_KEYS = 64;
+
+    final ConcurrentMap<String, HistogramFamily> families =
+        new ConcurrentHashMap<String, HistogramFamily>();
+    final ConcurrentMap<String, Gauge> gauges =
+        new ConcurrentSkipListMap<String, Gauge>();
+    ObjectName registeredAs = null;
+
+    public HistogramFamily histograms(String name)
+    {
+        HistogramFamily family = families.get(name);
+        if (family == null) {
+            family = new HistogramFamily(DEFAULT_MAX_KEYS);
+            HistogramFamily existing = families.putIfAbsent(name, family);
+            if (existing != null) {
+                family = existing;
+            }
+        }
+        return family;
+    }
+
+    public void gauge(String name, Gauge gauge)
+    {
+        gauges.put(name, gauge);
+    }
+
+    public void rate(String name, Stats.Counter counter)
+    {
+        gauge(name, new Rate(counter));
+    }
+
+    public Map<String, Double> gaugeValues()
+    {
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().value());
+        }
+        return result;
+    }
+
+    // Everything, for the metrics file:
+    //   {"time": ..., "gauges": {...},
+    //    "latency": {family: {key: histogram snapshot}}}
+    // and rolls the rates.
+    public Map<String, Object> snapshot()
+    {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("time", System.currentTimeMillis());
+        result.put("gauges", gaugeValues());
+        Map<String, Object> latency = new TreeMap<String, Object>();
+        for (Map.Entry<String, HistogramFamily> entry : families.entrySet()) {
+            latency.put(entry.getKey(), entry.getValue().snapshot(true));
+        }
+        result.put("latency", latency);
+        for (Gauge gauge : gauges.values()) {
+            if (gauge instanceof Rate) {
+                ((Rate) gauge).roll();
+            }
+        }
+        return result;
+    }
+
+    // The JMX view: the gauges, and the histogram summaries (no buckets),
+    // keyed by "family:key", e.g. "stage:parse".
+    public interface MetricsMXBean
+    {
+        Map<String, Double> getGauges();
+        Map<String, Map<String, Long>> getLatencyMicros();
+    }
+
+    class View implements MetricsMXBean
+    {
+        public Map<String, Double> getGauges()
+        {
+            return gaugeValues();
+        }
+
+        public Map<String, Map<String, Long>> getLatencyMicros()
+        {
+            Map<String, Map<String, Long>> result =
+                new TreeMap<String, Map<String, Long>>();
+            for (Map.Entry<String, HistogramFamily> family
+                     : families.entrySet()) {
+                for (Map.Entry<String, LatencyHistogram> entry
+                         : family.getValue().histograms.entrySet()) {
+                    Map<String, Long> summary =
+                        new LinkedHashMap<String, Long>();
+                    for (Map.Entry<String, Object> value
+                             : entry.getValue().snapshot(false).entrySet()) {
+                        summary.put(value.getKey(),
+                                    ((Number) value.getValue()).longValue());
+                    }
+                    result.put(family.getKey() + ":" + entry.getKey(),
+                               summary);
+                }
+            }
+            return result;
+        }
+    }
+
+    // Shows up as org.vorpus.cctext:type=Metrics,name=<name> (in jconsole,
+    // say). Replaces anything already registered under that name.
+    public synchronized void registerMBean(String name)
+        throws JMException
+    {
+        unregisterMBean();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(
+            "org.vorpus.cctext:type=Metrics,name=" + ObjectName.quote(name));
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+        server.registerMBean(new View(), objectName);
+        registeredAs = objectName;
+    }
+
+    public synchronized void unregisterMBean()
+        throws JMException
+    {
+        if (registeredAs != null) {
+            ManagementFactory.getPlatformMBeanServer()
+                .unregisterMBean(registeredAs);
+            registeredAs = null;
+        }
+    }
+}
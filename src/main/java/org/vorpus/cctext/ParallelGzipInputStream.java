@@ -0,0 +1,462 @@
+package org.vorpus.cctext;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+// The decompressed contents of a local .warc.gz/.arc.gz, inflated on
+// several threads at once.
+//
+// Those files are a concatenation of gzip members, one per record, and
+// every member can be inflated on its own. So we cut the file into ranges
+// of about RANGE_BYTES, each starting at what looks like a gzip header, and
+// inflate the ranges on the executor, a few ranges ahead of the reader. The
+// output comes out strictly in file order.
+//
+// "Looks like" is the catch: compressed data can contain 1f 8b 08 by
+// chance, so a range start may not be a real member boundary. A range is
+// only used if it starts exactly where the previous member ended -- which
+// we always know, since we read the file in order -- and anything else
+// (including a range that failed because it started in the middle of
+// somebody else's member) is thrown away and that stretch of the file is
+// inflated right here instead. Every member's CRC is checked, so garbage
+// can't sneak through. In a normal Common Crawl file none of this ever
+// happens.
+//
+// Since the reader only ever sees uncompressed bytes, its offsets are
+// uncompressed offsets; memberOffset() turns them back into the offset of
+// the gzip member in the file, which is what we log and checkpoint.
+public class ParallelGzipInputStream extends InputStream
+{
+    static final int RANGE_BYTES = 4 * 1024 * 1024;
+    // A range's output stops at the first member boundary past this, so a
+    // very compressible file can't make one chunk huge.
+    static final int MAX_CHUNK_BYTES = 64 * 1024 * 1024;
+    // Records are truncated well before this; a member bigger than this
+    // means a file that wasn't written one-member-per-record, which this
+    // can't help with anyway.
+    static final int MAX_MEMBER_BYTES = 256 * 1024 * 1024;
+
+    final FileChannel channel;
+    final long length;
+    final ExecutorService inflaters;
+    final int maxInFlight;
+
+    // Scheduled ranges, in file order. Range starts are candidates found
+    // by findMemberStart; nextRangeStart is where the next one goes.
+    final ArrayDeque<Range> pending = new ArrayDeque<Range>();
+    long nextRangeStart;
+
+    // Everything in the file before position has been handed out, and
+    // position is a real member boundary.
+    long position;
+    long uncompressedPosition = 0;
+
+    Chunk current = null;
+    int currentPos = 0;
+    // The chunks memberOffset() may still be asked about, oldest first;
+    // the last one is current.
+    final ArrayDeque<Chunk> recent = new ArrayDeque<Chunk>();
+
+    static class Range
+    {
+        long start;
+        long end;
+        Future<Chunk> result;
+    }
+
+    // The inflated contents of the members in [start, end).
+    static class Chunk
+    {
+        long start;
+        long end;
+        byte[] data = new byte[64 * 1024];
+        int length = 0;
+        // for each member: where it starts in the file, and in data
+        long[] memberStarts = new long[16];
+        int[] memberDataStarts = new int[16];
+        int members = 0;
+        // where data starts in the uncompressed stream; set once the chunk
+        // is handed out
+        long uncompressedStart;
+    }
+
+    // start must be the offset of a gzip member (e.g. 0, or a checkpoint).
+    public ParallelGzipInputStream(File file, long start,
+                                   ExecutorService inflaters,
+                                   int maxInFlight)
+        throws IOException
+    {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        length = channel.size();
+        this.inflaters = inflaters;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        position = start;
+        nextRangeStart = start;
+    }
+
+    // The offset in the file of the gzip member holding the byte at
+    // uncompressedOffset (counted from where we started). Offsets must be
+    // asked about in increasing order, and only for bytes already read;
+    // older chunks are let go of as we go.
+    public synchronized long memberOffset(long uncompressedOffset)
+    {
+        while (recent.size() > 1) {
+            Chunk oldest = recent.peekFirst();
+            long oldestEnd = oldest.uncompressedStart + oldest.length;
+            if (oldestEnd > uncompressedOffset) {
+                break;
+            }
+            recent.removeFirst();
+        }
+        for (Chunk chunk : recent) {
+            long relative = uncompressedOffset - chunk.uncompressedStart;
+            if (relative >= 0 && relative < chunk.length) {
+                int i = Arrays.binarySearch(chunk.memberDataStarts, 0,
+                                            chunk.members, (int) relative);
+                if (i < 0) {
+                    // insertion point - 1 is the member it's in
+                    i = -i - 2;
+                }
+                // skip empty members
+                while (i + 1 < chunk.members
+                       && chunk.memberDataStarts[i + 1] == relative) {
+                    i++;
+                }
+                return chunk.memberStarts[i];
+            }
+        }
+        throw new IllegalArgumentException(
+            "offset " + uncompressedOffset + " isn't in a recent chunk");
+    }
+
+    public synchronized int read()
+        throws IOException
+    {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n < 0 ? -1 : one[0] & 0xff;
+    }
+
+    public synchronized int read(byte[] b, int off, int len)
+        throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        while (current == null || currentPos == current.length) {
+            Chunk next = nextChunk();
+            if (next == null) {
+                return -1;
+            }
+            next.uncompressedStart = uncompressedPosition;
+            uncompressedPosition += next.length;
+            position = next.end;
+            current = next;
+            currentPos = 0;
+            recent.addLast(next);
+        }
+        int n = Math.min(len, current.length - currentPos);
+        System.arraycopy(current.data, currentPos, b, off, n);
+        currentPos += n;
+        return n;
+    }
+
+    public synchronized int available()
+    {
+        return current == null ? 0 : current.length - currentPos;
+    }
+
+    // Not cancel(true): interrupting a thread in the middle of a
+    // FileChannel read closes the channel, for everyone.
+    public synchronized void close()
+        throws IOException
+    {
+        for (Range range : pending) {
+            range.result.cancel(false);
+        }
+        pending.clear();
+        recent.clear();
+        current = null;
+        channel.close();
+    }
+
+    // The chunk that starts at position, or null at the end of the file.
+    Chunk nextChunk()
+        throws IOException
+    {
+        while (true) {
+            schedule();
+            if (position >= length) {
+                return null;
+            }
+            Range range = pending.peekFirst();
+            if (range == null) {
+                // the last range came up short; finish off here
+                return inflate(position, length);
+            }
+            if (range.start < position) {
+                // it started inside a member we've already done
+                pending.removeFirst();
+                range.result.cancel(false);
+                continue;
+            }
+            if (range.start > position) {
+                // The previous range ended early, or range.start is a
+                // false boundary; fill in the gap. This may run past
+                // range.start, in which case range gets dropped above.
+                return inflate(position, range.start);
+            }
+            pending.removeFirst();
+            try {
+                return range.result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted waiting for inflater", e);
+            } catch (ExecutionException e) {
+                // it started at a real boundary, so the data's bad
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    void schedule()
+        throws IOException
+    {
+        while (pending.size() < maxInFlight && nextRangeStart < length) {
+            final Range range = new Range();
+            range.start = nextRangeStart;
+            range.end = findMemberStart(range.start + RANGE_BYTES);
+            nextRangeStart = range.end;
+            range.result = inflaters.submit(new Callable<Chunk>() {
+                    public Chunk call() throws IOException {
+                        return inflate(range.start, range.end);
+                    }
+                });
+            pending.addLast(range);
+        }
+    }
+
+    // The first offset >= from that looks like the start of a gzip member
+    // (magic, deflate, no reserved flags), or length if there's none.
+    long findMemberStart(long from)
+        throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        while (from < length) {
+            buf.clear();
+            int n = channel.read(buf, from);
+            if (n <= 0) {
+                break;
+            }
+            byte[] b = buf.array();
+            for (int i = 0; i + 3 < n; i++) {
+                if (b[i] == (byte) 0x1f && b[i + 1] == (byte) 0x8b
+                    && b[i + 2] == 8 && (b[i + 3] & 0xe0) == 0) {
+                    return from + i;
+                }
+            }
+            if (from + n >= length) {
+                break;
+            }
+            // overlap, in case a header straddles the two reads
+            from += n - 3;
+        }
+        return length;
+    }
+
+    // Inflates whole members starting at start (which must be a member
+    // boundary, or this throws), until reaching minEnd, the end of the
+    // file, or MAX_CHUNK_BYTES of output.
+    Chunk inflate(long start, long minEnd)
+        throws IOException
+    {
+        Chunk chunk = new Chunk();
+        chunk.start = start;
+        Input in = new Input(start);
+        Inflater inflater = new Inflater(true);
+        CRC32 crc = new CRC32();
+        try {
+            while (true) {
+                long memberStart = in.position();
+                readHeader(in);
+                addMember(chunk, memberStart);
+                int dataStart = chunk.length;
+                inflater.reset();
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        if (!in.fill()) {
+                            throw new EOFException(
+                                "truncated gzip member at " + memberStart);
+                        }
+                        inflater.setInput(in.buf, in.pos, in.limit - in.pos);
+                        in.pos = in.limit;
+                    }
+                    if (chunk.length == chunk.data.length) {
+                        chunk.data = Arrays.copyOf(chunk.data,
+                                                   2 * chunk.data.length);
+                    }
+                    int n;
+                    try {
+                        n = inflater.inflate(chunk.data, chunk.length,
+                                             chunk.data.length - chunk.length);
+                    } catch (DataFormatException e) {
+                        throw new ZipException(
+                            "bad gzip member at " + memberStart + ": "
+                            + e.getMessage());
+                    }
+                    if (n == 0 && inflater.needsDictionary()) {
+                        throw new ZipException(
+                            "bad gzip member at " + memberStart);
+                    }
+                    chunk.length += n;
+                    if (chunk.length - dataStart > MAX_MEMBER_BYTES) {
+                        throw new ZipException(
+                            "gzip member at " + memberStart + " is too big");
+                    }
+                }
+                in.pos = in.limit - inflater.getRemaining();
+
+                crc.reset();
+                crc.update(chunk.data, dataStart, chunk.length - dataStart);
+                long expectedCrc = in.readInt() & 0xffffffffL;
+                long expectedSize = in.readInt() & 0xffffffffL;
+                if (expectedCrc != crc.getValue()
+                    || expectedSize
+                       != ((chunk.length - dataStart) & 0xffffffffL)) {
+                    throw new ZipException(
+                        "corrupt gzip member at " + memberStart);
+                }
+
+                long end = in.position();
+                if (end >= minEnd || end >= length
+                    || chunk.length >= MAX_CHUNK_BYTES) {
+                    chunk.end = end;
+                    return chunk;
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    static void addMember(Chunk chunk, long memberStart)
+    {
+        if (chunk.members == chunk.memberStarts.length) {
+            chunk.memberStarts = Arrays.copyOf(chunk.memberStarts,
+                                               2 * chunk.members);
+            chunk.memberDataStarts = Arrays.copyOf(chunk.memberDataStarts,
+                                                   2 * chunk.members);
+        }
+        chunk.memberStarts[chunk.members] = memberStart;
+        chunk.memberDataStarts[chunk.members] = chunk.length;
+        chunk.members++;
+    }
+
+    // RFC 1952, section 2.3
+    static void readHeader(Input in)
+        throws IOException
+    {
+        if (in.read() != 0x1f || in.read() != 0x8b || in.read() != 8) {
+            throw new ZipException("no gzip member at " + (in.position() - 3));
+        }
+        int flags = in.read();
+        in.skip(6); // mtime, xfl, os
+        if ((flags & 4) != 0) {
+            int extraLength = in.read() | (in.read() << 8);
+            in.skip(extraLength);
+        }
+        if ((flags & 8) != 0) {
+            while (in.read() != 0) {
+            }
+        }
+        if ((flags & 16) != 0) {
+            while (in.read() != 0) {
+            }
+        }
+        if ((flags & 2) != 0) {
+            in.skip(2);
+        }
+    }
+
+    // Buffered positional reads from the channel, so that several threads
+    // can each read their own part of the file.
+    class Input
+    {
+        final byte[] buf = new byte[64 * 1024];
+        int pos = 0;
+        int limit = 0;
+        long bufStart;
+
+        Input(long start)
+        {
+            bufStart = start;
+        }
+
+        long position()
+        {
+            return bufStart + pos;
+        }
+
+        // Makes sure there's something in buf past pos; false at EOF.
+        boolean fill()
+            throws IOException
+        {
+            if (pos < limit) {
+                return true;
+            }
+            bufStart += limit;
+            pos = limit = 0;
+            int n = channel.read(ByteBuffer.wrap(buf), bufStart);
+            if (n <= 0) {
+                return false;
+            }
+            limit = n;
+            return true;
+        }
+
+        int read()
+            throws IOException
+        {
+            if (!fill()) {
+                throw new EOFException("truncated gzip member");
+            }
+            return buf[pos++] & 0xff;
+        }
+
+        int readInt()
+            throws IOException
+        {
+            return read() | (read() << 8) | (read() << 16) | (read() << 24);
+        }
+
+        void skip(int count)
+            throws IOException
+        {
+            for (int i = 0; i < count; i++) {
+                read();
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package org.vorpus.cctext;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+// Random access to the bytes of a remote object, one range at a time; what
+// RangedObjectInputStream reads archives through. fetch() gets called from
+// several threads at once.
+//
+// There's one of these for S3 (or anything that speaks its API; see
+// S3_ENDPOINT_PROPERTY), one for plain HTTP servers that honor Range, and
+// one for local files, which is handy for trying things out without a
+// network.
+public interface RangeFetcher extends Closeable
+{
+    // The object's total size.
+    long length() throws IOException;
+
+    // Reads exactly count bytes, starting at offset, into buf[0, count).
+    void fetch(long offset, byte[] buf, int count) throws IOException;
+
+    // For talking to an S3 stand-in (minio, a local mock, ...) instead of
+    // AWS: its base URL. Buckets are then addressed path-style.
+    String S3_ENDPOINT_PROPERTY = "cctext.s3.endpoint";
+
+    static class S3 implements RangeFetcher
+    {
+        static AmazonS3 defaultClient = null;
+
+        final AmazonS3 client;
+        final String bucket;
+        final String key;
+
+        public S3(AmazonS3 client, String bucket, String key)
+        {
+            this.client = client;
+            this.bucket = bucket;
+            this.key = key;
+        }
+
+        // s3://bucket/key, with the default client
+        public S3(String url)
+        {
+            String path = url.substring("s3://".length());
+            int slash = path.indexOf('/');
+            if (slash <= 0) {
+                throw new IllegalArgumentException("not an s3 URL: " + url);
+            }
+            client = defaultClient();
+            bucket = path.substring(0, slash);
+            key = path.substring(slash + 1);
+        }
+
+        // Credentials come from the usual places (environment, system
+        // properties, ~/.aws, instance profile).
+        public static synchronized AmazonS3 defaultClient()
+        {
+            if (defaultClient == null) {
+                AmazonS3Client client = new AmazonS3Client();
+                String endpoint = System.getProperty(S3_ENDPOINT_PROPERTY);
+                if (endpoint != null) {
+                    client.setEndpoint(endpoint);
+                    client.setS3ClientOptions(
+                        new S3ClientOptions().withPathStyleAccess(true));
+                }
+                defaultClient = client;
+            }
+            return defaultClient;
+        }
+
+        public long length()
+            throws IOException
+        {
+            try {
+                return client.getObjectMetadata(bucket, key)
+                    .getContentLength();
+            } catch (AmazonClientException e) {
+                throw new IOException("can't stat s3://" + bucket + "/" + key,
+                                      e);
+            }
+        }
+
+        public void fetch(long offset, byte[] buf, int count)
+            throws IOException
+        {
+            S3Object object;
+            try {
+                object = client.getObject(
+                    new GetObjectRequest(bucket, key)
+                    .withRange(offset, offset + count - 1));
+            } catch (AmazonClientException e) {
+                throw new IOException("GET s3://" + bucket + "/" + key
+                                      + " failed", e);
+            }
+            InputStream in = object.getObjectContent();
+            try {
+                Util.readFully(in, buf, count);
+            } finally {
+                in.close();
+            }
+        }
+
+        // the client is shared
+        public void close()
+        {
+        }
+    }
+
+    static class Http implements RangeFetcher
+    {
+        static final int TIMEOUT_MILLIS = 60 * 1000;
+
+        final URL url;
+
+        public Http(String url)
+            throws IOException
+        {
+            this.url = new URL(url);
+        }
+
+        HttpURLConnection connect(String method)
+            throws IOException
+        {
+            HttpURLConnection connection =
+                (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            return connection;
+        }
+
+        public long length()
+            throws IOException
+        {
+            HttpURLConnection connection = connect("HEAD");
+            try {
+                if (connection.getResponseCode() != 200) {
+                    throw new IOException("HEAD " + url + ": "
+                                          + connection.getResponseCode());
+                }
+                long length = connection.getContentLengthLong();
+                if (length < 0) {
+                    throw new IOException(url + " has no Content-Length");
+                }
+                return length;
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        public void fetch(long offset, byte[] buf, int count)
+            throws IOException
+        {
+            HttpURLConnection connection = connect("GET");
+            connection.setRequestProperty(
+                "Range", "bytes=" + offset + "-" + (offset + count - 1));
+            try {
+                // A 200 means the server ignored the Range and is sending
+                // the whole thing, which is no good to us.
+                if (connection.getResponseCode() != 206) {
+                    throw new IOException("GET " + url + " (range at "
+                                          + offset + "): "
+                                          + connection.getResponseCode());
+                }
+                InputStream in = connection.getInputStream();
+                try {
+                    Util.readFully(in, buf, count);
+                } finally {
+                    in.close();
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    static class LocalFile implements RangeFetcher
+    {
+        final FileChannel channel;
+
+        public LocalFile(File file)
+            throws IOException
+        {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        public long length()
+            throws IOException
+        {
+            return channel.size();
+        }
+
+        public void fetch(long offset, byte[] buf, int count)
+            throws IOException
+        {
+            ByteBuffer wrapped = ByteBuffer.wrap(buf, 0, count);
+            while (wrapped.hasRemaining()) {
+                int n = channel.read(wrapped, offset + wrapped.position());
+                if (n < 0) {
+                    throw new EOFException("range runs off the end of file");
+                }
+            }
+        }
+
+        public void close()
+            throws IOException
+        {
+            channel.close();
+        }
+    }
+}
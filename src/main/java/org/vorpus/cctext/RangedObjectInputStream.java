@@ -0,0 +1,291 @@
+package org.vorpus.cctext;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import java.util.ArrayDeque;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A remote archive as a plain InputStream, fetched with several ranged GETs
+// at once, ahead of whoever's reading it, so that downloading and
+// processing overlap instead of taking turns.
+//
+// The object is read as consecutive ranges of rangeBytes. We keep up to
+// rangesAhead of them scheduled on the fetcher pool at any time, each
+// fetching straight into its own buffer; the reader takes them in order,
+// and a buffer goes back into the pool once the reader is done with it. So
+// memory is bounded at about (rangesAhead + 1) * rangeBytes per stream, no
+// matter how far ahead the network could get.
+//
+// A range that fails is retried, with backoff, up to maxAttempts times;
+// only then does the reader see an exception, and from then on every read
+// throws (the stream can't go on past a hole). skip() is cheap -- it just
+// moves on to the right range -- which is what resuming from a checkpoint
+// needs.
+public class RangedObjectInputStream extends InputStream
+{
+    public static final int DEFAULT_RANGE_BYTES = 8 * 1024 * 1024;
+    public static final int DEFAULT_RANGES_AHEAD = 4;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    static final long RETRY_DELAY_MILLIS = 250;
+
+    final RangeFetcher fetcher;
+    final long length;
+    final ExecutorService fetchers;
+    final int rangeBytes;
+    final int rangesAhead;
+    final int maxAttempts;
+
+    // Scheduled ranges, in order and contiguous; the first starts at or
+    // before position.
+    final ArrayDeque<Range> pending = new ArrayDeque<Range>();
+    final ArrayDeque<byte[]> freeBuffers = new ArrayDeque<byte[]>();
+    long nextRangeStart = 0;
+
+    Range current = null;
+    long position = 0;
+    volatile boolean closed = false;
+    // the range fetch that failed for good, if one has
+    IOException failure = null;
+
+    final AtomicLong retries = new AtomicLong();
+    final AtomicLong bytesFetched = new AtomicLong();
+
+    static class Range
+    {
+        long start;
+        int length;
+        byte[] buf;
+        Future<Range> result;
+    }
+
+    public RangedObjectInputStream(RangeFetcher fetcher,
+                                   ExecutorService fetchers,
+                                   int rangeBytes, int rangesAhead,
+                                   int maxAttempts)
+        throws IOException
+    {
+        this.fetcher = fetcher;
+        this.length = fetcher.length();
+        this.fetchers = fetchers;
+        this.rangeBytes = rangeBytes;
+        this.rangesAhead = Math.max(1, rangesAhead);
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    public RangedObjectInputStream(RangeFetcher fetcher,
+                                   ExecutorService fetchers)
+        throws IOException
+    {
+        this(fetcher, fetchers, DEFAULT_RANGE_BYTES, DEFAULT_RANGES_AHEAD,
+             DEFAULT_MAX_ATTEMPTS);
+    }
+
+    // s3://bucket/key, http(s)://..., file:/path, or a plain path.
+    public static RangeFetcher fetcherFor(String urlOrPath)
+        throws IOException
+    {
+        if (urlOrPath.startsWith("s3://")) {
+            return new RangeFetcher.S3(urlOrPath);
+        } else if (urlOrPath.startsWith("http://")
+                   || urlOrPath.startsWith("https://")) {
+            return new RangeFetcher.Http(urlOrPath);
+        } else if (urlOrPath.startsWith("file:")) {
+            return new RangeFetcher.LocalFile(
+                new File(urlOrPath.substring("file:".length())));
+        } else {
+            return new RangeFetcher.LocalFile(new File(urlOrPath));
+        }
+    }
+
+    public long length()
+    {
+        return length;
+    }
+
+    // How many range fetches had to be retried so far.
+    public long retries()
+    {
+        return retries.get();
+    }
+
+    public long bytesFetched()
+    {
+        return bytesFetched.get();
+    }
+
+    public synchronized int read()
+        throws IOException
+    {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n < 0 ? -1 : one[0] & 0xff;
+    }
+
+    public synchronized int read(byte[] b, int off, int len)
+        throws IOException
+    {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        if (failure != null) {
+            throw new IOException("an earlier range fetch failed", failure);
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= length) {
+            return -1;
+        }
+        if (current == null
+            || position >= current.start + current.length) {
+            release(current);
+            // before nextRange(), which may throw: we mustn't release it
+            // twice
+            current = null;
+            try {
+                current = nextRange();
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+        int from = (int) (position - current.start);
+        int n = Math.min(len, current.length - from);
+        System.arraycopy(current.buf, from, b, off, n);
+        position += n;
+        return n;
+    }
+
+    public synchronized long skip(long n)
+    {
+        if (n <= 0) {
+            return 0;
+        }
+        long skipped = Math.min(n, length - position);
+        position += skipped;
+        if (current != null
+            && position >= current.start + current.length) {
+            release(current);
+            current = null;
+        }
+        // Anything scheduled that ends before the new position is no use.
+        // It may still be running, so its buffer can't be reused.
+        while (!pending.isEmpty()) {
+            Range first = pending.peekFirst();
+            if (first.start + first.length > position) {
+                break;
+            }
+            pending.removeFirst();
+            first.result.cancel(false);
+        }
+        if (pending.isEmpty() && nextRangeStart < position) {
+            nextRangeStart = position;
+        }
+        return skipped;
+    }
+
+    public synchronized int available()
+    {
+        if (current == null) {
+            return 0;
+        }
+        return (int) Math.max(0, current.start + current.length - position);
+    }
+
+    public synchronized void close()
+        throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Range range : pending) {
+            range.result.cancel(false);
+        }
+        pending.clear();
+        freeBuffers.clear();
+        current = null;
+        fetcher.close();
+    }
+
+    void release(Range range)
+    {
+        if (range != null && range.buf.length == rangeBytes) {
+            freeBuffers.addLast(range.buf);
+        }
+    }
+
+    // The range holding position.
+    Range nextRange()
+        throws IOException
+    {
+        schedule();
+        Range range = pending.removeFirst();
+        try {
+            return range.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for fetch");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            schedule();
+        }
+    }
+
+    void schedule()
+    {
+        while (pending.size() < rangesAhead && nextRangeStart < length) {
+            final Range range = new Range();
+            range.start = nextRangeStart;
+            range.length = (int) Math.min(rangeBytes, length - range.start);
+            range.buf = freeBuffers.pollFirst();
+            if (range.buf == null) {
+                range.buf = new byte[rangeBytes];
+            }
+            nextRangeStart += range.length;
+            range.result = fetchers.submit(new Callable<Range>() {
+                    public Range call() throws IOException {
+                        fetchWithRetries(range);
+                        return range;
+                    }
+                });
+            pending.addLast(range);
+        }
+    }
+
+    void fetchWithRetries(Range range)
+        throws IOException
+    {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                fetcher.fetch(range.start, range.buf, range.length);
+                bytesFetched.addAndGet(range.length);
+                return;
+            } catch (IOException e) {
+                if (attempt >= maxAttempts || closed) {
+                    throw e;
+                }
+                retries.incrementAndGet();
+            }
+            try {
+                Thread.sleep(RETRY_DELAY_MILLIS << (attempt - 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted retrying fetch");
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.vorpus.cctext;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.xml.sax.SAXException;
+
+// Budgets for a single record, so that one pathological document -- a 200
+// MB "text/html" payload, or tag soup that sends the parser into the weeds
+// -- can't hold up a whole archive (see Driver.setRecordLimits). 0 means
+// no limit.
+//
+// - maxPayloadBytes: we only read this much of the payload, and parse the
+//   document as if that's all there was.
+// - maxExtractedChars: extraction stops after this many characters of
+//   visible text, and we carry on with what we have.
+// - maxMillis: if parsing is still going this long after we started on the
+//   record, the document is skipped. Language detection can't be
+//   interrupted (it's one native call), but it's linear in the text, which
+//   maxExtractedChars bounds; if it makes the record go over, that's
+//   counted too.
+public class RecordLimits
+{
+    public static final RecordLimits NONE = new RecordLimits(0, 0, 0);
+
+    public final long maxPayloadBytes;
+    public final int maxExtractedChars;
+    public final long maxMillis;
+
+    public RecordLimits(long maxPayloadBytes, int maxExtractedChars,
+                        long maxMillis)
+    {
+        this.maxPayloadBytes = maxPayloadBytes;
+        this.maxExtractedChars = maxExtractedChars;
+        this.maxMillis = maxMillis;
+    }
+
+    // Thrown from the TextExtractor callbacks to stop the parser; HTMLToText
+    // catches it and returns what's been extracted so far, with
+    // Result.limitExceeded set. A SAXException so it can get through the
+    // parsers.
+    public static class Exceeded extends SAXException
+    {
+        // "extracted-chars" or "parse-time"
+        public final String limit;
+
+        public Exceeded(String limit)
+        {
+            super("record limit exceeded: " + limit);
+            this.limit = limit;
+        }
+    }
+
+    // The Exceeded somewhere in e's chain of causes, if any. (The XML
+    // parser likes to wrap things.)
+    static Exceeded find(Throwable e)
+    {
+        while (e != null) {
+            if (e instanceof Exceeded) {
+                return (Exceeded) e;
+            }
+            if (e instanceof SAXException
+                && ((SAXException) e).getException() != null) {
+                e = ((SAXException) e).getException();
+            } else {
+                e = e.getCause();
+            }
+        }
+        return null;
+    }
+
+    // Passes reads through until System.nanoTime() gets past deadline,
+    // then fails them with an Exceeded("parse-time") inside an
+    // IOException. The extractor callbacks check the deadline too, but
+    // the parser can spend a long time between those.
+    public static class DeadlineInputStream extends FilterInputStream
+    {
+        final long deadline;
+
+        public DeadlineInputStream(InputStream in, long deadline)
+        {
+            super(in);
+            this.deadline = deadline;
+        }
+
+        void check()
+            throws IOException
+        {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IOException(new Exceeded("parse-time"));
+            }
+        }
+
+        public int read()
+            throws IOException
+        {
+            check();
+            return in.read();
+        }
+
+        public int read(byte[] b, int off, int len)
+            throws IOException
+        {
+            check();
+            return in.read(b, off, len);
+        }
+    }
+
+    // The first limit bytes of in, then EOF.
+    public static class LimitedInputStream extends FilterInputStream
+    {
+        long remaining;
+
+        public LimitedInputStream(InputStream in, long limit)
+        {
+            super(in);
+            remaining = limit;
+        }
+
+        public int read()
+            throws IOException
+        {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len)
+            throws IOException
+        {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        public long skip(long n)
+            throws IOException
+        {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        public int available()
+            throws IOException
+        {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        // mark/reset would get remaining wrong; CharsetResolver.markable
+        // will buffer us instead
+        public boolean markSupported()
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package org.vorpus.cctext;
+
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.jwat.common.HttpHeader;
+import org.jwat.common.Payload;
+import org.jwat.common.Uri;
+
+import org.apache.commons.io.IOUtils;
+
+// Splits the processing of a single archive into three stages, so that
+// inflating, parsing and language detection can all happen at the same
+// time:
+//
+// - The reader (whichever thread calls submit) pulls records out of the
+//   archive, and copies each HTML payload into a byte array, because jwat
+//   reuses its stream as soon as we ask for the next record.
+// - A pool of workers runs Driver.analyze on those copies.
+// - A single sink thread takes the results in the order they were
+//   submitted and calls Driver.commit, so url-info lines come out in record
+//   order, exactly as they would without the pipeline.
+//
+// The queue between the reader and the sink is bounded both in number of
+// records and in bytes of copied payload, so if the workers fall behind
+// then the reader blocks rather than buffering the whole archive in memory.
+public class RecordPipeline
+{
+    // A submitted record, and how much of the byte budget it holds.
+    static class Pending
+    {
+        Future<Driver.RecordResult> result;
+        int permits;
+
+        Pending(Future<Driver.RecordResult> result, int permits)
+        {
+            this.result = result;
+            this.permits = permits;
+        }
+    }
+
+    static final Pending END = new Pending(null, 0);
+
+    Driver driver;
+    ExecutorService workers;
+    BlockingQueue<Pending> pending;
+    Semaphore byteBudget;
+    int maxBytes;
+    Thread sink;
+
+    public RecordPipeline(Driver driver, ExecutorService workers,
+                          int maxRecords, int maxBytes)
+    {
+        this.driver = driver;
+        this.workers = workers;
+        this.pending = new ArrayBlockingQueue<Pending>(maxRecords);
+        this.maxBytes = maxBytes;
+        this.byteBudget = new Semaphore(maxBytes);
+        this.sink = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        drain();
+                    } finally {
+                        // this thread's done committing, and there's one
+                        // of us per archive
+                        try {
+                            driver.releaseTextSinkBuffer();
+                        } catch (IOException e) {
+                            System.err.println("Failed to release text "
+                                               + "buffer:");
+                            e.printStackTrace(System.err);
+                        }
+                    }
+                }
+            }, "cctext-pipeline-sink");
+        this.sink.setDaemon(true);
+        this.sink.start();
+    }
+
+    // A record bigger than the whole budget would otherwise wait forever;
+    // it gets to use the whole budget instead.
+    int permitsFor(long length)
+    {
+        return (int) Math.max(0, Math.min(length, maxBytes));
+    }
+
+    public void submit(final String sourceUrlOrPath,
+                       final long offset,
+                       final Uri uri,
+                       final HttpHeader header,
+                       Payload payload)
+        throws IOException
+    {
+        submit(sourceUrlOrPath, offset, uri, header, payload, null);
+    }
+
+    // If content is set, it's the payload's content (a slice of a mapped
+    // archive; see Driver.payloadSlice), and the workers read that
+    // directly instead of a copy. It doesn't count against the byte
+    // budget, since it's page cache, not heap.
+    public void submit(final String sourceUrlOrPath,
+                       final long offset,
+                       final Uri uri,
+                       final HttpHeader header,
+                       Payload payload,
+                       final ByteBuffer slice)
+        throws IOException
+    {
+        final long totalLength = payload.getTotalLength();
+        final long remaining = payload.getRemaining();
+
+        // We only ever read the content of HTML records, so there's no
+        // point copying anything else. The budget is taken before the
+        // copy is made, for as much as it can be (i.e., no more than
+        // maxPayloadBytes), so the copies never add up to more than
+        // maxBytes.
+        boolean copying = slice == null && Driver.htmlMimeType(header) != null;
+        int permits = 0;
+        if (copying) {
+            long expected = remaining;
+            long limit = driver.limits.maxPayloadBytes;
+            if (limit > 0 && expected > limit) {
+                expected = limit;
+            }
+            permits = permitsFor(expected);
+        }
+        try {
+            byteBudget.acquire(permits);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting "
+                                             + "for pipeline");
+        }
+
+        boolean queued = false;
+        try {
+            byte[] copy = new byte[0];
+            Throwable copyFailure = null;
+            if (copying) {
+                long start = System.nanoTime();
+                try {
+                    copy = IOUtils.toByteArray(
+                        driver.limitPayload(payload.getInputStream(),
+                                            remaining));
+                } catch (IOException e) {
+                    copyFailure = e;
+                }
+                driver.copyLatency.record(System.nanoTime() - start);
+            }
+            final byte[] content = copy;
+            final Throwable failure = copyFailure;
+
+            Callable<Driver.RecordResult> task =
+                new Callable<Driver.RecordResult>() {
+                public Driver.RecordResult call() {
+                    InputStream contentStream;
+                    if (slice != null) {
+                        contentStream =
+                            new MappedFileInputStream.BufferInputStream(slice);
+                    } else {
+                        contentStream = new ByteArrayInputStream(content);
+                    }
+                    Driver.RecordResult result =
+                        driver.analyze(sourceUrlOrPath, offset, uri, header,
+                                       totalLength, remaining,
+                                       contentStream);
+                    if (failure != null && result.exception == null) {
+                        result.exception = failure;
+                    }
+                    return result;
+                }
+            };
+            pending.put(new Pending(workers.submit(task), permits));
+            queued = true;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting "
+                                             + "for pipeline");
+        } finally {
+            // once it's queued, drain() gives the permits back
+            if (!queued) {
+                byteBudget.release(permits);
+            }
+        }
+    }
+
+    void drain()
+    {
+        while (true) {
+            Pending next;
+            try {
+                next = pending.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (next == END) {
+                return;
+            }
+            try {
+                Driver.RecordResult result;
+                try {
+                    result = next.result.get();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (ExecutionException e) {
+                    // analyze() catches everything, so this shouldn't
+                    // happen.
+                    System.err.println("Pipeline worker failed:");
+                    e.printStackTrace(System.err);
+                    continue;
+                }
+                driver.commit(result);
+            } finally {
+                byteBudget.release(next.permits);
+            }
+            try {
+                driver.maybeFlush();
+            } catch (IOException e) {
+                System.err.println("Failed to flush stats:");
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+
+    // Waits for every submitted record to be committed.
+    public void finish()
+        throws IOException
+    {
+        try {
+            pending.put(END);
+            sink.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting "
+                                             + "for pipeline");
+        } finally {
+            driver.pipelines.remove(this);
+        }
+    }
+
+    public int queueDepth()
+    {
+        return pending.size();
+    }
+
+    // Bytes of payload copies waiting for (or being worked on by) the
+    // workers.
+    public int bufferedBytes()
+    {
+        return maxBytes - byteBudget.availablePermits();
+    }
+}
@@ -0,0 +1,148 @@
+package org.vorpus.cctext;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+
+import java.nio.ByteBuffer;
+
+import com.google.common.collect.ImmutableMap;
+
+// Bytes, code points and words per language, over the chunks of a
+// LanguageDetection.Result -- the "cld2-span-stats" in the url info log, and
+// the "span-*" families in the stats file.
+//
+// A page only ever has a handful of languages, so rather than a map we keep
+// parallel arrays of (CLD2 language id, totals) and find a language by
+// looking through them; no boxing, and nothing to hash.
+public class SpanStats
+{
+    int size = 0;
+    int[] languages = new int[4];
+    long[] bytes = new long[4];
+    long[] codepoints = new long[4];
+    long[] words = new long[4];
+
+    int slot(int language)
+    {
+        for (int i = 0; i < size; i++) {
+            if (languages[i] == language) {
+                return i;
+            }
+        }
+        if (size == languages.length) {
+            languages = Arrays.copyOf(languages, 2 * size);
+            bytes = Arrays.copyOf(bytes, 2 * size);
+            codepoints = Arrays.copyOf(codepoints, 2 * size);
+            words = Arrays.copyOf(words, 2 * size);
+        }
+        languages[size] = language;
+        bytes[size] = codepoints[size] = words[size] = 0;
+        return size++;
+    }
+
+    public void add(int language, long chunkBytes, long chunkCodepoints,
+                    long chunkWords)
+    {
+        int i = slot(language);
+        bytes[i] += chunkBytes;
+        codepoints[i] += chunkCodepoints;
+        words[i] += chunkWords;
+    }
+
+    // Counts up every chunk of result. Like anything else that looks at
+    // chunks, this has to happen while their text is still valid.
+    public static SpanStats of(LanguageDetection.Result result)
+    {
+        SpanStats stats = new SpanStats();
+        ByteBuffer utf8 = result._utf8;
+        int base = utf8.position();
+        for (int i = result._chunkStart; i < result._chunkEnd; i++) {
+            int from = base + result._chunkOffsets[i];
+            int to = from + result._chunkLengths[i];
+            long chunkCodepoints;
+            long chunkWords;
+            // BlockLanguageCache already knows the counts for the chunks it
+            // made up from cached blocks
+            if (result._chunkCodepoints != null
+                && result._chunkCodepoints[i] >= 0) {
+                chunkCodepoints = result._chunkCodepoints[i];
+                chunkWords = result._chunkWords[i];
+            } else {
+                chunkCodepoints = Util.codePointCount(utf8, from, to);
+                chunkWords = Util.wordCount(utf8, from, to);
+            }
+            stats.add(result._chunkLanguages[i], result._chunkLengths[i],
+                      chunkCodepoints, chunkWords);
+        }
+        return stats;
+    }
+
+    // language code -> {"bytes": ..., "codepoints": ..., "words": ...}
+    public Map<String, Map<String, Long>> toMap()
+    {
+        Map<String, Map<String, Long>> result =
+            new HashMap<String, Map<String, Long>>();
+        for (int i = 0; i < size; i++) {
+            result.put(LanguageDetection.languageCode(languages[i]),
+                       ImmutableMap.of("bytes", bytes[i],
+                                       "codepoints", codepoints[i],
+                                       "words", words[i]));
+        }
+        return result;
+    }
+
+    // The crawl-wide totals: one Stats family per measure, keyed by
+    // language code. The Counters are looked up once per language id and
+    // then kept, so adding a page is a few LongAdder bumps.
+    public static class Totals
+    {
+        final Stats.Family bytesFamily;
+        final Stats.Family codepointsFamily;
+        final Stats.Family wordsFamily;
+        // indexed by language id; filled in lazily. Racy, but harmless:
+        // Family.get always hands out the same Counter for the same key.
+        volatile Stats.Counter[][] counters = new Stats.Counter[0][];
+
+        public Totals(Stats stats)
+        {
+            bytesFamily = stats.family("span-bytes");
+            codepointsFamily = stats.family("span-codepoints");
+            wordsFamily = stats.family("span-words");
+        }
+
+        Stats.Counter[] countersFor(int language)
+        {
+            Stats.Counter[][] current = counters;
+            if (language >= 0 && language < current.length
+                && current[language] != null) {
+                return current[language];
+            }
+            String code = LanguageDetection.languageCode(language);
+            Stats.Counter[] forLanguage = new Stats.Counter[] {
+                bytesFamily.get(code),
+                codepointsFamily.get(code),
+                wordsFamily.get(code),
+            };
+            if (language >= 0) {
+                if (language >= current.length) {
+                    current = Arrays.copyOf(
+                        current, Math.max(language + 1, 2 * current.length));
+                }
+                current[language] = forLanguage;
+                counters = current;
+            }
+            return forLanguage;
+        }
+
+        public void add(SpanStats spans)
+        {
+            for (int i = 0; i < spans.size; i++) {
+                Stats.Counter[] forLanguage = countersFor(spans.languages[i]);
+                forLanguage[0].add(spans.bytes[i]);
+                forLanguage[1].add(spans.codepoints[i]);
+                forLanguage[2].add(spans.words[i]);
+            }
+        }
+    }
+}
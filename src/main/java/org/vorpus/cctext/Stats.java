@@ -0,0 +1,165 @@
+package org.vorpus.cctext;
+
+import java.util.Map;
+import java.util.HashMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// The counters behind the stats file.
+//
+// There are two kinds of stat: plain counters ("total-response-count"), and
+// families of counters keyed by some string ("mime-type" -> "text/html").
+// Every counter is a LongAdder, which keeps a separate cell per contending
+// thread and only adds them up when someone asks for the total, so bumping
+// a stat from many threads at once doesn't bounce a cache line around or
+// take a lock. Hot-path code should look up its Counter (or Family) once and
+// hang on to it, rather than going through the by-name lookup every time.
+//
+// snapshot() produces the same nested-map structure that Driver used to
+// keep directly, so the stats file looks the same as it always has.
+public class Stats
+{
+    public static class Counter
+    {
+        final LongAdder value = new LongAdder();
+        // Counters that have never been bumped don't show up in the
+        // snapshot, just like missing keys in the old HashMap.
+        volatile boolean touched = false;
+
+        public void add(long amount)
+        {
+            value.add(amount);
+            if (!touched) {
+                touched = true;
+            }
+        }
+
+        public void increment()
+        {
+            add(1);
+        }
+
+        public long get()
+        {
+            return value.sum();
+        }
+    }
+
+    public static class Family
+    {
+        final ConcurrentMap<String, Counter> counters =
+            new ConcurrentHashMap<String, Counter>();
+
+        public Counter get(String key)
+        {
+            if (key == null) {
+                key = "__null";
+            }
+            Counter counter = counters.get(key);
+            if (counter == null) {
+                counter = new Counter();
+                Counter existing = counters.putIfAbsent(key, counter);
+                if (existing != null) {
+                    counter = existing;
+                }
+            }
+            return counter;
+        }
+
+        public void add(String key, long amount)
+        {
+            get(key).add(amount);
+        }
+
+        public void increment(String key)
+        {
+            get(key).add(1);
+        }
+
+        Map<String, Long> snapshot()
+        {
+            Map<String, Long> result = new HashMap<String, Long>();
+            for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().get());
+            }
+            return result;
+        }
+    }
+
+    final ConcurrentMap<String, Counter> counters =
+        new ConcurrentHashMap<String, Counter>();
+    final ConcurrentMap<String, Family> families =
+        new ConcurrentHashMap<String, Family>();
+
+    public Counter counter(String name)
+    {
+        assert name != null;
+        assert !families.containsKey(name);
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counter = new Counter();
+            Counter existing = counters.putIfAbsent(name, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    public Family family(String name)
+    {
+        assert name != null;
+        assert !counters.containsKey(name);
+        Family family = families.get(name);
+        if (family == null) {
+            family = new Family();
+            Family existing = families.putIfAbsent(name, family);
+            if (existing != null) {
+                family = existing;
+            }
+        }
+        return family;
+    }
+
+    // Adds a snapshot() (e.g. one read back from a checkpoint) onto the
+    // current counts. Numbers may come back from JSON as doubles; they're
+    // all really integers.
+    public void restore(Map<String, Object> snapshot)
+    {
+        for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+            if (entry.getValue() instanceof Number) {
+                counter(entry.getKey())
+                    .add(((Number) entry.getValue()).longValue());
+            } else {
+                Family family = family(entry.getKey());
+                Map<String, Object> values =
+                    (Map<String, Object>) entry.getValue();
+                for (Map.Entry<String, Object> value : values.entrySet()) {
+                    family.add(value.getKey(),
+                               ((Number) value.getValue()).longValue());
+                }
+            }
+        }
+    }
+
+    // Adds up all the per-thread cells. This doesn't stop anyone from
+    // bumping counters while it runs; a bump that races with the snapshot
+    // just shows up in the next one.
+    public Map<String, Object> snapshot()
+    {
+        Map<String, Object> result = new HashMap<String, Object>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            if (entry.getValue().touched) {
+                result.put(entry.getKey(), entry.getValue().get());
+            }
+        }
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            if (!entry.getValue().counters.isEmpty()) {
+                result.put(entry.getKey(), entry.getValue().snapshot());
+            }
+        }
+        return result;
+    }
+}
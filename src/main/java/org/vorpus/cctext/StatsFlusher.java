@@ -0,0 +1,165 @@
+package org.vorpus.cctext;
+
+import java.util.Map;
+import java.util.HashMap;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.Gson;
+import com.google.common.collect.ImmutableMap;
+
+// Writes Stats snapshots to disk.
+//
+// The stats file is replaced atomically (see Util.writeFileAtomically), so
+// anyone reading it -- or us, after a crash -- always sees a complete
+// snapshot, never a half-written one.
+//
+// In delta mode we additionally append one JSON line per flush to
+// <stats file>.deltas, holding just the counters that changed since the
+// previous flush. Adding up all the lines gives the full snapshot. This lets
+// periodic flushes skip rewriting the whole (potentially huge, once the tld
+// and exception families fill up) stats file. If we crash half-way through
+// appending, only the last line can be truncated; readers should ignore a
+// final line that doesn't parse.
+public class StatsFlusher
+{
+    File statsFile;
+    File deltaFile;
+    Gson gson = new Gson();
+    Map<String, Object> previous = new HashMap<String, Object>();
+
+    public StatsFlusher(File statsFile)
+    {
+        this.statsFile = statsFile;
+    }
+
+    public synchronized void setDeltaMode(boolean enabled)
+    {
+        if (enabled) {
+            deltaFile = new File(statsFile.getPath() + ".deltas");
+        } else {
+            deltaFile = null;
+        }
+    }
+
+    public synchronized boolean isDeltaMode()
+    {
+        return deltaFile != null;
+    }
+
+    // Writes the full snapshot, and a delta line if in delta mode.
+    public synchronized void writeFull(Map<String, Object> snapshot)
+        throws IOException
+    {
+        Util.writeFileAtomically(statsFile, gson.toJson(snapshot));
+        writeDelta(snapshot);
+    }
+
+    // In delta mode, writes just a delta line; otherwise the same as
+    // writeFull.
+    public synchronized void writePeriodic(Map<String, Object> snapshot)
+        throws IOException
+    {
+        if (deltaFile == null) {
+            writeFull(snapshot);
+        } else {
+            writeDelta(snapshot);
+        }
+    }
+
+    void writeDelta(Map<String, Object> snapshot)
+        throws IOException
+    {
+        if (deltaFile == null) {
+            return;
+        }
+        Map<String, Object> delta = diff(previous, snapshot);
+        previous = snapshot;
+        if (delta.isEmpty()) {
+            return;
+        }
+        String line = gson.toJson(ImmutableMap.of
+                                  ("time", System.currentTimeMillis(),
+                                   "stats", delta)) + "\n";
+        // true -> append
+        FileOutputStream out = new FileOutputStream(deltaFile, true);
+        try {
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+            out.getChannel().force(false);
+        } finally {
+            out.close();
+        }
+    }
+
+    static Map<String, Object> diff(Map<String, Object> before,
+                                    Map<String, Object> after)
+    {
+        Map<String, Object> result = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> entry : after.entrySet()) {
+            Object old = before.get(entry.getKey());
+            if (entry.getValue() instanceof Long) {
+                long change = (Long) entry.getValue();
+                if (old != null) {
+                    change -= (Long) old;
+                }
+                if (change != 0) {
+                    result.put(entry.getKey(), change);
+                }
+            } else {
+                Map<String, Long> changes = diffFamily(
+                    (Map<String, Long>) old,
+                    (Map<String, Long>) entry.getValue());
+                if (!changes.isEmpty()) {
+                    result.put(entry.getKey(), changes);
+                }
+            }
+        }
+        return result;
+    }
+
+    static Map<String, Long> diffFamily(Map<String, Long> before,
+                                        Map<String, Long> after)
+    {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : after.entrySet()) {
+            long change = entry.getValue();
+            if (before != null && before.containsKey(entry.getKey())) {
+                change -= before.get(entry.getKey());
+            }
+            if (change != 0) {
+                result.put(entry.getKey(), change);
+            }
+        }
+        return result;
+    }
+
+    // Runs driver.periodicFlush() every periodMs on a background thread, so
+    // that nothing on the record path ever has to wait for the disk.
+    public static ScheduledExecutorService startBackground(
+        final Driver driver, long periodMs)
+    {
+        ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(
+                Util.daemonThreadFactory("cctext-stats-flusher"));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        driver.periodicFlush();
+                    } catch (Throwable e) {
+                        // Don't let one failed write cancel all future ones.
+                        System.err.println("Background flush failed:");
+                        e.printStackTrace(System.err);
+                    }
+                }
+            }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+        return scheduler;
+    }
+}
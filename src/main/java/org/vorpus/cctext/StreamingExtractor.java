@@ -0,0 +1,1216 @@
+package org.vorpus.cctext;
+
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Arrays;
+import java.util.ArrayList;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+// A fast alternative to running the full HTML5 tree builder, for the "fast"
+// extraction mode (see HTMLToText.Mode).
+//
+// TextExtractor only cares about a handful of things: which elements start
+// and end (for visibility and block boundaries), the attributes of <html>
+// and <meta> (for language hints), and the character data. So instead of
+// building a tree, we tokenize the raw bytes ourselves and feed the same
+// SAX events straight into a TextExtractor. Invisible elements like
+// <script>, <style> and <svg> are skipped at the byte level without looking
+// at their content at all.
+//
+// This only works for ASCII-compatible encodings, and only for the parts of
+// HTML5 that don't need the tree builder's fix-ups. The HTML5 parsing
+// algorithm has a lot of corner cases (foster parenting, the adoption
+// agency algorithm, implied <body> after stray text, ...). Rather than
+// reimplementing them, whenever we notice something we don't handle we
+// throw Unsupported and the caller falls back to the full parser. On
+// reasonably well-formed pages the TextExtractor ends up in exactly the
+// same state either way.
+public class StreamingExtractor
+{
+    // The reason ends up as a key in the "fast-fallback-reason" stats, so
+    // it's always one of a fixed set of strings, never anything taken
+    // from the page (like a tag name).
+    public static class Unsupported extends Exception
+    {
+        public Unsupported(String reason)
+        {
+            super(reason);
+        }
+    }
+
+    private static Set<String> setOf(String... names)
+    {
+        return new HashSet<String>(Arrays.asList(names));
+    }
+
+    static final String HTML_NAMESPACE =
+        HTMLToText.TextExtractor.HTML_NAMESPACE;
+
+    static final Set<String> voidElements = setOf(
+        "area", "base", "basefont", "bgsound", "br", "col", "embed", "hr",
+        "img", "input", "keygen", "link", "meta", "param", "source",
+        "track", "wbr");
+
+    // Non-void invisible elements whose content produces no text. Some of
+    // these are raw text elements even to a real HTML5 tokenizer; for the
+    // rest skipElement still has to look at the tags inside.
+    // (<head> is invisible too, but has <meta> tags we want to see.)
+    static final Set<String> skippedElements = setOf(
+        "script", "style", "template", "title", "noembed", "noframes",
+        "noscript", "xmp", "iframe", "textarea", "select", "datalist",
+        "svg", "math", "object", "applet", "video", "audio", "canvas",
+        "map", "picture", "form", "fieldset", "legend", "label", "button",
+        "output", "progress", "meter", "details", "summary", "menuitem",
+        "menu", "dialog", "del", "strike", "s", "figure", "footer", "pre",
+        "address", "nav", "listing", "ruby", "rt", "rp");
+
+    // Content models where a tokenizer would see something other than
+    // markup inside, so that nested "<" don't count as tags.
+    static final Set<String> rawTextElements = setOf(
+        "script", "style", "title", "textarea", "xmp", "iframe", "noembed",
+        "noframes");
+
+    // Elements whose self-closing syntax is honored (foreign content).
+    static final Set<String> foreignElements = setOf("svg", "math");
+
+    // Things that can legitimately appear before <body> without making the
+    // tree builder invent one.
+    static final Set<String> headElements = setOf(
+        "html", "head", "base", "basefont", "bgsound", "link", "meta",
+        "noframes", "script", "style", "template", "title", "noscript");
+
+    // Start tags that implicitly close an open <p>. This follows the
+    // version of the spec our copy of the validator.nu parser implements,
+    // which predates <main> and <dialog>, not the current one.
+    static final Set<String> closesP = setOf(
+        "address", "article", "aside", "blockquote", "center", "details",
+        "dir", "div", "dl", "fieldset", "figcaption", "figure",
+        "footer", "header", "hgroup", "menu", "nav", "ol", "p",
+        "section", "summary", "ul", "h1", "h2", "h3", "h4", "h5", "h6",
+        "pre", "listing", "form", "hr", "xmp", "li", "dd", "dt");
+
+    static final Set<String> headings = setOf(
+        "h1", "h2", "h3", "h4", "h5", "h6");
+
+    // Elements that can be closed implicitly by an end tag for one of their
+    // ancestors, without the tree builder doing anything clever.
+    static final Set<String> impliedEndElements = setOf(
+        "dd", "dt", "li", "p", "td", "th", "tr", "tbody", "thead", "tfoot",
+        "caption", "colgroup");
+
+    // Formatting elements get the adoption agency algorithm when misnested,
+    // so their end tags must match exactly.
+    static final Set<String> formattingElements = setOf(
+        "a", "b", "big", "code", "em", "font", "i", "nobr", "s", "small",
+        "strike", "strong", "tt", "u");
+
+    // Where text or stray elements get foster-parented out of the table.
+    static final Set<String> tableContexts = setOf(
+        "table", "tbody", "thead", "tfoot", "tr");
+    static final Set<String> tableChildren = setOf(
+        "caption", "colgroup", "col", "tbody", "thead", "tfoot", "tr", "td",
+        "th", "script", "style", "template");
+
+    static final Set<String> tableParts = setOf(
+        "caption", "colgroup", "col", "tbody", "thead", "tfoot", "tr", "td",
+        "th");
+
+    // For closeTablePart: what a new cell, row or section start tag closes
+    // implicitly, and what it stops at.
+    static final Set<String> cellCloses = setOf("td", "th");
+    static final Set<String> cellStopsAt = setOf(
+        "tr", "tbody", "thead", "tfoot", "table");
+    static final Set<String> rowCloses = setOf("td", "th", "tr");
+    static final Set<String> rowStopsAt = setOf(
+        "tbody", "thead", "tfoot", "table");
+    static final Set<String> sectionCloses = setOf(
+        "td", "th", "tr", "tbody", "thead", "tfoot");
+    static final Set<String> sectionStopsAt = setOf("table");
+
+    // The spec's "special" category. An end tag for anything else is
+    // ignored if one of these is open inside the element it would close.
+    static final Set<String> specialElements = setOf(
+        "address", "applet", "area", "article", "aside", "base", "basefont",
+        "bgsound", "blockquote", "body", "br", "button", "caption", "center",
+        "col", "colgroup", "dd", "details", "dir", "div", "dl", "dt", "embed",
+        "fieldset", "figcaption", "figure", "footer", "form", "frame",
+        "frameset", "h1", "h2", "h3", "h4", "h5", "h6", "head", "header",
+        "hgroup", "hr", "html", "iframe", "img", "input", "keygen", "li",
+        "link", "listing", "marquee", "menu", "meta", "nav",
+        "noembed", "noframes", "noscript", "object", "ol", "p", "param",
+        "plaintext", "pre", "script", "section", "select", "source", "style",
+        "summary", "table", "tbody", "td", "template", "textarea", "tfoot",
+        "th", "thead", "title", "tr", "track", "ul", "wbr", "xmp");
+
+    // Scope boundaries for finding an open element to close.
+    static final Set<String> scopeBoundaries = setOf(
+        "applet", "caption", "html", "table", "td", "th", "marquee",
+        "object", "template", "button");
+
+    // HTML start tags that end foreign content (<svg>, <math>). <font>
+    // only does with some attributes, but we don't look.
+    static final Set<String> foreignBreakout = setOf(
+        "b", "big", "blockquote", "body", "br", "center", "code", "dd", "div",
+        "dl", "dt", "em", "embed", "h1", "h2", "h3", "h4", "h5", "h6", "head",
+        "hr", "i", "img", "li", "listing", "menu", "meta", "nobr", "ol", "p",
+        "pre", "ruby", "s", "small", "span", "strong", "strike", "sub", "sup",
+        "table", "tt", "u", "ul", "var", "font");
+
+    // What a <noscript> in the head can contain without ending the head.
+    static final Set<String> headNoscriptElements = setOf(
+        "basefont", "bgsound", "link", "meta", "noframes", "style", "html");
+
+    // Things we simply don't attempt.
+    static final Set<String> unsupportedElements = setOf(
+        "frameset", "frame", "plaintext", "image", "isindex", "option",
+        "optgroup", "marquee", "select");
+
+    static final String UTF8_BOM = new String(new char[] {
+            (char) 0xef, (char) 0xbb, (char) 0xbf });
+
+    HTMLToText.TextExtractor extractor;
+    ArrayList<String> stack = new ArrayList<String>();
+    // the elements open inside the one skipElement is skipping
+    ArrayList<String> skipStack = new ArrayList<String>();
+    boolean bodyOpen;
+    boolean afterBody;
+    boolean htmlHasLang;
+    AttributesImpl atts = new AttributesImpl();
+    AttributesImpl noAtts = new AttributesImpl();
+    StringBuilder text = new StringBuilder(1024);
+    char[] chars = new char[1024];
+    CharBuffer decoded = CharBuffer.allocate(1024);
+    CharsetDecoder decoder;
+    Charset decoderCharset;
+
+    byte[] buf;
+    int pos, end;
+
+    public StreamingExtractor(HTMLToText.TextExtractor extractor)
+    {
+        this.extractor = extractor;
+    }
+
+    // Charsets where every byte < 0x80 means the ASCII character -- at
+    // least as far as "<", ">", "&", quotes and tag names go, which is all
+    // we look at before decoding a run of text. (Multibyte encodings like
+    // Shift_JIS or GBK never use those bytes as trail bytes.)
+    public static boolean isAsciiCompatible(Charset charset)
+    {
+        String name = charset.name().toUpperCase();
+        if (name.startsWith("UTF-16") || name.startsWith("UTF-32")
+            || name.startsWith("X-UTF-16") || name.startsWith("X-UTF-32")
+            || name.startsWith("ISO-2022") || name.startsWith("UTF-7")
+            || name.contains("EBCDIC") || name.startsWith("IBM")
+            || name.startsWith("X-IBM") || name.startsWith("HZ")) {
+            return false;
+        }
+        if (!charset.canEncode()) {
+            return false;
+        }
+        byte[] ascii = "<>&/=\"' azAZ09!-".getBytes(StandardCharsets.US_ASCII);
+        byte[] encoded = "<>&/=\"' azAZ09!-".getBytes(charset);
+        return Arrays.equals(ascii, encoded);
+    }
+
+    // Feeds the whole document to the extractor, which should have just been
+    // reset. If this throws Unsupported, the extractor is left in some
+    // arbitrary state and must be reset before reuse.
+    public void extract(byte[] buf, int offset, int length, Charset charset)
+        throws Unsupported, SAXException
+    {
+        if (!isAsciiCompatible(charset)) {
+            throw new Unsupported("charset");
+        }
+        if (decoderCharset != charset) {
+            decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            decoderCharset = charset;
+        }
+        this.buf = buf;
+        this.pos = offset;
+        this.end = offset + length;
+        stack.clear();
+        bodyOpen = false;
+        afterBody = false;
+        htmlHasLang = false;
+
+        if (startsWith(pos, UTF8_BOM)) {
+            if (!charset.equals(StandardCharsets.UTF_8)) {
+                // the BOM would override the declared charset
+                throw new Unsupported("bom");
+            }
+            pos += 3;
+        }
+
+        try {
+            tokenize();
+            // At EOF the tree builder pops everything still open.
+            while (!stack.isEmpty()) {
+                pop();
+            }
+        } finally {
+            this.buf = null;
+        }
+    }
+
+    void tokenize()
+        throws Unsupported, SAXException
+    {
+        int textStart = pos;
+        while (pos < end) {
+            byte b = buf[pos];
+            if (b != '<') {
+                pos++;
+                continue;
+            }
+            if (pos + 1 >= end) {
+                break;
+            }
+            byte next = buf[pos + 1];
+            if (isAsciiLetter(next) || next == '/' || next == '!'
+                || next == '?') {
+                text(textStart, pos);
+                markup();
+                textStart = pos;
+            } else {
+                // A "<" that doesn't start a tag is just text.
+                pos++;
+            }
+        }
+        text(textStart, end);
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // Markup
+
+    void markup()
+        throws Unsupported, SAXException
+    {
+        byte next = buf[pos + 1];
+        if (next == '!') {
+            if (startsWith(pos + 2, "--")) {
+                comment();
+            } else if (startsWith(pos + 2, "[CDATA[")) {
+                throw new Unsupported("cdata");
+            } else {
+                // <!DOCTYPE ...> or a bogus comment
+                skipPast('>');
+            }
+        } else if (next == '?') {
+            skipPast('>');
+        } else if (next == '/') {
+            if (pos + 2 < end && isAsciiLetter(buf[pos + 2])) {
+                endTag();
+            } else {
+                // "</>" is ignored; "</ ..." is a bogus comment
+                skipPast('>');
+            }
+        } else {
+            startTag();
+        }
+    }
+
+    void comment()
+        throws Unsupported
+    {
+        int start = pos + 4;
+        // "<!-->" and "<!--->" are (empty) comments too.
+        if (startsWith(start, ">")) {
+            pos = start + 1;
+            return;
+        }
+        if (startsWith(start, "->")) {
+            pos = start + 2;
+            return;
+        }
+        int close = indexOf("-->", start);
+        if (close < 0) {
+            throw new Unsupported("unterminated-comment");
+        }
+        pos = close + 3;
+    }
+
+    // Parses a tag name starting at pos, leaving pos just after it.
+    String tagName()
+    {
+        int start = pos;
+        while (pos < end) {
+            byte b = buf[pos];
+            if (b == '>' || b == '/' || isSpace(b)) {
+                break;
+            }
+            pos++;
+        }
+        return asciiLowerCase(start, pos);
+    }
+
+    // Parses attributes up to and including the closing ">", into atts.
+    // Returns true if the tag was self-closing ("/>").
+    boolean attributes(boolean keep)
+        throws Unsupported
+    {
+        atts.clear();
+        boolean selfClosing = false;
+        while (true) {
+            while (pos < end && (isSpace(buf[pos]) || buf[pos] == '/')) {
+                selfClosing = buf[pos] == '/';
+                pos++;
+            }
+            if (pos >= end) {
+                throw new Unsupported("eof-in-tag");
+            }
+            if (buf[pos] == '>') {
+                pos++;
+                return selfClosing;
+            }
+            selfClosing = false;
+
+            int nameStart = pos;
+            pos++;
+            while (pos < end) {
+                byte b = buf[pos];
+                if (b == '>' || b == '/' || b == '=' || isSpace(b)) {
+                    break;
+                }
+                pos++;
+            }
+            int nameEnd = pos;
+            while (pos < end && isSpace(buf[pos])) {
+                pos++;
+            }
+            int valueStart = pos, valueEnd = pos;
+            if (pos < end && buf[pos] == '=') {
+                pos++;
+                while (pos < end && isSpace(buf[pos])) {
+                    pos++;
+                }
+                if (pos >= end) {
+                    throw new Unsupported("eof-in-tag");
+                }
+                byte quote = buf[pos];
+                if (quote == '"' || quote == '\'') {
+                    valueStart = pos + 1;
+                    valueEnd = indexOf(quote, valueStart);
+                    if (valueEnd < 0) {
+                        throw new Unsupported("eof-in-tag");
+                    }
+                    pos = valueEnd + 1;
+                } else {
+                    valueStart = pos;
+                    while (pos < end && buf[pos] != '>'
+                           && !isSpace(buf[pos])) {
+                        pos++;
+                    }
+                    valueEnd = pos;
+                }
+            }
+            if (keep) {
+                String name = asciiLowerCase(nameStart, nameEnd);
+                // first one wins, as in HTML5
+                if (atts.getIndex(name) < 0) {
+                    text.setLength(0);
+                    decodeInto(valueStart, valueEnd, text);
+                    atts.addAttribute("", name, name, "CDATA",
+                                      text.toString());
+                }
+            }
+        }
+    }
+
+    void startTag()
+        throws Unsupported, SAXException
+    {
+        pos++;
+        String name = tagName();
+        // We only need attribute values for language hints.
+        boolean keepAttributes = name.equals("html") || name.equals("meta");
+        boolean selfClosing = attributes(keepAttributes);
+        AttributesImpl tagAtts = keepAttributes ? atts : noAtts;
+
+        if (unsupportedElements.contains(name)) {
+            throw new Unsupported("unsupported-element");
+        }
+        if (afterBody) {
+            throw new Unsupported("content-after-body");
+        }
+
+        if (name.equals("html")) {
+            String lang = tagAtts.getValue("lang");
+            if (!stack.isEmpty()) {
+                // The tree builder merges any new attributes into the
+                // existing <html>, so a lang= here still counts if the
+                // first <html> didn't have one.
+                if (!htmlHasLang && lang != null) {
+                    extractor.addLangHints(lang);
+                }
+            } else {
+                push(name, tagAtts);
+            }
+            htmlHasLang |= (lang != null);
+            return;
+        }
+        if (name.equals("head")) {
+            if (bodyOpen || stack.contains("head")) {
+                throw new Unsupported("misplaced-head");
+            }
+            if (stack.isEmpty()) {
+                push("html", noAtts);
+            }
+            push(name, tagAtts);
+            return;
+        }
+        if (name.equals("body")) {
+            if (bodyOpen) {
+                // again, merged into the existing <body>
+                return;
+            }
+            openBody();
+            return;
+        }
+
+        if (!bodyOpen && !headElements.contains(name)) {
+            openBody();
+        }
+
+        String top = top();
+        if (top != null && tableContexts.contains(top)
+            && !tableChildren.contains(name)) {
+            throw new Unsupported("foster-parenting");
+        }
+        if (tableParts.contains(name) && !stack.contains("table")) {
+            // ignored by the tree builder
+            throw new Unsupported("table-part-outside-table");
+        }
+        if (name.equals("table") && inButtonScope("p")) {
+            // whether this closes the <p> depends on quirks mode
+            throw new Unsupported("table-in-p");
+        }
+        if (name.equals("a") && stack.contains("a")) {
+            throw new Unsupported("nested-a");
+        }
+
+        if (closesP.contains(name) && inButtonScope("p")) {
+            popUntil("p");
+        }
+        if (name.equals("li")) {
+            closeListItem("li", null);
+        } else if (name.equals("dd") || name.equals("dt")) {
+            closeListItem("dd", "dt");
+        } else if (headings.contains(name)) {
+            top = top();
+            if (top != null && headings.contains(top)) {
+                pop();
+            }
+        } else if (name.equals("td") || name.equals("th")) {
+            closeTablePart(cellCloses, cellStopsAt);
+        } else if (name.equals("tr")) {
+            closeTablePart(rowCloses, rowStopsAt);
+        } else if (name.equals("tbody") || name.equals("thead")
+                   || name.equals("tfoot")) {
+            closeTablePart(sectionCloses, sectionStopsAt);
+        }
+
+        if (voidElements.contains(name)) {
+            extractor.startElement(HTML_NAMESPACE, name, name, tagAtts);
+            extractor.endElement(HTML_NAMESPACE, name, name);
+        } else if (skippedElements.contains(name)) {
+            extractor.startElement(HTML_NAMESPACE, name, name, tagAtts);
+            if (!(selfClosing && foreignElements.contains(name))) {
+                skipElement(name);
+            }
+            extractor.endElement(HTML_NAMESPACE, name, name);
+        } else {
+            push(name, tagAtts);
+        }
+    }
+
+    void endTag()
+        throws Unsupported, SAXException
+    {
+        pos += 2;
+        String name = tagName();
+        attributes(false);
+
+        if (name.equals("body") || name.equals("html")) {
+            // The tree builder leaves these open until EOF, and anything
+            // after them gets put back inside <body>.
+            if (!bodyOpen) {
+                throw new Unsupported("end-before-body");
+            }
+            // The full parser doesn't always agree with the spec about
+            // where things after this end up, so only whitespace and
+            // comments are allowed from here on.
+            afterBody = true;
+            return;
+        }
+        if (name.equals("br")) {
+            throw new Unsupported("end-br");
+        }
+        if (name.equals("head")) {
+            if ("head".equals(top())) {
+                pop();
+                return;
+            }
+            if (bodyOpen || stack.contains("head")) {
+                throw new Unsupported("misplaced-end-head");
+            }
+            return;
+        }
+
+        int index = stack.lastIndexOf(name);
+        if (headings.contains(name)) {
+            // Any heading end tag closes the innermost open heading, so
+            // </h2> can close an <h1>.
+            for (int i = stack.size() - 1; i > index; i--) {
+                if (headings.contains(stack.get(i))) {
+                    throw new Unsupported("mismatched-heading");
+                }
+            }
+        }
+        if (index < 0) {
+            if (name.equals("p")) {
+                // "</p>" with no open <p> produces an empty <p> element --
+                // in the body; before it, it's ignored like any other end
+                // tag (and so doesn't end a <noscript> in the head)
+                if (!bodyOpen) {
+                    return;
+                }
+                extractor.startElement(HTML_NAMESPACE, "p", "p", noAtts);
+                extractor.endElement(HTML_NAMESPACE, "p", "p");
+                return;
+            }
+            if (skippedElements.contains(name) || voidElements.contains(name)
+                || impliedEndElements.contains(name)
+                || name.equals("table")) {
+                throw new Unsupported("stray-end");
+            }
+            // Otherwise, a stray end tag is just ignored.
+            return;
+        }
+
+        if (formattingElements.contains(name)
+            && index != stack.size() - 1) {
+            throw new Unsupported("misnested-formatting");
+        }
+        for (int i = stack.size() - 1; i > index; i--) {
+            String open = stack.get(i);
+            if (!specialElements.contains(name)
+                && specialElements.contains(open)) {
+                throw new Unsupported("end-blocked");
+            }
+            if (name.equals("li")
+                && (open.equals("ol") || open.equals("ul"))) {
+                // not in list item scope, so ignored
+                throw new Unsupported("end-li-blocked");
+            }
+            if (impliedEndElements.contains(open)) {
+                continue;
+            }
+            if (scopeBoundaries.contains(open)
+                || formattingElements.contains(open)
+                || open.equals("table")) {
+                throw new Unsupported("misnested");
+            }
+        }
+        popUntil(name);
+    }
+
+    // Skips the content of an invisible element. For raw text elements
+    // that just means finding the end tag. Anything else still gets
+    // tokenized (without producing any text), because its content can
+    // reach outside it: <html lang> and <meta> tags are language hints
+    // wherever they are, HTML tags inside <svg> or <math> break out of
+    // it, text in a <noscript> in the head starts the body, and an end
+    // tag that leaves something open inside the element (or closes
+    // something outside it) changes where the text after it goes. We
+    // give up on all of those.
+    void skipElement(String name)
+        throws Unsupported, SAXException
+    {
+        if (rawTextElements.contains(name)) {
+            skipRawText(name);
+            return;
+        }
+        boolean foreign = foreignElements.contains(name);
+        boolean inHead = !bodyOpen;
+        ArrayList<String> open = skipStack;
+        open.clear();
+        open.add(name);
+        while (true) {
+            int lt = indexOf((byte) '<', pos);
+            if (lt < 0) {
+                throw new Unsupported("unterminated-element");
+            }
+            if (inHead && !isAllSpace(pos, lt)) {
+                throw new Unsupported("text-in-head-noscript");
+            }
+            pos = lt;
+            byte next = lt + 1 < end ? buf[lt + 1] : 0;
+            if (next == '!') {
+                if (startsWith(lt + 2, "--")) {
+                    comment();
+                } else if (startsWith(lt + 2, "[CDATA[")) {
+                    throw new Unsupported("cdata");
+                } else {
+                    skipPast('>');
+                }
+            } else if (next == '?') {
+                skipPast('>');
+            } else if (next == '/') {
+                if (lt + 2 < end && isAsciiLetter(buf[lt + 2])) {
+                    pos = lt + 2;
+                    String tag = tagName();
+                    attributes(false);
+                    if (skippedEndTag(name, tag, foreign)) {
+                        return;
+                    }
+                } else {
+                    skipPast('>');
+                }
+            } else if (isAsciiLetter(next)) {
+                pos = lt + 1;
+                String tag = tagName();
+                boolean keep = tag.equals("html") || tag.equals("meta");
+                boolean selfClosing = attributes(keep);
+                skippedStartTag(tag, selfClosing, foreign, inHead);
+            } else {
+                pos = lt + 1;
+            }
+        }
+    }
+
+    void skippedStartTag(String tag, boolean selfClosing, boolean foreign,
+                         boolean inHead)
+        throws Unsupported, SAXException
+    {
+        ArrayList<String> open = skipStack;
+        if (foreign) {
+            if (foreignBreakout.contains(tag)) {
+                throw new Unsupported("foreign-breakout");
+            }
+            if (!selfClosing) {
+                open.add(tag);
+            }
+            return;
+        }
+        if (unsupportedElements.contains(tag)) {
+            throw new Unsupported("unsupported-element");
+        }
+        if (inHead && !headNoscriptElements.contains(tag)) {
+            throw new Unsupported("tag-in-head-noscript");
+        }
+        if (tag.equals("html")) {
+            // merged into the existing <html>, as in startTag
+            String lang = atts.getValue("lang");
+            if (!htmlHasLang && lang != null) {
+                extractor.addLangHints(lang);
+            }
+            htmlHasLang |= (lang != null);
+            return;
+        }
+        if (tag.equals("meta")) {
+            extractor.startElement(HTML_NAMESPACE, tag, tag, atts);
+            extractor.endElement(HTML_NAMESPACE, tag, tag);
+            return;
+        }
+        if (voidElements.contains(tag) || tag.equals("body")
+            || tag.equals("head")) {
+            return;
+        }
+        if (rawTextElements.contains(tag)) {
+            skipRawText(tag);
+            return;
+        }
+        // the commonest implied ends: <p>...<div>, <li>...<li>
+        String top = open.get(open.size() - 1);
+        if ((top.equals("p") && closesP.contains(tag))
+            || (impliedEndElements.contains(top) && top.equals(tag))) {
+            open.remove(open.size() - 1);
+        }
+        open.add(tag);
+    }
+
+    // Returns true if this was the end of the skipped element.
+    boolean skippedEndTag(String name, String tag, boolean foreign)
+        throws Unsupported
+    {
+        ArrayList<String> open = skipStack;
+        if (foreign && (tag.equals("p") || tag.equals("br"))) {
+            throw new Unsupported("foreign-breakout");
+        }
+        int index = open.lastIndexOf(tag);
+        if (index < 0) {
+            // Stray end tags are ignored -- unless they're for something
+            // open outside, which they might close, and us along with it.
+            if (stack.contains(tag) || tag.equals("body")
+                || tag.equals("html")) {
+                throw new Unsupported("end-escapes-skipped");
+            }
+            return false;
+        }
+        if (!foreign) {
+            for (int i = open.size() - 1; i > index; i--) {
+                // </form> doesn't even close those
+                if (!impliedEndElements.contains(open.get(i))
+                    || tag.equals("form")) {
+                    throw new Unsupported("misnested-skipped");
+                }
+            }
+        }
+        while (open.size() > index) {
+            open.remove(open.size() - 1);
+        }
+        return open.isEmpty();
+    }
+
+    // Skips to just past </name>, with everything before it being text.
+    void skipRawText(String name)
+        throws Unsupported
+    {
+        int searchFrom = pos;
+        while (true) {
+            int lt = indexOf((byte) '<', searchFrom);
+            if (lt < 0) {
+                throw new Unsupported("unterminated-element");
+            }
+            if (lt + 1 < end && buf[lt + 1] == '/'
+                && matchesTagName(lt + 2, name)) {
+                if (name.equals("script") && isDoubleEscaped(pos, lt)) {
+                    throw new Unsupported("script-double-escaped");
+                }
+                pos = lt + 2 + name.length();
+                attributes(false);
+                return;
+            }
+            searchFrom = lt + 1;
+        }
+    }
+
+    boolean isAllSpace(int from, int to)
+    {
+        for (int i = from; i < to; i++) {
+            if (!isSpace(buf[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // "<!--" followed by "<script" inside a script puts the HTML5 tokenizer
+    // into a state where "</script>" no longer ends the script.
+    boolean isDoubleEscaped(int start, int stop)
+    {
+        int comment = indexOf("<!--", start, stop);
+        if (comment < 0) {
+            return false;
+        }
+        for (int i = comment + 4; i < stop; i++) {
+            if (buf[i] == '<' && matchesTagName(i + 1, "script")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // The stack of open elements
+
+    String top()
+    {
+        return stack.isEmpty() ? null : stack.get(stack.size() - 1);
+    }
+
+    void push(String name, AttributesImpl tagAtts)
+        throws SAXException
+    {
+        stack.add(name);
+        extractor.startElement(HTML_NAMESPACE, name, name, tagAtts);
+    }
+
+    void pop()
+        throws SAXException
+    {
+        String name = stack.remove(stack.size() - 1);
+        extractor.endElement(HTML_NAMESPACE, name, name);
+    }
+
+    void popUntil(String name)
+        throws Unsupported, SAXException
+    {
+        while (true) {
+            String popped = top();
+            if (!popped.equals(name) && formattingElements.contains(popped)) {
+                // The tree builder would reopen it later ("reconstruct the
+                // active formatting elements"), possibly inside something
+                // invisible.
+                throw new Unsupported("implied-end-formatting");
+            }
+            pop();
+            if (popped.equals(name)) {
+                return;
+            }
+        }
+    }
+
+    void openBody()
+        throws Unsupported, SAXException
+    {
+        if (stack.isEmpty()) {
+            // The tree builder would have invented an <html> first.
+            push("html", noAtts);
+        }
+        if ("head".equals(top())) {
+            pop();
+        }
+        if (stack.size() != 1 || !"html".equals(top())) {
+            throw new Unsupported("body-context");
+        }
+        push("body", noAtts);
+        bodyOpen = true;
+    }
+
+    boolean inButtonScope(String name)
+    {
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            String open = stack.get(i);
+            if (open.equals(name)) {
+                return true;
+            }
+            if (scopeBoundaries.contains(open)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // For <li> (and <dd>/<dt>): an open item is closed, unless there's
+    // something other than an <address>, <div> or <p> in between.
+    void closeListItem(String item1, String item2)
+        throws Unsupported, SAXException
+    {
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            String open = stack.get(i);
+            if (open.equals(item1) || open.equals(item2)) {
+                popUntil(open);
+                return;
+            }
+            if (specialElements.contains(open)
+                && !open.equals("address") && !open.equals("div")
+                && !open.equals("p")) {
+                return;
+            }
+        }
+    }
+
+    void closeTablePart(Set<String> closes, Set<String> stopAt)
+        throws Unsupported, SAXException
+    {
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            String open = stack.get(i);
+            if (stopAt.contains(open)) {
+                // pop everything above the container, as long as we don't
+                // cross into some other table
+                for (int j = stack.size() - 1; j > i; j--) {
+                    String above = stack.get(j);
+                    if (!closes.contains(above)
+                        && (scopeBoundaries.contains(above)
+                            || tableContexts.contains(above))) {
+                        throw new Unsupported("table-structure");
+                    }
+                }
+                while (stack.size() > i + 1) {
+                    pop();
+                }
+                return;
+            }
+            if (closes.contains(open)) {
+                continue;
+            }
+            if (open.equals("body") || open.equals("html")) {
+                // a table part outside a table is ignored by the tree
+                // builder
+                throw new Unsupported("table-part-outside-table");
+            }
+        }
+        throw new Unsupported("table-part-outside-table");
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // Text
+
+    void text(int start, int stop)
+        throws Unsupported, SAXException
+    {
+        if (start >= stop) {
+            return;
+        }
+        boolean whitespace = true;
+        for (int i = start; i < stop; i++) {
+            byte b = buf[i];
+            if (b == 0) {
+                throw new Unsupported("nul");
+            }
+            if (!isSpace(b)) {
+                whitespace = false;
+            }
+        }
+        if (whitespace) {
+            // Whitespace is invisible before <body>, and the tree builder
+            // keeps it where it is in tables; either way TextExtractor
+            // doesn't care where exactly it goes.
+            if (bodyOpen) {
+                emitText(start, stop);
+            }
+            return;
+        }
+        if (afterBody) {
+            throw new Unsupported("content-after-body");
+        }
+        if (!bodyOpen) {
+            openBody();
+        }
+        String top = top();
+        if (top != null && tableContexts.contains(top)) {
+            throw new Unsupported("foster-parenting");
+        }
+        emitText(start, stop);
+    }
+
+    void emitText(int start, int stop)
+        throws Unsupported, SAXException
+    {
+        text.setLength(0);
+        decodeInto(start, stop, text);
+        int length = text.length();
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        text.getChars(0, length, chars, 0);
+        extractor.characters(chars, 0, length);
+    }
+
+    // Decodes bytes [start, stop) into out, expanding character references.
+    void decodeInto(int start, int stop, StringBuilder out)
+        throws Unsupported
+    {
+        int runStart = start;
+        int i = start;
+        while (i < stop) {
+            if (buf[i] != '&') {
+                i++;
+                continue;
+            }
+            decodeRun(runStart, i, out);
+            i = characterReference(i, stop, out);
+            runStart = i;
+        }
+        decodeRun(runStart, stop, out);
+    }
+
+    void decodeRun(int start, int stop, StringBuilder out)
+    {
+        if (start >= stop) {
+            return;
+        }
+        boolean ascii = true;
+        for (int i = start; i < stop; i++) {
+            if (buf[i] < 0) {
+                ascii = false;
+                break;
+            }
+        }
+        if (ascii) {
+            for (int i = start; i < stop; i++) {
+                out.append((char) buf[i]);
+            }
+            return;
+        }
+        int maxChars = (int) ((stop - start) * decoder.maxCharsPerByte()) + 1;
+        if (decoded.capacity() < maxChars) {
+            decoded = CharBuffer.allocate(Math.max(maxChars,
+                                                   decoded.capacity() * 2));
+        }
+        decoded.clear();
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(buf, start, stop - start),
+                       decoded, true);
+        decoder.flush(decoded);
+        decoded.flip();
+        out.append(decoded);
+    }
+
+    static final String[] namedReferences = new String[] {
+        "amp", "lt", "gt", "quot", "apos", "nbsp", "copy", "reg",
+    };
+    static final char[] namedReferenceValues = new char[] {
+        '&', '<', '>', '"', '\'', (char) 0xa0, (char) 0xa9, (char) 0xae,
+    };
+
+    // Handles the reference starting at the "&" at i, and returns the
+    // position after it. We only know a few named references; for anything
+    // else that could possibly be a reference, we give up.
+    int characterReference(int i, int stop, StringBuilder out)
+        throws Unsupported
+    {
+        int p = i + 1;
+        if (p < stop && buf[p] == '#') {
+            p++;
+            boolean hex = p < stop && (buf[p] == 'x' || buf[p] == 'X');
+            if (hex) {
+                p++;
+            }
+            int digitsStart = p;
+            long value = 0;
+            while (p < stop && value <= 0x10FFFF) {
+                int digit = Character.digit((char) buf[p], hex ? 16 : 10);
+                if (digit < 0) {
+                    break;
+                }
+                value = value * (hex ? 16 : 10) + digit;
+                p++;
+            }
+            if (p == digitsStart || p >= stop || buf[p] != ';') {
+                throw new Unsupported("numeric-reference");
+            }
+            if (value == 0 || value > 0x10FFFF
+                || (value >= 0x80 && value <= 0x9F)
+                || (value >= 0xD800 && value <= 0xDFFF)) {
+                // these get remapped or replaced by the HTML5 tokenizer
+                throw new Unsupported("numeric-reference");
+            }
+            out.appendCodePoint((int) value);
+            return p + 1;
+        }
+        while (p < stop && isAsciiLetterOrDigit(buf[p])) {
+            p++;
+        }
+        if (p == i + 1) {
+            // a bare "&"
+            out.append('&');
+            return p;
+        }
+        if (p < stop && buf[p] == ';') {
+            String name = new String(buf, i + 1, p - i - 1,
+                                     StandardCharsets.US_ASCII);
+            for (int j = 0; j < namedReferences.length; j++) {
+                if (namedReferences[j].equals(name)) {
+                    out.append(namedReferenceValues[j]);
+                    return p + 1;
+                }
+            }
+        }
+        throw new Unsupported("named-reference");
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // Byte-level helpers
+
+    static boolean isSpace(byte b)
+    {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+    }
+
+    static boolean isAsciiLetter(byte b)
+    {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    static boolean isAsciiLetterOrDigit(byte b)
+    {
+        return isAsciiLetter(b) || (b >= '0' && b <= '9');
+    }
+
+    String asciiLowerCase(int start, int stop)
+    {
+        char[] name = new char[stop - start];
+        for (int i = start; i < stop; i++) {
+            int c = buf[i] & 0xff;
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            name[i - start] = (char) c;
+        }
+        return new String(name);
+    }
+
+    boolean startsWith(int at, String ascii)
+    {
+        if (at + ascii.length() > end) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if ((buf[at + i] & 0xff) != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Case-insensitive match of a tag name at "at", followed by something
+    // that ends a tag name.
+    boolean matchesTagName(int at, String name)
+    {
+        int stop = at + name.length();
+        if (stop > end) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            int c = buf[at + i] & 0xff;
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != name.charAt(i)) {
+                return false;
+            }
+        }
+        return stop == end || buf[stop] == '>' || buf[stop] == '/'
+            || isSpace(buf[stop]);
+    }
+
+    int indexOf(byte b, int from)
+    {
+        for (int i = from; i < end; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    int indexOf(String ascii, int from)
+    {
+        return indexOf(ascii, from, end);
+    }
+
+    int indexOf(String ascii, int from, int stop)
+    {
+        byte first = (byte) ascii.charAt(0);
+        for (int i = from; i + ascii.length() <= stop; i++) {
+            if (buf[i] == first && startsWith(i, ascii)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    void skipPast(char c)
+        throws Unsupported
+    {
+        int close = indexOf((byte) c, pos);
+        if (close < 0) {
+            throw new Unsupported("eof-in-markup");
+        }
+        pos = close + 1;
+    }
+}
@@ -0,0 +1,116 @@
+package org.vorpus.cctext;
+
+import com.ibm.icu.text.Normalizer2;
+
+// Does the same thing as TextExtractor.normalizeTextReference -- convert to
+// NFC, drop non-characters, collapse runs of whitespace into a single
+// space, and String.trim() -- but in a single pass that appends straight to
+// the caller's buffer, without compiling regexes or building intermediate
+// Strings.
+//
+// Not thread-safe (it keeps a scratch buffer around); TextExtractor has one
+// of its own.
+public class TextNormalizer
+{
+    static final Normalizer2 NFC = Normalizer2.getNFCInstance();
+
+    // Nothing below U+0300 (the first combining mark) is ever changed by
+    // NFC, or combines with anything else below U+0300.
+    static final char FIRST_NFC_UNSAFE = 0x300;
+
+    // Same definition as java.util.regex uses for \p{IsWhite_Space}, so we
+    // agree with the regex version even if Java's idea of White_Space
+    // differs from ICU's.
+    static final int WHITE_SPACE_TYPES =
+        (1 << Character.SPACE_SEPARATOR)
+        | (1 << Character.LINE_SEPARATOR)
+        | (1 << Character.PARAGRAPH_SEPARATOR);
+
+    static boolean isWhiteSpace(int cp)
+    {
+        return ((WHITE_SPACE_TYPES >> Character.getType(cp)) & 1) != 0
+            || (cp >= 0x9 && cp <= 0xd)
+            || cp == 0x85;
+    }
+
+    // \p{IsNoncharacter_Code_Point}
+    static boolean isNoncharacter(int cp)
+    {
+        return (cp & 0xfffe) == 0xfffe || (cp >= 0xfdd0 && cp <= 0xfdef);
+    }
+
+    StringBuilder nfcBuffer = new StringBuilder(1024);
+
+    static boolean isNFC(CharSequence content)
+    {
+        int length = content.length();
+        for (int i = 0; i < length; i++) {
+            if (content.charAt(i) >= FIRST_NFC_UNSAFE) {
+                return NFC.spanQuickCheckYes(content) == length;
+            }
+        }
+        return true;
+    }
+
+    // Appends the normalized form of content to out, and returns the number
+    // of chars appended (0 if the block was all whitespace).
+    public int normalizeInto(CharSequence content, StringBuilder out)
+    {
+        CharSequence src = content;
+        if (!isNFC(content)) {
+            nfcBuffer.setLength(0);
+            NFC.normalize(content, nfcBuffer);
+            src = nfcBuffer;
+        }
+
+        int start = out.length();
+        int length = src.length();
+        boolean inSpace = false;
+        int i = 0;
+        while (i < length) {
+            char c = src.charAt(i);
+            if (c < 0x80) {
+                i++;
+                if (c == ' ' || (c >= 0x9 && c <= 0xd)) {
+                    inSpace = true;
+                } else if (c < ' ' && out.length() == start) {
+                    // trim() strips leading control characters too
+                    inSpace = false;
+                } else {
+                    if (inSpace && out.length() != start) {
+                        out.append(' ');
+                    }
+                    inSpace = false;
+                    out.append(c);
+                }
+                continue;
+            }
+
+            int cp = Character.codePointAt(src, i);
+            i += Character.charCount(cp);
+            if (isNoncharacter(cp)) {
+                // removed *before* whitespace collapsing, so it doesn't
+                // break up a run of whitespace
+                continue;
+            }
+            if (isWhiteSpace(cp)) {
+                inSpace = true;
+            } else {
+                if (inSpace && out.length() != start) {
+                    out.append(' ');
+                }
+                inSpace = false;
+                out.appendCodePoint(cp);
+            }
+        }
+
+        // trailing whitespace was never emitted, but trim() also strips
+        // trailing control characters
+        int end = out.length();
+        while (end > start && out.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        out.setLength(end);
+        return end - start;
+    }
+}
@@ -0,0 +1,677 @@
+package org.vorpus.cctext;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.Gson;
+
+// The url info log in a compact columnar binary format, as an alternative
+// to one JSON line per record (see Driver.setUrlInfoColumns). Same
+// information, plus each URL's TLD; toJson() turns it back into exactly
+// the JSON lines Driver would have written.
+//
+// The file is a header ("CCUI" and a version) followed by blocks of up to
+// blockRows rows; flush() ends the current block early, so that
+// everything added so far is on disk. Each block is:
+//
+// - its row count, and summary metadata (BlockInfo): min and max of the
+//   top language's percent and score and of the text bytes per row, and
+//   how many rows were reliable. A reader can use these to skip blocks
+//   without decompressing them.
+// - the dictionary entries first used in this block. CLD2's language
+//   codes and TLDs are stored as indexes into one dictionary, which the
+//   reader builds up as it goes; id 0 is null, and id INLINE means the
+//   string itself follows in the column instead. The dictionary stops
+//   growing at MAX_DICTIONARY entries, so a crawl full of junk hostnames
+//   can't make it (or the reader's copy) grow without bound. Declared
+//   languages come straight from the page, so they're always inline.
+// - the columns (see Block), each one stored contiguously, deflated
+//   together as one chunk.
+//
+// Integers (percents included) are varints, scores are doubles, strings
+// are a varint length and then UTF-8; so a row is mostly its URL.
+public class UrlInfoColumns implements Closeable, Flushable
+{
+    static final byte[] MAGIC = { 'C', 'C', 'U', 'I' };
+    static final int VERSION = 2;
+    public static final int DEFAULT_BLOCK_ROWS = 16384;
+    // CLD2 has a couple of hundred language codes, and there are a
+    // couple of thousand real TLDs
+    static final int MAX_DICTIONARY = 4096;
+    static final int INLINE = 1;
+
+    // One url info record.
+    public static class Row
+    {
+        public String url;
+        public String tld;
+        // in the order they'd come out of the Set
+        public String[] declaredLanguages;
+        public boolean isReliable;
+        // always 3 of each, as from CLD2
+        public String[] languages;
+        public int[] percents;
+        public double[] normalizedScores;
+        // per language in cld2-span-stats
+        public String[] spanLanguages;
+        public long[] spanBytes;
+        public long[] spanCodepoints;
+        public long[] spanWords;
+
+        public long textBytes()
+        {
+            long total = 0;
+            for (long bytes : spanBytes) {
+                total += bytes;
+            }
+            return total;
+        }
+
+        // The same map Driver.logUriInfo serializes.
+        public Map<String, Object> toJsonMap()
+        {
+            Set<String> declared = new LinkedHashSet<String>(
+                Arrays.asList(declaredLanguages));
+            Map<String, Map<String, Long>> spans =
+                new HashMap<String, Map<String, Long>>();
+            for (int i = 0; i < spanLanguages.length; i++) {
+                spans.put(spanLanguages[i],
+                          ImmutableMap.of("bytes", spanBytes[i],
+                                          "codepoints", spanCodepoints[i],
+                                          "words", spanWords[i]));
+            }
+            return ImmutableMap.of
+                ("url", url,
+                 "declared-languages", declared,
+                 "cld2-document-stats",
+                 ImmutableMap.of("is-reliable", isReliable,
+                                 "languages", languages,
+                                 "percents", percents,
+                                 "normalized-scores", normalizedScores),
+                 "cld2-span-stats", spans);
+        }
+    }
+
+    // What's known about a block without decompressing it.
+    public static class BlockInfo
+    {
+        public int rows;
+        public int minTopPercent;
+        public int maxTopPercent;
+        public double minTopScore;
+        public double maxTopScore;
+        public long minTextBytes;
+        public long maxTextBytes;
+        public int reliableRows;
+
+        void reset()
+        {
+            rows = 0;
+            minTopPercent = Integer.MAX_VALUE;
+            maxTopPercent = Integer.MIN_VALUE;
+            minTopScore = Double.POSITIVE_INFINITY;
+            maxTopScore = Double.NEGATIVE_INFINITY;
+            minTextBytes = Long.MAX_VALUE;
+            maxTextBytes = Long.MIN_VALUE;
+            reliableRows = 0;
+        }
+
+        void add(Row row)
+        {
+            rows++;
+            minTopPercent = Math.min(minTopPercent, row.percents[0]);
+            maxTopPercent = Math.max(maxTopPercent, row.percents[0]);
+            minTopScore = Math.min(minTopScore, row.normalizedScores[0]);
+            maxTopScore = Math.max(maxTopScore, row.normalizedScores[0]);
+            long textBytes = row.textBytes();
+            minTextBytes = Math.min(minTextBytes, textBytes);
+            maxTextBytes = Math.max(maxTextBytes, textBytes);
+            if (row.isReliable) {
+                reliableRows++;
+            }
+        }
+
+        void write(DataOutputStream out)
+            throws IOException
+        {
+            out.writeInt(rows);
+            out.writeInt(minTopPercent);
+            out.writeInt(maxTopPercent);
+            out.writeDouble(minTopScore);
+            out.writeDouble(maxTopScore);
+            out.writeLong(minTextBytes);
+            out.writeLong(maxTextBytes);
+            out.writeInt(reliableRows);
+        }
+
+        void read(DataInputStream in)
+            throws IOException
+        {
+            rows = in.readInt();
+            minTopPercent = in.readInt();
+            maxTopPercent = in.readInt();
+            minTopScore = in.readDouble();
+            maxTopScore = in.readDouble();
+            minTextBytes = in.readLong();
+            maxTextBytes = in.readLong();
+            reliableRows = in.readInt();
+        }
+    }
+
+    // A ByteArrayOutputStream that knows how to write varints.
+    static class Column extends ByteArrayOutputStream
+    {
+        void writeVarLong(long value)
+        {
+            while ((value & ~0x7fL) != 0) {
+                write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeDouble(double value)
+        {
+            long bits = Double.doubleToRawLongBits(value);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int) (bits >>> shift));
+            }
+        }
+
+        void writeString(String s)
+        {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(utf8.length);
+            write(utf8, 0, utf8.length);
+        }
+    }
+
+    // The column order in a block's data.
+    static final int URLS = 0;
+    static final int TLDS = 1;
+    static final int DECLARED_COUNTS = 2;
+    static final int DECLARED = 3;
+    static final int RELIABLE = 4;
+    static final int LANGUAGES = 5;
+    static final int PERCENTS = 6;
+    static final int SCORES = 7;
+    static final int SPAN_COUNTS = 8;
+    static final int SPAN_LANGUAGES = 9;
+    static final int SPAN_BYTES = 10;
+    static final int SPAN_CODEPOINTS = 11;
+    static final int SPAN_WORDS = 12;
+    static final int COLUMNS = 13;
+
+    final DataOutputStream out;
+    final int blockRows;
+    final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+    final List<String> newEntries = new ArrayList<String>();
+    final Column[] columns = new Column[COLUMNS];
+    final BlockInfo info = new BlockInfo();
+    // reliable bits, 8 rows to a byte
+    int reliableBits = 0;
+    final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    byte[] compressed = new byte[64 * 1024];
+
+    public UrlInfoColumns(OutputStream out, int blockRows)
+        throws IOException
+    {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.blockRows = blockRows;
+        for (int i = 0; i < COLUMNS; i++) {
+            columns[i] = new Column();
+        }
+        info.reset();
+        this.out.write(MAGIC);
+        this.out.writeInt(VERSION);
+    }
+
+    public UrlInfoColumns(OutputStream out)
+        throws IOException
+    {
+        this(out, DEFAULT_BLOCK_ROWS);
+    }
+
+    // Writes s to column as a dictionary id, adding it to the dictionary
+    // if it's new and there's room, or else inline.
+    void writeWord(Column column, String s)
+    {
+        if (s == null) {
+            column.writeVarLong(0);
+            return;
+        }
+        Integer id = dictionary.get(s);
+        if (id == null && dictionary.size() < MAX_DICTIONARY) {
+            // ids 0 and INLINE are taken
+            id = dictionary.size() + 2;
+            dictionary.put(s, id);
+            newEntries.add(s);
+        }
+        if (id == null) {
+            writeInline(column, s);
+        } else {
+            column.writeVarLong(id);
+        }
+    }
+
+    static void writeInline(Column column, String s)
+    {
+        if (s == null) {
+            column.writeVarLong(0);
+        } else {
+            column.writeVarLong(INLINE);
+            column.writeString(s);
+        }
+    }
+
+    public synchronized void add(Row row)
+        throws IOException
+    {
+        columns[URLS].writeString(row.url);
+        writeWord(columns[TLDS], row.tld);
+        columns[DECLARED_COUNTS].writeVarLong(row.declaredLanguages.length);
+        for (String language : row.declaredLanguages) {
+            writeInline(columns[DECLARED], language);
+        }
+        if (row.isReliable) {
+            reliableBits |= 1 << (info.rows % 8);
+        }
+        for (int i = 0; i < 3; i++) {
+            writeWord(columns[LANGUAGES], row.languages[i]);
+            columns[PERCENTS].writeVarLong(row.percents[i]);
+            columns[SCORES].writeDouble(row.normalizedScores[i]);
+        }
+        columns[SPAN_COUNTS].writeVarLong(row.spanLanguages.length);
+        for (int i = 0; i < row.spanLanguages.length; i++) {
+            writeWord(columns[SPAN_LANGUAGES], row.spanLanguages[i]);
+            columns[SPAN_BYTES].writeVarLong(row.spanBytes[i]);
+            columns[SPAN_CODEPOINTS].writeVarLong(row.spanCodepoints[i]);
+            columns[SPAN_WORDS].writeVarLong(row.spanWords[i]);
+        }
+        info.add(row);
+        if (info.rows % 8 == 0) {
+            columns[RELIABLE].write(reliableBits);
+            reliableBits = 0;
+        }
+        if (info.rows >= blockRows) {
+            writeBlock();
+        }
+    }
+
+    void writeBlock()
+        throws IOException
+    {
+        if (info.rows == 0) {
+            return;
+        }
+        if (info.rows % 8 != 0) {
+            columns[RELIABLE].write(reliableBits);
+            reliableBits = 0;
+        }
+        // The new dictionary entries, as a chunk of strings.
+        Column entries = new Column();
+        for (String entry : newEntries) {
+            entries.writeString(entry);
+        }
+        info.write(out);
+        out.writeInt(newEntries.size());
+        out.writeInt(entries.size());
+        entries.writeTo(out);
+        newEntries.clear();
+
+        // Column lengths, then the columns, all deflated together.
+        Column data = new Column();
+        for (Column column : columns) {
+            data.writeVarLong(column.size());
+        }
+        for (Column column : columns) {
+            column.writeTo(data);
+            column.reset();
+        }
+        deflater.reset();
+        deflater.setInput(data.toByteArray());
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, 2 * length);
+            }
+            length += deflater.deflate(compressed, length,
+                                       compressed.length - length);
+        }
+        out.writeInt(data.size());
+        out.writeInt(length);
+        out.write(compressed, 0, length);
+        info.reset();
+    }
+
+    // Ends the current block, and flushes everything to the underlying
+    // stream.
+    public synchronized void flush()
+        throws IOException
+    {
+        writeBlock();
+        out.flush();
+    }
+
+    public synchronized void close()
+        throws IOException
+    {
+        flush();
+        deflater.end();
+        out.close();
+    }
+
+    // A decoded block: every column, as arrays. Rows with a variable
+    // number of something (declared languages, span stats) have theirs at
+    // [xStart[row], xStart[row + 1]) in the x arrays.
+    public static class Block
+    {
+        public BlockInfo info;
+        public String[] urls;
+        public String[] tlds;
+        public int[] declaredStart;
+        public String[] declared;
+        public boolean[] reliable;
+        // 3 per row
+        public String[] languages;
+        public int[] percents;
+        public double[] scores;
+        public int[] spanStart;
+        public String[] spanLanguages;
+        public long[] spanBytes;
+        public long[] spanCodepoints;
+        public long[] spanWords;
+
+        public int rows()
+        {
+            return info.rows;
+        }
+
+        public Row row(int i)
+        {
+            Row row = new Row();
+            row.url = urls[i];
+            row.tld = tlds[i];
+            row.declaredLanguages = Arrays.copyOfRange(
+                declared, declaredStart[i], declaredStart[i + 1]);
+            row.isReliable = reliable[i];
+            row.languages = Arrays.copyOfRange(languages, 3 * i, 3 * i + 3);
+            row.percents = Arrays.copyOfRange(percents, 3 * i, 3 * i + 3);
+            row.normalizedScores =
+                Arrays.copyOfRange(scores, 3 * i, 3 * i + 3);
+            int from = spanStart[i];
+            int to = spanStart[i + 1];
+            row.spanLanguages = Arrays.copyOfRange(spanLanguages, from, to);
+            row.spanBytes = Arrays.copyOfRange(spanBytes, from, to);
+            row.spanCodepoints = Arrays.copyOfRange(spanCodepoints, from, to);
+            row.spanWords = Arrays.copyOfRange(spanWords, from, to);
+            return row;
+        }
+    }
+
+    // Reads a file block by block:
+    //
+    //   while ((info = reader.nextBlock()) != null) {
+    //       if (info.maxTopPercent < 50) continue;  // never decompressed
+    //       Block block = reader.readBlock();
+    //       ...
+    //   }
+    public static class Reader implements Closeable
+    {
+        final DataInputStream in;
+        final List<String> dictionary = new ArrayList<String>();
+        BlockInfo current = null;
+        boolean currentRead = false;
+        int dataLength;
+        int compressedLength;
+        final Inflater inflater = new Inflater();
+
+        public Reader(InputStream in)
+            throws IOException
+        {
+            this.in = new DataInputStream(new BufferedInputStream(in));
+            byte[] magic = new byte[MAGIC.length];
+            this.in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("not a url info columns file");
+            }
+            int version = this.in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported url info columns version "
+                                      + version);
+            }
+            // ids 0 and INLINE
+            dictionary.add(null);
+            dictionary.add(null);
+        }
+
+        // The next block's metadata, or null at the end. Skips the rest
+        // of the previous block if readBlock() wasn't called for it.
+        public BlockInfo nextBlock()
+            throws IOException
+        {
+            if (current != null && !currentRead) {
+                skipFully(compressedLength);
+            }
+            current = null;
+            BlockInfo info = new BlockInfo();
+            try {
+                info.read(in);
+            } catch (EOFException e) {
+                return null;
+            }
+            int entries = in.readInt();
+            byte[] strings = new byte[in.readInt()];
+            in.readFully(strings);
+            ByteBuffer buf = ByteBuffer.wrap(strings);
+            for (int i = 0; i < entries; i++) {
+                dictionary.add(readString(buf));
+            }
+            dataLength = in.readInt();
+            compressedLength = in.readInt();
+            current = info;
+            currentRead = false;
+            return info;
+        }
+
+        void skipFully(long n)
+            throws IOException
+        {
+            while (n > 0) {
+                long skipped = in.skip(n);
+                if (skipped <= 0) {
+                    throw new EOFException("truncated block");
+                }
+                n -= skipped;
+            }
+        }
+
+        // Decodes the block nextBlock() just returned.
+        public Block readBlock()
+            throws IOException
+        {
+            if (current == null || currentRead) {
+                throw new IllegalStateException("call nextBlock() first");
+            }
+            currentRead = true;
+            byte[] packed = new byte[compressedLength];
+            in.readFully(packed);
+            byte[] data = new byte[dataLength];
+            inflater.reset();
+            inflater.setInput(packed);
+            try {
+                if (inflater.inflate(data) != dataLength) {
+                    throw new IOException("corrupt block");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt block", e);
+            }
+
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            ByteBuffer[] columns = new ByteBuffer[COLUMNS];
+            int[] lengths = new int[COLUMNS];
+            for (int i = 0; i < COLUMNS; i++) {
+                lengths[i] = (int) readVarLong(buf);
+            }
+            for (int i = 0; i < COLUMNS; i++) {
+                columns[i] = buf.slice();
+                columns[i].limit(lengths[i]);
+                buf.position(buf.position() + lengths[i]);
+            }
+
+            int rows = current.rows;
+            Block block = new Block();
+            block.info = current;
+            block.urls = new String[rows];
+            block.tlds = new String[rows];
+            block.declaredStart = new int[rows + 1];
+            block.reliable = new boolean[rows];
+            block.languages = new String[3 * rows];
+            block.percents = new int[3 * rows];
+            block.scores = new double[3 * rows];
+            block.spanStart = new int[rows + 1];
+            for (int i = 0; i < rows; i++) {
+                block.urls[i] = readString(columns[URLS]);
+                block.tlds[i] = word(columns[TLDS]);
+                block.declaredStart[i + 1] = block.declaredStart[i]
+                    + (int) readVarLong(columns[DECLARED_COUNTS]);
+                block.reliable[i] =
+                    (columns[RELIABLE].get(i / 8) & (1 << (i % 8))) != 0;
+                for (int j = 3 * i; j < 3 * i + 3; j++) {
+                    block.languages[j] = word(columns[LANGUAGES]);
+                    block.percents[j] = (int) readVarLong(columns[PERCENTS]);
+                    block.scores[j] = columns[SCORES].getDouble();
+                }
+                block.spanStart[i + 1] = block.spanStart[i]
+                    + (int) readVarLong(columns[SPAN_COUNTS]);
+            }
+            block.declared = new String[block.declaredStart[rows]];
+            for (int i = 0; i < block.declared.length; i++) {
+                block.declared[i] = word(columns[DECLARED]);
+            }
+            int spans = block.spanStart[rows];
+            block.spanLanguages = new String[spans];
+            block.spanBytes = new long[spans];
+            block.spanCodepoints = new long[spans];
+            block.spanWords = new long[spans];
+            for (int i = 0; i < spans; i++) {
+                block.spanLanguages[i] = word(columns[SPAN_LANGUAGES]);
+                block.spanBytes[i] = readVarLong(columns[SPAN_BYTES]);
+                block.spanCodepoints[i] =
+                    readVarLong(columns[SPAN_CODEPOINTS]);
+                block.spanWords[i] = readVarLong(columns[SPAN_WORDS]);
+            }
+            return block;
+        }
+
+        String word(ByteBuffer column)
+        {
+            int id = (int) readVarLong(column);
+            if (id == INLINE) {
+                return readString(column);
+            }
+            return dictionary.get(id);
+        }
+
+        public void close()
+            throws IOException
+        {
+            inflater.end();
+            in.close();
+        }
+    }
+
+    // As written by Column.writeString. buf must be array-backed.
+    static String readString(ByteBuffer buf)
+    {
+        int length = (int) readVarLong(buf);
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(),
+                              length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+
+    static long readVarLong(ByteBuffer buf)
+    {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = buf.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    // Writes the rows of in as the JSON lines Driver writes to the url
+    // info log. Returns how many there were.
+    public static long toJson(InputStream in, Writer out)
+        throws IOException
+    {
+        Gson gson = new Gson();
+        Reader reader = new Reader(in);
+        long rows = 0;
+        while (reader.nextBlock() != null) {
+            Block block = reader.readBlock();
+            for (int i = 0; i < block.rows(); i++) {
+                out.write(gson.toJson(block.row(i).toJsonMap()));
+                out.write("\n");
+                rows++;
+            }
+        }
+        out.flush();
+        return rows;
+    }
+
+    // Converts a file back to JSON lines, on stdout or into a file:
+    //   UrlInfoColumns <in> [<out>]
+    public static void main(String[] args)
+        throws IOException
+    {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: UrlInfoColumns <in> [<out.json>]");
+            System.exit(2);
+        }
+        OutputStream output = (args.length > 1
+                               ? new FileOutputStream(args[1])
+                               : System.out);
+        Writer out = new OutputStreamWriter(new BufferedOutputStream(output),
+                                            StandardCharsets.UTF_8);
+        InputStream in = new FileInputStream(args[0]);
+        try {
+            toJson(in, out);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
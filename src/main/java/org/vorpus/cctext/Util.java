@@ -1,5 +1,20 @@
 package org.vorpus.cctext;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.ibm.icu.text.BreakIterator;
 
 public class Util
@@ -9,9 +24,31 @@ public class Util
         return s.codePointCount(0, s.length());
     }
 
+    // Code points in the UTF-8 buf[from, to) (absolute indices).
+    public static int codePointCount(ByteBuffer utf8, int from, int to)
+    {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            // count everything but continuation bytes
+            if ((utf8.get(i) & 0xc0) != 0x80) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Creating a BreakIterator means loading and compiling its rules, which
+    // costs far more than using it, so each thread keeps one.
+    static final ThreadLocal<BreakIterator> wordIterators =
+        new ThreadLocal<BreakIterator>() {
+            protected BreakIterator initialValue() {
+                return BreakIterator.getWordInstance();
+            }
+        };
+
     public static int wordCount(String s)
     {
-        BreakIterator wordIterator = BreakIterator.getWordInstance();
+        BreakIterator wordIterator = wordIterators.get();
         int count = 0;
         wordIterator.setText(s);
         int offset = 0;
@@ -21,6 +58,251 @@ public class Util
             }
             offset = wordIterator.next();
         }
+        // don't hang on to s
+        wordIterator.setText("");
+        return count;
+    }
+
+    // Word count of the UTF-8 buf[from, to) (absolute indices).
+    //
+    // Mostly this doesn't need ICU: in scripts that put spaces between
+    // words, a word is a run of letters, digits and combining marks, where
+    // a few punctuation marks in the middle don't count as breaks
+    // ("don't", "e.g", "3.14", "1,000"). That's a simplified version of the
+    // rules in UAX #29, which is what ICU implements, and on ordinary prose
+    // it agrees with ICU almost exactly. But Chinese, Japanese, Thai, Lao,
+    // Khmer and Myanmar don't use spaces, and finding the words takes ICU's
+    // dictionaries, so if we see any of those we hand the whole thing to
+    // wordCount(String).
+    public static int wordCount(ByteBuffer utf8, int from, int to)
+    {
+        int count = 0;
+        // what kind of character the current word ended with (NONE if
+        // we're not in one), and the joiner we're holding, if any
+        int lastKind = NONE;
+        int joiner = 0;
+        int i = from;
+        while (i < to) {
+            int cp = utf8.get(i) & 0xff;
+            if (cp < 0x80) {
+                i++;
+            } else {
+                int length;
+                if (cp >= 0xf0) {
+                    cp &= 0x07;
+                    length = 4;
+                } else if (cp >= 0xe0) {
+                    cp &= 0x0f;
+                    length = 3;
+                } else {
+                    cp &= 0x1f;
+                    length = 2;
+                }
+                for (int j = 1; j < length && i + j < to; j++) {
+                    cp = (cp << 6) | (utf8.get(i + j) & 0x3f);
+                }
+                i += length;
+                if (needsDictionary(cp)) {
+                    return wordCount(decode(utf8, from, to));
+                }
+            }
+
+            int kind = wordCharKind(cp);
+            if (kind != NONE) {
+                if (lastKind == NONE) {
+                    count++;
+                } else if (joiner != 0 && !joins(joiner, lastKind, kind)) {
+                    // "a,b" is two words, "1,2" is one
+                    count++;
+                }
+                lastKind = kind;
+                joiner = 0;
+            } else if (lastKind != NONE && joiner == 0 && isJoiner(cp)) {
+                joiner = cp;
+            } else {
+                lastKind = NONE;
+                joiner = 0;
+            }
+        }
         return count;
     }
+
+    static final int NONE = 0;
+    static final int LETTER = 1;
+    static final int DIGIT = 2;
+
+    static int wordCharKind(int cp)
+    {
+        if (cp < 0x80) {
+            if ((cp >= 'a' && cp <= 'z') || (cp >= 'A' && cp <= 'Z')
+                || cp == '_') {
+                return LETTER;
+            }
+            if (cp >= '0' && cp <= '9') {
+                return DIGIT;
+            }
+            return NONE;
+        }
+        switch (Character.getType(cp)) {
+        case Character.DECIMAL_DIGIT_NUMBER:
+            return DIGIT;
+        case Character.UPPERCASE_LETTER:
+        case Character.LOWERCASE_LETTER:
+        case Character.TITLECASE_LETTER:
+        case Character.MODIFIER_LETTER:
+        case Character.OTHER_LETTER:
+        case Character.NON_SPACING_MARK:
+        case Character.COMBINING_SPACING_MARK:
+        case Character.ENCLOSING_MARK:
+        case Character.CONNECTOR_PUNCTUATION:
+            return LETTER;
+        default:
+            return NONE;
+        }
+    }
+
+    // UAX #29's MidLetter, MidNum and MidNumLet, roughly
+    static boolean isJoiner(int cp)
+    {
+        return cp == '.' || cp == '\'' || cp == 0x2019 || cp == ':'
+            || cp == ',' || cp == ';' || cp == 0xb7;
+    }
+
+    static boolean joins(int joiner, int before, int after)
+    {
+        if (joiner == ':' || joiner == 0xb7) {
+            return before == LETTER && after == LETTER;
+        }
+        if (joiner == ',' || joiner == ';') {
+            return before == DIGIT && after == DIGIT;
+        }
+        // . and ' go between two letters or two digits (so "e.g" and
+        // "3.14", but "page.1" is two words)
+        return before == after;
+    }
+
+    // Scripts that ICU segments with a dictionary
+    static boolean needsDictionary(int cp)
+    {
+        return (cp >= 0x0e00 && cp <= 0x0eff)        // Thai, Lao
+            || (cp >= 0x1000 && cp <= 0x109f)        // Myanmar
+            || (cp >= 0x1780 && cp <= 0x17ff)        // Khmer
+            || (cp >= 0x2e80 && cp <= 0x9fff)        // CJK, kana
+            || (cp >= 0xf900 && cp <= 0xfaff)        // CJK compatibility
+            || (cp >= 0xff66 && cp <= 0xff9f)        // halfwidth katakana
+            || (cp >= 0x20000 && cp <= 0x2ffff);     // CJK extensions
+    }
+
+    static String decode(ByteBuffer utf8, int from, int to)
+    {
+        ByteBuffer span = utf8.duplicate();
+        span.limit(to);
+        span.position(from);
+        return StandardCharsets.UTF_8.decode(span).toString();
+    }
+
+    // A 64-bit hash of buf[from, to) (absolute indices), for when we want
+    // to recognize text we've seen before without keeping the text around.
+    // This is MurmurHash3's mixing applied 8 bytes at a time; it's not
+    // cryptographic, but at 64 bits collisions between honest inputs are
+    // vanishingly rare. Doesn't depend on buf's byte order, position or
+    // limit.
+    public static long hash64(ByteBuffer buf, int from, int to)
+    {
+        final long C1 = 0x87c37b91114253d5L;
+        final long C2 = 0x4cf5ad432745937fL;
+        // (duplicate, so as not to change the caller's byte order)
+        ByteBuffer le = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        long h = 0x9e3779b97f4a7c15L ^ (to - from);
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            long k = le.getLong(i);
+            k *= C1;
+            k = Long.rotateLeft(k, 31);
+            k *= C2;
+            h ^= k;
+            h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+        }
+        long k = 0;
+        for (int j = to - 1; j >= i; j--) {
+            k = (k << 8) | (buf.get(j) & 0xff);
+        }
+        k *= C1;
+        k = Long.rotateLeft(k, 31);
+        k *= C2;
+        h ^= k;
+        return fmix64(h);
+    }
+
+    public static long hash64(byte[] bytes, int from, int to)
+    {
+        return hash64(ByteBuffer.wrap(bytes), from, to);
+    }
+
+    // MurmurHash3's finalizer: makes every output bit depend on every
+    // input bit.
+    static long fmix64(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // Our background threads shouldn't keep the JVM alive once the main
+    // thread is done (e.g. when exiting the REPL).
+    public static ThreadFactory daemonThreadFactory(final String name)
+    {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    // Reads exactly count bytes into buf[0, count).
+    public static void readFully(InputStream in, byte[] buf, int count)
+        throws IOException
+    {
+        int done = 0;
+        while (done < count) {
+            int n = in.read(buf, done, count - done);
+            if (n < 0) {
+                throw new EOFException("stream ended after " + done
+                                       + " of " + count + " bytes");
+            }
+            done += n;
+        }
+    }
+
+    // Replaces the contents of target such that a reader (or a restart
+    // after a crash) sees either the old file or the new one, never a
+    // truncated mix: write a temp file next to it, fsync, then rename over.
+    public static void writeFileAtomically(File target, String contents)
+        throws IOException
+    {
+        writeFileAtomically(target,
+                            contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static void writeFileAtomically(File target, byte[] contents)
+        throws IOException
+    {
+        File tmp = new File(target.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(contents);
+            out.getChannel().force(true);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), target.toPath(),
+                   StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+    }
 }
@@ -0,0 +1,90 @@
+package org.vorpus.cld2wrap;
+
+import org.bridj.BridJ;
+import org.bridj.Pointer;
+import org.bridj.ann.Library;
+import org.bridj.ann.Name;
+import org.bridj.ann.Ptr;
+import org.bridj.ann.Runtime;
+import org.bridj.cpp.CPPRuntime;
+
+// Bindings for the batch functions at the end of cld2wrap.h. These are
+// written by hand, in the same style as the JNAerator-generated ones in
+// lib/CLD2wrap.jar, so that adding them didn't mean regenerating the jar.
+@Library("CLD2wrap")
+@Runtime(CPPRuntime.class)
+public class CLD2wrapBatchLibrary
+{
+    static
+    {
+        BridJ.register();
+    }
+
+    public static int CLD2Wrap_detect_batch(
+        Pointer<Byte> bytes,
+        Pointer<Integer> doc_offsets,
+        int num_docs,
+        boolean is_plain_text,
+        Pointer<Byte> hint_bytes,
+        Pointer<Integer> content_language_hint_offsets,
+        Pointer<Integer> tld_hint_offsets,
+        Pointer<Integer> languages,
+        Pointer<Integer> percents,
+        Pointer<Double> normalized_scores,
+        Pointer<Integer> is_reliable,
+        Pointer<Integer> text_bytes,
+        Pointer<Integer> chunk_starts,
+        Pointer<Integer> chunk_offsets,
+        Pointer<Integer> chunk_lengths,
+        Pointer<Integer> chunk_languages,
+        int max_chunks)
+    {
+        return CLD2Wrap_detect_batch(
+            Pointer.getPeer(bytes),
+            Pointer.getPeer(doc_offsets),
+            num_docs,
+            is_plain_text,
+            Pointer.getPeer(hint_bytes),
+            Pointer.getPeer(content_language_hint_offsets),
+            Pointer.getPeer(tld_hint_offsets),
+            Pointer.getPeer(languages),
+            Pointer.getPeer(percents),
+            Pointer.getPeer(normalized_scores),
+            Pointer.getPeer(is_reliable),
+            Pointer.getPeer(text_bytes),
+            Pointer.getPeer(chunk_starts),
+            Pointer.getPeer(chunk_offsets),
+            Pointer.getPeer(chunk_lengths),
+            Pointer.getPeer(chunk_languages),
+            max_chunks);
+    }
+
+    protected native static int CLD2Wrap_detect_batch(
+        @Ptr long bytes,
+        @Ptr long doc_offsets,
+        int num_docs,
+        boolean is_plain_text,
+        @Ptr long hint_bytes,
+        @Ptr long content_language_hint_offsets,
+        @Ptr long tld_hint_offsets,
+        @Ptr long languages,
+        @Ptr long percents,
+        @Ptr long normalized_scores,
+        @Ptr long is_reliable,
+        @Ptr long text_bytes,
+        @Ptr long chunk_starts,
+        @Ptr long chunk_offsets,
+        @Ptr long chunk_lengths,
+        @Ptr long chunk_languages,
+        int max_chunks);
+
+    public static Pointer<Byte> CLD2Wrap_language_code(int language)
+    {
+        return Pointer.pointerToAddress(CLD2Wrap_language_code0(language),
+                                        Byte.class);
+    }
+
+    @Name("CLD2Wrap_language_code")
+    @Ptr
+    protected native static long CLD2Wrap_language_code0(int language);
+}